@@ -0,0 +1,104 @@
+package cop5555fa13.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cop5555fa13.CompilerOptions;
+import cop5555fa13.Parser;
+import cop5555fa13.Scanner;
+import cop5555fa13.TokenStream;
+import cop5555fa13.ast.CodeGenVisitor;
+import cop5555fa13.ast.Optimizer;
+import cop5555fa13.ast.Program;
+import cop5555fa13.ast.TypeCheckVisitor;
+
+/**
+ * Throughput of the phases of the compiler on the sample programs and on
+ * synthetic programs of 100 and 1000 statements.
+ *
+ * The type checker, the optimizer and the code generator modify the AST they
+ * visit, so they are measured on a fresh AST every time: typeCheck includes
+ * parsing, optimize includes type checking and codeGen includes optimization.
+ * The cost of a phase alone is the difference with the previous benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerPhaseBenchmark {
+
+	/**
+	 * name of a program in sampleprograms, or synthetic-N for a synthetic
+	 * program of N statements
+	 */
+	@Param({ "bouncingball", "greyscale", "synthetic-100", "synthetic-1000" })
+	public String program;
+
+	char[] source;
+
+	final CompilerOptions options = new CompilerOptions();
+
+	/** stream scanned once, from which parse starts every time */
+	TokenStream scanned;
+
+	@Setup
+	public void setup() throws Exception {
+		String text = program.startsWith("synthetic-") ? Programs
+				.synthetic(Integer.parseInt(program.substring("synthetic-"
+						.length()))) : Programs.sample(program);
+		source = text.toCharArray();
+		scanned = new TokenStream(source);
+		new Scanner(scanned).scan();
+		// fail here rather than measure a program that does not compile
+		codeGen();
+	}
+
+	@Benchmark
+	public TokenStream scan() throws Exception {
+		TokenStream stream = new TokenStream(source);
+		new Scanner(stream).scan();
+		return stream;
+	}
+
+	@Benchmark
+	public Program parse() throws Exception {
+		return new Parser(scanned).parse();
+	}
+
+	@Benchmark
+	public Program typeCheck() throws Exception {
+		Program prog = new Parser(scanned).parse();
+		TypeCheckVisitor typeChecker = new TypeCheckVisitor();
+		prog.visit(typeChecker, null);
+		if (!typeChecker.getErrorNodeList().isEmpty()) {
+			throw new IllegalStateException(typeChecker.getLog());
+		}
+		return prog;
+	}
+
+	@Benchmark
+	public Program optimize() throws Exception {
+		Program prog = typeCheck();
+		Optimizer.optimize(prog, options);
+		return prog;
+	}
+
+	@Benchmark
+	public byte[] codeGen() throws Exception {
+		Program prog = optimize();
+		return (byte[]) prog.visit(new CodeGenVisitor(options), null);
+	}
+}
@@ -0,0 +1,71 @@
+package cop5555fa13.bench;
+
+import java.lang.reflect.Method;
+
+import cop5555fa13.CompilerOptions;
+
+/**
+ * Compares the traversal orders the code generator can emit for whole-image
+ * assignments: column by column (the order used before row-major traversal),
+ * row by row, and row by row in square tiles. A program assigning a square
+ * image of each size a few times is compiled with each order and the time
+ * per assignment is printed.
+ *
+ * Usage: LoopOrderBenchmark [tileSize] [repetitions]
+ *
+ * The 8K images need about 256MB each, so run with a large enough heap, e.g.
+ * -Xmx2g.
+ */
+public class LoopOrderBenchmark {
+
+	static final int[] SIZES = { 1024, 4096, 8192 };
+
+	public static void main(String[] args) throws Exception {
+		int tileSize = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		System.out.printf("%-8s %14s %14s %14s%n", "size", "column-major",
+				"row-major", "tiled(" + tileSize + ")");
+		for (int size : SIZES) {
+			String source = program(size, repetitions);
+			CompilerOptions columnMajor = new CompilerOptions();
+			columnMajor.columnMajor = true;
+			CompilerOptions rowMajor = new CompilerOptions();
+			CompilerOptions tiled = new CompilerOptions();
+			tiled.tileSize = tileSize;
+
+			double c = msPerAssignment(source, columnMajor, repetitions);
+			double r = msPerAssignment(source, rowMajor, repetitions);
+			double t = msPerAssignment(source, tiled, repetitions);
+			System.out.printf("%-8s %11.1f ms %11.1f ms %11.1f ms%n", size
+					+ "x" + size, c, r, t);
+		}
+	}
+
+	/**
+	 * A program that assigns a size x size image repetitions times.
+	 */
+	static String program(int size, int repetitions) {
+		return "loopOrder {\n"
+				+ "image img;\n"
+				+ "int i;\n"
+				+ "img.shape = [" + size + ", " + size + "];\n"
+				+ "i = 0;\n"
+				+ "while (i < " + repetitions + ") {\n"
+				+ "  img = {{ (x + i) % 256, (y + i) % 256, (x + y) % 256 }};\n"
+				+ "  i = i + 1;\n"
+				+ "}\n"
+				+ "}\n";
+	}
+
+	static double msPerAssignment(String source, CompilerOptions options,
+			int repetitions) throws Exception {
+		Method main = Programs.compile(source, options);
+		// first run warms up the JIT, second one is measured
+		main.invoke(null, (Object) new String[0]);
+		long start = System.nanoTime();
+		main.invoke(null, (Object) new String[0]);
+		long elapsed = System.nanoTime() - start;
+		return elapsed / 1e6 / repetitions;
+	}
+}
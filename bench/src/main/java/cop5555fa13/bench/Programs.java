@@ -0,0 +1,120 @@
+package cop5555fa13.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+
+import cop5555fa13.CompilerOptions;
+import cop5555fa13.Parser;
+import cop5555fa13.Scanner;
+import cop5555fa13.TokenStream;
+import cop5555fa13.ast.CodeGenVisitor;
+import cop5555fa13.ast.Optimizer;
+import cop5555fa13.ast.Program;
+import cop5555fa13.ast.TypeCheckVisitor;
+
+/**
+ * Sources and helpers shared by the benchmarks: the sample programs, synthetic
+ * programs of a given size, and compilation of a source to a loaded class.
+ */
+public class Programs {
+
+	static class BenchClassLoader extends ClassLoader {
+		Class<?> defineClass(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+
+	/**
+	 * Returns the source of a program of sampleprograms, which the build
+	 * copies onto the class path.
+	 *
+	 * @param name
+	 *            file name without the .plp extension
+	 */
+	public static String sample(String name) throws IOException {
+		InputStream in = Programs.class.getResourceAsStream("/sampleprograms/"
+				+ name + ".plp");
+		if (in == null) {
+			throw new IOException("no sample program " + name);
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for (int n; (n = in.read(buffer)) > 0;) {
+				out.write(buffer, 0, n);
+			}
+			return out.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns a program with the given number of statements, cycling through
+	 * integer assignments, alternatives, loops and whole-image assignments,
+	 * so that every phase of the compiler has a proportional amount of work.
+	 */
+	public static String synthetic(int statements) {
+		StringBuilder b = new StringBuilder("synthetic {\n");
+		b.append("image img;\n");
+		for (int v = 0; v != 10; v++) {
+			b.append("int v").append(v).append(";\n");
+		}
+		b.append("img.shape = [64, 64];\n");
+		for (int k = 0; k != statements; k++) {
+			int v = k % 10;
+			int w = (k + 1) % 10;
+			switch (k % 4) {
+			case 0:
+				b.append("v").append(v).append(" = (v").append(w).append(" + ")
+						.append(k).append(") * 3 % 256;\n");
+				break;
+			case 1:
+				b.append("if (v").append(v).append(" < ").append(k)
+						.append(") { v").append(w).append(" = v").append(w)
+						.append(" + 1; } else { v").append(w).append(" = v")
+						.append(w).append(" - 1; }\n");
+				break;
+			case 2:
+				b.append("while (v").append(v).append(" > 0) { v").append(v)
+						.append(" = v").append(v).append(" / 2; }\n");
+				break;
+			default:
+				b.append("img = {{ (x + v").append(v)
+						.append(") % 256, y * 2 % 256, (img[x,y]red + v")
+						.append(w).append(") % 256 }};\n");
+				break;
+			}
+		}
+		return b.append("}\n").toString();
+	}
+
+	/**
+	 * Scans, parses, type checks and generates code for source.
+	 *
+	 * @return the main method of the generated class
+	 */
+	public static Method compile(String source, CompilerOptions options)
+			throws Exception {
+		TokenStream stream = new TokenStream(source);
+		new Scanner(stream).scan();
+		Parser parser = new Parser(stream);
+		Program program = parser.parse();
+		if (!parser.getErrorList().isEmpty()) {
+			throw new IllegalStateException(parser.getErrorList().toString());
+		}
+		TypeCheckVisitor typeChecker = new TypeCheckVisitor();
+		program.visit(typeChecker, null);
+		if (!typeChecker.getErrorNodeList().isEmpty()) {
+			throw new IllegalStateException(typeChecker.getLog());
+		}
+		Optimizer.optimize(program, options);
+		byte[] byteCode = (byte[]) program.visit(new CodeGenVisitor(options),
+				null);
+		Class<?> c = new BenchClassLoader().defineClass(program.getProgName(),
+				byteCode);
+		return c.getMethod("main", String[].class);
+	}
+}
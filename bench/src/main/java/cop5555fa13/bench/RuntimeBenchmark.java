@@ -0,0 +1,113 @@
+package cop5555fa13.bench;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cop5555fa13.CompilerOptions;
+import cop5555fa13.runtime.ImageConstants;
+import cop5555fa13.runtime.PLPImage;
+import cop5555fa13.runtime.Pixel;
+
+/**
+ * Time to process a whole size x size image with the runtime: making every
+ * pixel with Pixel.makePixel, reading and writing every sample with
+ * PLPImage.getSample and setSample, and executing a compiled whole-image
+ * assignment, inline and with -parallel.
+ *
+ * The generated classes have no stack map frames, so the forks run with
+ * bytecode verification of loaded classes disabled. They also run headless so
+ * that no frame is ever opened.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-XX:+UnlockDiagnosticVMOptions",
+		"-XX:-BytecodeVerificationRemote", "-Djava.awt.headless=true",
+		"-Dcop5555fa13.headless=true" })
+public class RuntimeBenchmark {
+
+	@Param({ "256", "1024", "4096" })
+	public int size;
+
+	PLPImage image;
+	int[] pixels;
+	Method assignInline;
+	Method assignParallel;
+
+	static final Object[] NO_ARGS = { new String[0] };
+
+	@Setup
+	public void setup() throws Exception {
+		image = new PLPImage("image");
+		image.width = size;
+		image.height = size;
+		image.ensureImage();
+		pixels = new int[size * size];
+		String source = "assign {\n"
+				+ "image img;\n"
+				+ "img.shape = [" + size + ", " + size + "];\n"
+				+ "img = {{ (x + y) % 256, x * y % 256, (x - y) % 256 }};\n"
+				+ "}\n";
+		assignInline = Programs.compile(source, new CompilerOptions());
+		CompilerOptions parallel = new CompilerOptions();
+		parallel.parallel = true;
+		assignParallel = Programs.compile(source, parallel);
+	}
+
+	@Benchmark
+	public int[] makePixel() {
+		int[] p = pixels;
+		int n = size;
+		for (int y = 0; y != n; y++) {
+			for (int x = 0; x != n; x++) {
+				p[y * n + x] = Pixel.makePixel(x, y, x + y);
+			}
+		}
+		return p;
+	}
+
+	@Benchmark
+	public int getSample() {
+		int sum = 0;
+		for (int y = 0; y != size; y++) {
+			for (int x = 0; x != size; x++) {
+				sum += image.getSample(x, y, ImageConstants.RED);
+			}
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public PLPImage setSample() {
+		for (int y = 0; y != size; y++) {
+			for (int x = 0; x != size; x++) {
+				image.setSample(x, y, ImageConstants.GRN, x ^ y);
+			}
+		}
+		return image;
+	}
+
+	@Benchmark
+	public void wholeImageAssignment() throws Exception {
+		assignInline.invoke(null, NO_ARGS);
+	}
+
+	@Benchmark
+	public void wholeImageAssignmentParallel() throws Exception {
+		assignParallel.invoke(null, NO_ARGS);
+	}
+}
@@ -0,0 +1,37 @@
+package cop5555fa13;
+
+import org.junit.Test;
+
+/**
+ * Computing a repeated subexpression once must not change what a program
+ * shows.
+ */
+public class CommonSubexpressionTest {
+
+	/**
+	 * subexpressions repeated in a pixel, in a statement, and in statements
+	 * with an assignment of their variables between them
+	 */
+	static final String CSE = "cse {\n"
+			+ "image a;\n"
+			+ "int z;\n"
+			+ "int k;\n"
+			+ "int r;\n"
+			+ "int s;\n"
+			+ "a.shape = [8, 8];\n"
+			+ "a.visible = true;\n"
+			+ "z = 0;\n"
+			+ "k = 3;\n"
+			+ "a = {{ z == 0 ? 0 : 100 / z, z == 0 ? 1 : 100 / z, (x*y+3) % 256 + (x*y+3) % 7 }};\n"
+			+ "r = (z + 5) * (z + 5) + (z == 0 ? 3 : 100 / z) + (z + 5);\n"
+			+ "s = (k + 1) * (k + 1);\n"
+			+ "k = k + 2;\n"
+			+ "s = s + (k + 1) * (k + 1) + (k + 1);\n"
+			+ "a = {{ (x + k) * (x + k) % 256, (x + k) % 256 + a[x,y]red, (r + s) % 256 }};\n"
+			+ "}";
+
+	@Test
+	public void commonSubexpressions() throws Exception {
+		OptimizationEquivalenceTest.assertSameOutput("-nocse");
+	}
+}
@@ -0,0 +1,100 @@
+package cop5555fa13;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * CompileCache must return the entries it stored, and treat an entry that
+ * cannot be read, or is for another key, as a miss.
+ */
+public class CompileCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String KEY = PLPEngine.sha256("key");
+	private static final String OTHER_KEY = PLPEngine.sha256("other key");
+
+	/**
+	 * @return the file of the entry with the given key, as documented by
+	 *         CompileCache
+	 */
+	private File entryFile(String key) {
+		return new File(new File(folder.getRoot(), key.substring(0, 2)), key
+				+ ".plpc");
+	}
+
+	@Test
+	public void classEntryRoundTrip() throws Exception {
+		CompileCache cache = new CompileCache(folder.getRoot());
+		byte[] classFile = { (byte) 0xca, (byte) 0xfe, 0, 1, 2 };
+		cache.put(KEY, new CompileCache.Entry("prog", classFile));
+		CompileCache.Entry entry = new CompileCache(folder.getRoot())
+				.get(KEY);
+		assertNotNull(entry);
+		assertEquals("prog", entry.className);
+		assertArrayEquals(classFile, entry.classFile);
+		assertEquals("", entry.diagnostics);
+	}
+
+	@Test
+	public void errorEntryRoundTrip() throws Exception {
+		CompileCache cache = new CompileCache(folder.getRoot());
+		cache.put(KEY, new CompileCache.Entry("line 3: expected ;\n"));
+		CompileCache.Entry entry = cache.get(KEY);
+		assertNotNull(entry);
+		assertNull(entry.className);
+		assertEquals("line 3: expected ;\n", entry.diagnostics);
+	}
+
+	@Test
+	public void entryOfAnotherKeyIsAMiss() throws Exception {
+		CompileCache cache = new CompileCache(folder.getRoot());
+		cache.put(KEY, new CompileCache.Entry("prog", new byte[] { 1 }));
+		File other = entryFile(OTHER_KEY);
+		other.getParentFile().mkdirs();
+		Files.copy(entryFile(KEY).toPath(), other.toPath());
+		assertNull(cache.get(OTHER_KEY));
+		assertNotNull(cache.get(KEY));
+	}
+
+	@Test
+	public void truncatedEntryIsAMiss() throws Exception {
+		CompileCache cache = new CompileCache(folder.getRoot());
+		cache.put(KEY, new CompileCache.Entry("prog", new byte[] { 1, 2, 3 }));
+		RandomAccessFile raf = new RandomAccessFile(entryFile(KEY), "rw");
+		try {
+			raf.setLength(raf.length() - 1);
+		} finally {
+			raf.close();
+		}
+		assertNull(cache.get(KEY));
+	}
+
+	@Test
+	public void missingEntryIsAMiss() {
+		assertNull(new CompileCache(folder.getRoot()).get(KEY));
+	}
+
+	@Test
+	public void keyDependsOnTheSourceAndTheOptions() throws Exception {
+		CompilerOptions options = new CompilerOptions();
+		String key = CompileCache.key("p {\n}", options);
+		assertNotNull(key);
+		assertEquals(key, CompileCache.key("p {\n}", options.copy()));
+		assertNotEquals(key, CompileCache.key("q {\n}", options));
+		options.set("-nofold");
+		assertNotEquals(key, CompileCache.key("p {\n}", options));
+	}
+}
@@ -0,0 +1,58 @@
+package cop5555fa13;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Conditions jumping directly on comparisons, and conditional expressions
+ * selecting between constants without branches, must compute what the
+ * interpreter computes by evaluating the comparisons to 0 or 1.
+ */
+public class ConditionTest {
+
+	/**
+	 * comparisons with 0 and of values whose difference overflows an int,
+	 * in conditions, in values, and selecting constants, with & and | of
+	 * conditions
+	 */
+	static final String CONDITIONS = "conditions {\n"
+			+ "image a;\n"
+			+ "image b;\n"
+			+ "int big;\n"
+			+ "int small;\n"
+			+ "int n;\n"
+			+ "int r;\n"
+			+ "boolean p;\n"
+			+ "boolean q;\n"
+			+ "a.shape = [19, 13];\n"
+			+ "b.shape = [19, 13];\n"
+			+ "a.visible = true;\n"
+			+ "big = 1 << 30;\n"
+			+ "big = big + (big - 1);\n"
+			+ "small = 0 - big - 1;\n"
+			+ "n = 0;\n"
+			+ "r = 0;\n"
+			+ "p = big > small;\n"
+			+ "q = small < 0 & big >= 0 | n != 0;\n"
+			+ "while (n < 7 & n != 5) { r = r + (n > 2 ? 10 : 1); n = n + 1; }\n"
+			+ "if (0 < n) { r = r + 100; }\n"
+			+ "if (big - small > 0) { r = r + 1000; }\n"
+			+ "if (p == q) { r = r + 3; } else { r = r - 3; }\n"
+			+ "b = {{ x, y, 0 }};\n"
+			+ "a = {{ x < y ? 255 : 0, x == y | x + 1 == y ? 200 : 50,"
+			+ " (big > small ? 1 : 0) + (small >= big ? 2 : 0) + (x != 0 ? 4 : 0) }};\n"
+			+ "a = {{ a[x,y]red + (x >= 9 ? 1 : 0), a[x,y]green, (r + (a == b ? 1 : 0) + (b != a ? 2 : 0)) % 256 }};\n"
+			+ "a = {{ (x - 9 <= 0) & (y - 6 > 0) ? x : y, p ? 1 : 0, q ? 7 : 9 }};\n"
+			+ "}";
+
+	@Test
+	public void sameAsInterpreted() throws Exception {
+		String output = ProgramRunner.run(CONDITIONS);
+		assertTrue(output, output.startsWith("a 19x13 ")
+				&& !output.contains("stopped"));
+		assertEquals(ProgramRunner.run(CONDITIONS, "-interpret", "-tier=0"),
+				output);
+	}
+}
@@ -0,0 +1,85 @@
+package cop5555fa13;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Folding constants and simplifying expressions must not change what a
+ * program shows, nor evaluate what the program does not.
+ */
+public class ConstantFoldingTest {
+
+	/** constant expressions, branches and loops */
+	static final String FOLD = "fold {\n"
+			+ "image a;\n"
+			+ "int z;\n"
+			+ "int r;\n"
+			+ "int s;\n"
+			+ "boolean b;\n"
+			+ "a.shape = [8 * 2, 4 + 4];\n"
+			+ "a.visible = true;\n"
+			+ "z = 0;\n"
+			+ "a = {{ x, y, 3 }};\n"
+			+ "a = {{ x * 1 + 0, (x + y * 4) % 4 + Z / 2, a[x + 0, y * 1]red / 2 + (true ? 1 : 2) }};\n"
+			+ "r = 0 - 0 + z * 0 + 7 / 2 + 3 % 2 + (1 << 3) + (z - 5) / 2 + (z - 5) % 4;\n"
+			+ "if (1 < 2) { s = 5; } else { s = 6; }\n"
+			+ "if (false) { s = s + 100; }\n"
+			+ "while (false) { s = 0; }\n"
+			+ "b = true & (z == 0) | false;\n"
+			+ "r = r + z / 1 * 8;\n"
+			+ "a = {{ r + 128, s, b ? 1 : 0 }};\n"
+			+ "}";
+
+	/**
+	 * divisions by zero in branches that are never taken, which folding must
+	 * not evaluate
+	 */
+	static final String DEAD_DIVISION = "dead {\n"
+			+ "image a;\n"
+			+ "int z;\n"
+			+ "int k;\n"
+			+ "int r;\n"
+			+ "a.shape = [4, 4];\n"
+			+ "a.visible = true;\n"
+			+ "z = 0;\n"
+			+ "k = 10;\n"
+			+ "if (z != 0) { k = 100 / z; }\n"
+			+ "if (false) { r = 1 / 0; } else { r = 7; }\n"
+			+ "r = r + (z == 0 ? 3 : 100 / z) + (false ? 5 / 0 : 2);\n"
+			+ "while (z > 0) { r = r / z; z = z - 1; }\n"
+			+ "a = {{ k, r, z == 0 ? 9 : 9 / z }};\n"
+			+ "}";
+
+	/** a division by zero that is executed, after a frame */
+	static final String DIVISION_BY_ZERO = "divzero {\n"
+			+ "image a;\n"
+			+ "int z;\n"
+			+ "int r;\n"
+			+ "a.shape = [4, 4];\n"
+			+ "a.visible = true;\n"
+			+ "z = 0;\n"
+			+ "a = {{ 1, 2, 3 }};\n"
+			+ "r = 5 / z;\n"
+			+ "a = {{ r, 2, 3 }};\n"
+			+ "}";
+
+	@Test
+	public void constantFolding() throws Exception {
+		OptimizationEquivalenceTest.assertSameOutput("-nofold");
+	}
+
+	@Test
+	public void deadDivisionIsNotExecuted() throws Exception {
+		String output = ProgramRunner.run(DEAD_DIVISION);
+		assertTrue(output, output.startsWith("a 4x4 ")
+				&& !output.contains("stopped"));
+	}
+
+	@Test
+	public void divisionByZeroStopsTheProgram() throws Exception {
+		String output = ProgramRunner.run(DIVISION_BY_ZERO);
+		assertTrue(output,
+				output.endsWith("stopped by java.lang.ArithmeticException\n"));
+	}
+}
@@ -0,0 +1,45 @@
+package cop5555fa13;
+
+import org.junit.Test;
+
+/**
+ * Computing whole-image assignments in the loops of the one reading them
+ * must not change what a program shows.
+ */
+public class FusionTest {
+
+	/**
+	 * assignments read only at [x,y] by the next one, one of which has another
+	 * size
+	 */
+	static final String FUSION = "fuse {\n"
+			+ "image a;\n"
+			+ "image b;\n"
+			+ "image c;\n"
+			+ "image d;\n"
+			+ "image e;\n"
+			+ "int k;\n"
+			+ "int m;\n"
+			+ "a.shape = [41, 29];\n"
+			+ "b.shape = [41, 29];\n"
+			+ "c.shape = [41, 29];\n"
+			+ "d.shape = [41, 29];\n"
+			+ "e.shape = [42, 30];\n"
+			+ "d.visible = true;\n"
+			+ "k = 3;\n"
+			+ "m = 0;\n"
+			+ "a = {{ x * k % 256, y, (x + y) % 256 }};\n"
+			+ "k = k + 5;\n"
+			+ "b = {{ a[x,y]red + k, a[x,y]green, (x * y + k) % 256 }};\n"
+			+ "if (k > 2) { m = k * 2; }\n"
+			+ "c = {{ (b[x,y]red + m) % 256, b[x,y]green + a[x,y]blue, b[x,y]blue }};\n"
+			+ "d = {{ b[x,y]blue, c[x,y]red, c[x,y]green / 2 }};\n"
+			+ "e = {{ x, y, 5 }};\n"
+			+ "d = {{ e[x,y]red + d[x,y]red, d[x,y]green, d[x,y]blue }};\n"
+			+ "}";
+
+	@Test
+	public void fusion() throws Exception {
+		OptimizationEquivalenceTest.assertSameOutput("-nofuse");
+	}
+}
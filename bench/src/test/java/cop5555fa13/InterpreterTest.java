@@ -0,0 +1,48 @@
+package cop5555fa13;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Interpreting a program must show what its class shows, whether it
+ * compiles the statements it executes often or not.
+ */
+public class InterpreterTest {
+
+	/**
+	 * a while loop and whole-image assignments executed more often than the
+	 * default threshold of the interpreter, which then compiles them
+	 */
+	static final String HOT = "hot {\n"
+			+ "image a;\n"
+			+ "int i;\n"
+			+ "int s;\n"
+			+ "a.shape = [150, 100];\n"
+			+ "a.visible = true;\n"
+			+ "i = 0;\n"
+			+ "s = 0;\n"
+			+ "while (i < 30000) {\n"
+			+ "  if (i % 3 == 0) { s = s + i % 7; } else { s = s - 1; }\n"
+			+ "  i = i + 1;\n"
+			+ "}\n"
+			+ "a = {{ (x * y + s) % 256, (x + i) % 256, y }};\n"
+			+ "a = {{ a[(x + 1) % 150, y]red, a[x,y]green, (s + x) % 256 }};\n"
+			+ "}";
+
+	@Test
+	public void interpreter() throws Exception {
+		OptimizationEquivalenceTest.assertSameOutput("-interpret", "-tier=0");
+	}
+
+	@Test
+	public void compiledStatements() throws Exception {
+		// every loop and whole-image assignment is compiled the first time
+		OptimizationEquivalenceTest.assertSameOutput("-interpret", "-tier=1");
+	}
+
+	@Test
+	public void compiledAtTheDefaultThreshold() throws Exception {
+		assertEquals(ProgramRunner.run(HOT), ProgramRunner.run(HOT, "-interpret"));
+	}
+}
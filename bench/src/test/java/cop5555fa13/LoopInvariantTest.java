@@ -0,0 +1,44 @@
+package cop5555fa13;
+
+import org.junit.Test;
+
+/**
+ * Computing the subexpressions of a whole-image assignment that do not
+ * depend on the pixel outside of its loops must not change what a program
+ * shows.
+ */
+public class LoopInvariantTest {
+
+	/**
+	 * loop invariant subexpressions of whole-image assignments, one of which
+	 * divides by zero where the pixel does not evaluate it
+	 */
+	static final String LICM = "licm {\n"
+			+ "image a;\n"
+			+ "image b;\n"
+			+ "int k;\n"
+			+ "int d;\n"
+			+ "a.shape = [37, 23];\n"
+			+ "b.shape = [37, 23];\n"
+			+ "a.visible = true;\n"
+			+ "k = 7;\n"
+			+ "d = 0;\n"
+			+ "b = {{ x, y, x + y }};\n"
+			+ "a = {{ (k * k + a.width) % 256 + (y * k) % 13 + (x * 3 + k) % 11,\n"
+			+ "       d == 0 ? (x * x + y) % 256 : 100 / d,\n"
+			+ "       (b[x, y]red + (y + k) * (y + k)) % 256 }};\n"
+			+ "a = {{ a[x + 1 == a.width ? 0 : x + 1, y]red, (x * k) % 256, (y * k + k * k) % 256 }};\n"
+			+ "}";
+
+	@Test
+	public void loopInvariants() throws Exception {
+		OptimizationEquivalenceTest.assertSameOutput("-nolicm");
+	}
+
+	@Test
+	public void columnInvariantsTiled() throws Exception {
+		// the inner loop of a tile covers part of the columns only
+		OptimizationEquivalenceTest.assertSameOutput("-tile=5");
+		OptimizationEquivalenceTest.assertSameOutput("-tile=5", "-nolicm");
+	}
+}
@@ -0,0 +1,122 @@
+package cop5555fa13;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Each optimization pass, the concurrent tasks and the interpreter must not
+ * change what a program computes: every program shows the same frames, and
+ * stops the same way, with and without them. The programs show their
+ * results in a visible image; they are declared by the tests of the feature
+ * they exercise, which check them here with assertSameOutput.
+ */
+public class OptimizationEquivalenceTest {
+
+	/**
+	 * @return a program whose pixel reads n variables, which the generated
+	 *         method assigning it takes as parameters
+	 */
+	static String manyVariables(int n) {
+		StringBuilder source = new StringBuilder("many {\n");
+		source.append("image a;\n");
+		for (int i = 0; i != n; i++) {
+			source.append("int v").append(i).append(";\n");
+		}
+		source.append("a.shape = [6, 5];\n");
+		source.append("a.visible = true;\n");
+		for (int i = 0; i != n; i++) {
+			source.append("v").append(i).append(" = a.width * ").append(i)
+					.append(";\n");
+		}
+		source.append("a = {{ x");
+		for (int i = 0; i != n; i++) {
+			source.append(" + v").append(i);
+		}
+		return source.append(", y, 0 }};\n}").toString();
+	}
+
+	/**
+	 * @return a program of about n statements, too large for one method
+	 *         when n is a few hundred, so that it is split into parts
+	 */
+	static String manyStatements(int n) {
+		StringBuilder source = new StringBuilder("parts {\n");
+		source.append("image a;\nint s;\nint t;\n");
+		source.append("a.shape = [7, 3];\n");
+		source.append("a.visible = true;\n");
+		source.append("s = 1;\nt = 0;\n");
+		for (int i = 0; i != n; i++) {
+			source.append("s = (s * 31 + ").append(i).append(") % 1000;\n");
+			source.append("if (s > 500) { t = t + ").append(i)
+					.append("; } else { t = t - 1; }\n");
+			if (i % 100 == 0) {
+				source.append("a = {{ s % 256, t % 256, x + y }};\n");
+			}
+		}
+		return source.append("a = {{ s % 256, t % 256, x * y }};\n}")
+				.toString();
+	}
+
+	static final String[] PROGRAMS = { ConstantFoldingTest.FOLD,
+			ConstantFoldingTest.DEAD_DIVISION,
+			ConstantFoldingTest.DIVISION_BY_ZERO, CommonSubexpressionTest.CSE,
+			ConditionTest.CONDITIONS, LoopInvariantTest.LICM, FusionTest.FUSION,
+			TaskTest.TASKS, TaskTest.TASK_FAILURE, TraversalOrderTest.ALIAS,
+			TraversalOrderTest.SELF };
+
+	/**
+	 * Checks that every program shows the same with the given flags as with
+	 * the default options, with instance state as PLPEngine runs it and, when
+	 * compiled, with the static state of the class Compiler writes.
+	 */
+	static void assertSameOutput(String... flags) throws Exception {
+		boolean compiled = !Arrays.asList(flags).contains("-interpret");
+		for (String source : PROGRAMS) {
+			String name = source.substring(0, source.indexOf(' '));
+			String expected = ProgramRunner.run(source);
+			assertEquals(name, expected, ProgramRunner.run(source, flags));
+			if (compiled) {
+				assertEquals(name + " static", expected,
+						ProgramRunner.runStatic(source, flags));
+			}
+		}
+	}
+
+	@Test
+	public void staticState() throws Exception {
+		// variables in locals, spilled to static fields around the statements
+		// moved to methods of their own
+		assertSameOutput();
+		assertSameOutput("-nooutline");
+	}
+
+	@Test
+	public void allPasses() throws Exception {
+		assertSameOutput("-nofold", "-nocse", "-nolicm", "-nofuse");
+	}
+
+	@Test
+	public void splitStatementLists() throws Exception {
+		String source = manyStatements(400);
+		String output = ProgramRunner.run(source);
+		assertEquals(ProgramRunner.run(source, "-nosplit"), output);
+		assertEquals(ProgramRunner.runStatic(source), output);
+		assertTrue(output, output.startsWith("a 7x3 ")
+				&& !output.contains("stopped"));
+	}
+
+	@Test
+	public void outliningWithAsManyVariablesAsParameters() throws Exception {
+		// as many as a static method can take, one more than an instance
+		// method, as PLPEngine generates, where this takes a slot
+		String source = manyVariables(255);
+		String output = ProgramRunner.run(source);
+		assertEquals(ProgramRunner.run(source, "-nooutline"), output);
+		assertEquals(ProgramRunner.runStatic(source), output);
+		assertTrue(output, !output.contains("stopped"));
+	}
+}
@@ -0,0 +1,166 @@
+package cop5555fa13;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+import cop5555fa13.Parser.SyntaxException;
+import cop5555fa13.ast.CodeGenVisitor;
+import cop5555fa13.ast.InterpreterVisitor;
+import cop5555fa13.ast.Optimizer;
+import cop5555fa13.ast.Program;
+import cop5555fa13.ast.TypeCheckVisitor;
+import cop5555fa13.runtime.FrameSink;
+import cop5555fa13.runtime.PLPImage;
+import cop5555fa13.runtime.RunContext;
+
+/**
+ * Runs programs in the JVM of the tests and records what they show: a line
+ * for every frame of a visible image, with its name, size and a hash of its
+ * pixels, and the exception the program stops with, if any. Two runs of a
+ * program compute the same thing if they record the same text.
+ *
+ * Compiled programs are run through PLPEngine, whose classes have instance
+ * state, or by runStatic through the static main that Compiler generates,
+ * and -interpret runs the InterpreterVisitor. Both classes are defined as
+ * hidden classes, which are verified.
+ */
+final class ProgramRunner {
+
+	private ProgramRunner() {
+	}
+
+	/**
+	 * Compiles source with the given options and runs it.
+	 *
+	 * @return the frames shown by the run, and how it stopped
+	 */
+	static String run(String source, String... flags) throws Exception {
+		CompilerOptions options = new CompilerOptions();
+		for (String flag : flags) {
+			options.set(flag);
+		}
+		Recorder recorder = new Recorder();
+		try {
+			if (options.interpret) {
+				interpret(source, options, recorder);
+			} else {
+				new PLPEngine(options, 0).compile(source).run(null, recorder);
+			}
+		} catch (RuntimeException e) {
+			recorder.stopped(e);
+		}
+		return recorder.toString();
+	}
+
+	/**
+	 * Compiles source with the given options into the class with static
+	 * state and main that Compiler writes, and runs its main.
+	 *
+	 * @return the frames shown by the run, and how it stopped
+	 */
+	static String runStatic(String source, String... flags) throws Exception {
+		CompilerOptions options = new CompilerOptions();
+		for (String flag : flags) {
+			options.set(flag);
+		}
+		Program program = analyze(source, options);
+		byte[] classFile = new CodeGenVisitor(options).generateVerifiableClass(
+				program, "cop5555fa13/" + program.getProgName());
+		options.checkLoadable();
+		MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(
+				classFile, true);
+		MethodHandle main = lookup.findStatic(lookup.lookupClass(), "main",
+				MethodType.methodType(void.class, String[].class));
+		Recorder recorder = new Recorder();
+		RunContext previous = new RunContext(null, recorder).enter();
+		try {
+			main.invoke(new String[0]);
+		} catch (RuntimeException e) {
+			recorder.stopped(e);
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		} finally {
+			RunContext.exit(previous);
+		}
+		return recorder.toString();
+	}
+
+	/**
+	 * Scans, parses, type checks and optimizes source.
+	 */
+	private static Program analyze(String source, CompilerOptions options)
+			throws Exception {
+		TokenStream stream = new TokenStream(source);
+		new Scanner(stream).scan();
+		Parser parser = new Parser(stream);
+		Program program = parser.parse();
+		if (!parser.getErrorList().isEmpty()) {
+			SyntaxException e = parser.getErrorList().get(0);
+			throw new CompilerErrorException(e.toString() + e.t.toString());
+		}
+		TypeCheckVisitor typeChecker = new TypeCheckVisitor();
+		program.visit(typeChecker, null);
+		if (!typeChecker.getErrorNodeList().isEmpty()) {
+			throw new CompilerErrorException(typeChecker.getLog());
+		}
+		Optimizer.optimize(program, options);
+		return program;
+	}
+
+	private static void interpret(String source, CompilerOptions options,
+			FrameSink sink) throws Exception {
+		Program program = analyze(source, options);
+		RunContext previous = new RunContext(null, sink).enter();
+		try {
+			program.visit(new InterpreterVisitor(options), null);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			// the visitor wraps exceptions of the program
+			Throwable cause = e.getCause() == null ? e : e.getCause();
+			throw new RuntimeException(cause);
+		} finally {
+			RunContext.exit(previous);
+		}
+	}
+
+	private static class Recorder implements FrameSink {
+		private final StringBuilder log = new StringBuilder();
+
+		@Override
+		public synchronized void frameUpdated(PLPImage image) {
+			int width = image.getWidth();
+			int height = image.getHeight();
+			int[] pixels = image.getPixels();
+			log.append(image.getName()).append(' ').append(width).append('x')
+					.append(height).append(' ');
+			if (pixels == null) {
+				log.append("none\n");
+				return;
+			}
+			int hash = 1;
+			for (int y = 0; y != height; y++) {
+				int row = y * image.getStride();
+				hash = 31 * hash
+						+ Arrays.hashCode(Arrays.copyOfRange(pixels, row, row
+								+ width));
+			}
+			log.append(Integer.toHexString(hash)).append('\n');
+		}
+
+		synchronized void stopped(Throwable e) {
+			while (e.getCause() != null) {
+				e = e.getCause();
+			}
+			log.append("stopped by ").append(e.getClass().getName())
+					.append('\n');
+		}
+
+		@Override
+		public synchronized String toString() {
+			return log.toString();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package cop5555fa13;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Running independent groups of statements as concurrent tasks must not
+ * change what a program shows, nor what it shows before a task throws.
+ */
+public class TaskTest {
+
+	/**
+	 * independent whole-image assignments in a loop, with the variables they
+	 * read assigned between them
+	 */
+	static final String TASKS = "tasks {\n"
+			+ "image a;\n"
+			+ "image b;\n"
+			+ "image c;\n"
+			+ "image o;\n"
+			+ "int i;\n"
+			+ "int k;\n"
+			+ "int m;\n"
+			+ "int s;\n"
+			+ "a.shape = [30, 20];\n"
+			+ "b.shape = [30, 20];\n"
+			+ "c.shape = [30, 20];\n"
+			+ "o.shape = [30, 20];\n"
+			+ "o.visible = true;\n"
+			+ "i = 0;\n"
+			+ "k = 1;\n"
+			+ "m = 2;\n"
+			+ "s = 0;\n"
+			+ "while (i < 20) {\n"
+			+ "  a = {{ (x * k + i) % 256, y % 256, (x + y + k) % 256 }};\n"
+			+ "  k = (k * 3 + 1) % 17;\n"
+			+ "  b = {{ (y * m) % 256, (x + m) % 256, b[x,y]blue + 1 }};\n"
+			+ "  if (m > 5) { m = m - 5; } else { m = m + 3; }\n"
+			+ "  c = {{ (c[x,y]blue + i) % 256, y, x % 256 }};\n"
+			+ "  s = s + a[3,4]red;\n"
+			+ "  i = i + 1;\n"
+			+ "}\n"
+			+ "o = {{ a[x,y]red, b[x,y]green + c[x,y]blue, s % 256 }};\n"
+			+ "}";
+
+	/**
+	 * independent whole-image assignments, one of which divides by zero,
+	 * between frames of another image
+	 */
+	static final String TASK_FAILURE = "taskfailure {\n"
+			+ "image a;\n"
+			+ "image b;\n"
+			+ "image o;\n"
+			+ "int z;\n"
+			+ "a.shape = [40, 30];\n"
+			+ "b.shape = [40, 30];\n"
+			+ "o.shape = [40, 30];\n"
+			+ "o.visible = true;\n"
+			+ "z = 0;\n"
+			+ "o = {{ 1, 2, 3 }};\n"
+			+ "b = {{ y, x, 7 }};\n"
+			+ "a = {{ x, y, 100 / z }};\n"
+			+ "o = {{ a[x,y]red, b[(x + 1) % 40, y]green, 0 }};\n"
+			+ "}";
+
+	@Test
+	public void tasks() throws Exception {
+		OptimizationEquivalenceTest.assertSameOutput("-tasks");
+	}
+
+	@Test
+	public void failingTaskStopsTheProgram() throws Exception {
+		String output = ProgramRunner.run(TASK_FAILURE, "-tasks");
+		// the frames of o before the tasks, but not the one after them
+		assertEquals(output, 3, output.split("\n").length);
+		assertTrue(output,
+				output.endsWith("stopped by java.lang.ArithmeticException\n"));
+	}
+}
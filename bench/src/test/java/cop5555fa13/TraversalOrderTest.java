@@ -0,0 +1,107 @@
+package cop5555fa13;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Whole-image assignments traversed in another order than the baseline's,
+ * column by column, must compute the same pixels.
+ */
+public class TraversalOrderTest {
+
+	/**
+	 * a is b when its pixels are assigned, so the assignment reads pixels
+	 * of its own image that it has already written.
+	 */
+	static final String ALIAS = "alias {\n"
+			+ "image a;\n"
+			+ "image b;\n"
+			+ "b.shape = [30, 20];\n"
+			+ "b = {{ x * 7, y * 11, x + y }};\n"
+			+ "a = b;\n"
+			+ "a.visible = true;\n"
+			+ "a = {{ b[(x + 1) % 30, (y + 19) % 20]red + 1,"
+			+ " b[(x + 29) % 30, (y + 1) % 20]green, b[x,y]blue }};\n"
+			+ "}";
+
+	/** a reads itself one row up, so each row depends on the one before */
+	static final String SELF = "self {\n"
+			+ "image a;\n"
+			+ "a.shape = [25, 16];\n"
+			+ "a.visible = true;\n"
+			+ "a = {{ x * 9, y * 3, x * y }};\n"
+			+ "a = {{ a[x, (y + 15) % 16]red + 1, a[x,y]green, a[(x + 24) % 25, y]blue }};\n"
+			+ "}";
+
+	private static void assertSameAsColumnMajor(String source, String... flags)
+			throws Exception {
+		assertEquals(ProgramRunner.run(source, "-columnmajor"),
+				ProgramRunner.run(source, flags));
+	}
+
+	/**
+	 * @return true if the JVM running the tests reads the Vector API
+	 */
+	static boolean vectorAvailable() {
+		try {
+			Class.forName("jdk.incubator.vector.IntVector");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	@Test
+	public void assignmentThroughAliasRowMajor() throws Exception {
+		assertSameAsColumnMajor(ALIAS);
+	}
+
+	@Test
+	public void assignmentThroughAliasTiled() throws Exception {
+		assertSameAsColumnMajor(ALIAS, "-tile=8");
+	}
+
+	@Test
+	public void assignmentThroughAliasParallel() throws Exception {
+		assertSameAsColumnMajor(ALIAS, "-parallel");
+	}
+
+	@Test
+	public void assignmentThroughAliasInterpreted() throws Exception {
+		assertSameAsColumnMajor(ALIAS, "-interpret", "-tier=0");
+	}
+
+	@Test
+	public void assignmentThroughAliasVector() throws Exception {
+		Assume.assumeTrue(vectorAvailable());
+		assertSameAsColumnMajor(ALIAS, "-vector");
+	}
+
+	@Test
+	public void programsVector() throws Exception {
+		Assume.assumeTrue(vectorAvailable());
+		OptimizationEquivalenceTest.assertSameOutput("-vector");
+	}
+
+	@Test
+	public void vectorWithoutTheModule() throws Exception {
+		Assume.assumeTrue(!vectorAvailable());
+		// the option is accepted, the class it generates is not loaded
+		try {
+			ProgramRunner.run(ALIAS, "-vector");
+			fail("a class using the Vector API was loaded without it");
+		} catch (CompilerErrorException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("--add-modules"));
+		}
+	}
+
+	@Test
+	public void selfSampleParallel() throws Exception {
+		assertSameAsColumnMajor(SELF, "-parallel");
+		assertSameAsColumnMajor(SELF, "-tile=4");
+	}
+}
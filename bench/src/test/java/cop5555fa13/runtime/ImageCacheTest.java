@@ -0,0 +1,164 @@
+package cop5555fa13.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * ImageCache must count its hits and misses, reload files that changed,
+ * evict the least recently used images beyond its size, decode large
+ * sources subsampled for a smaller target, and keep prefetched images only
+ * as cache entries. PLPImage must copy a cached image before writing it.
+ */
+public class ImageCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * @return the path of a new PNG file of the given size
+	 */
+	private String writeImage(String name, int width, int height)
+			throws Exception {
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y != height; y++) {
+			for (int x = 0; x != width; x++) {
+				image.setRGB(x, y, x * 7 + (y << 8));
+			}
+		}
+		File file = new File(folder.getRoot(), name);
+		ImageIO.write(image, "png", file);
+		return file.getPath();
+	}
+
+	@Test
+	public void countsHitsAndMisses() throws Exception {
+		String path = writeImage("source.png", 40, 30);
+		ImageCache cache = new ImageCache(64L << 20);
+		BufferedImage first = cache.get(path);
+		assertSame(first, cache.get(path));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertEquals(4L * 40 * 30, cache.getBytes());
+	}
+
+	@Test
+	public void reloadsChangedFile() throws Exception {
+		String path = writeImage("source.png", 40, 30);
+		ImageCache cache = new ImageCache(64L << 20);
+		cache.get(path);
+		// another length, whatever the resolution of modification times
+		writeImage("source.png", 50, 20);
+		BufferedImage image = cache.get(path);
+		assertEquals(50, image.getWidth());
+		assertEquals(2, cache.getMisses());
+		assertEquals(0, cache.getHits());
+		assertEquals(4L * 50 * 20, cache.getBytes());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() throws Exception {
+		String a = writeImage("a.png", 40, 30);
+		String b = writeImage("b.png", 40, 30);
+		String c = writeImage("c.png", 40, 30);
+		// room for two of the images
+		ImageCache cache = new ImageCache(2 * 4L * 40 * 30);
+		cache.get(a);
+		cache.get(b);
+		cache.get(a);
+		cache.get(c);
+		assertEquals(1, cache.getEvictions());
+		assertEquals(2 * 4L * 40 * 30, cache.getBytes());
+		long misses = cache.getMisses();
+		cache.get(a);
+		assertEquals("a was used after b", misses, cache.getMisses());
+		cache.get(b);
+		assertEquals("b was evicted", misses + 1, cache.getMisses());
+	}
+
+	@Test
+	public void sharedImageIsCopiedBeforeTheFirstWrite() throws Exception {
+		String path = writeImage("shared.png", 40, 30);
+		PLPImage written = new PLPImage("written");
+		written.loadImage(path);
+		PLPImage other = new PLPImage("other");
+		other.loadImage(path);
+		assertTrue(written.isShared());
+		assertSame(written.getPixels(), other.getPixels());
+
+		int before = other.getPixel(3, 2);
+		written.setPixel(3, 2, ~before);
+		assertFalse(written.isShared());
+		assertNotSame(written.getPixels(), other.getPixels());
+		assertEquals(~before & 0xffffff, written.getPixel(3, 2) & 0xffffff);
+		assertEquals(before, other.getPixel(3, 2));
+		assertEquals(before & 0xffffff, ImageCache.getShared().get(path)
+				.getRGB(3, 2) & 0xffffff);
+
+		// the loops writing the raster directly copy it first too
+		other.ensureImage();
+		assertFalse(other.isShared());
+		assertEquals(before, other.getPixel(3, 2));
+	}
+
+	@Test
+	public void prefetchedSourceIsSubsampledForASmallerTarget()
+			throws Exception {
+		String path = writeImage("large.png", 800, 600);
+		ImageCache cache = new ImageCache(64L << 20);
+		// as when the program starts, before the shape of the image is set
+		cache.prefetch(path);
+		BufferedImage image = cache.get(path, 100, 75);
+		assertTrue(ImageCache.isSubsampled(image));
+		assertTrue(image.getWidth() + "x" + image.getHeight(),
+				image.getWidth() >= 100 && image.getWidth() < 800
+						&& image.getHeight() >= 75 && image.getHeight() < 600);
+	}
+
+	/**
+	 * Waits for the prefetched loads of cache to complete.
+	 */
+	private static void awaitPrefetches(ImageCache cache) throws Exception {
+		for (int i = 0; cache.getPendingPrefetches() != 0; i++) {
+			assertTrue("prefetch still running", i < 1000);
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void completedPrefetchIsACacheEntry() throws Exception {
+		String path = writeImage("source.png", 40, 30);
+		ImageCache cache = new ImageCache(64L << 20);
+		cache.prefetch(path);
+		awaitPrefetches(cache);
+		assertEquals(4L * 40 * 30, cache.getBytes());
+
+		// the entry is checked against the file like any other
+		writeImage("source.png", 50, 20);
+		BufferedImage image = cache.get(path);
+		assertEquals(50, image.getWidth());
+		assertEquals(20, image.getHeight());
+	}
+
+	@Test
+	public void prefetchDoesNotExceedTheCacheBound() throws Exception {
+		String path = writeImage("source.png", 40, 30);
+		ImageCache cache = new ImageCache(1000);
+		cache.prefetch(path);
+		awaitPrefetches(cache);
+		assertEquals(0, cache.getBytes());
+		assertEquals(40, cache.get(path).getWidth());
+	}
+}
@@ -0,0 +1,101 @@
+package cop5555fa13.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * PLPTasks must execute every task, and none of those not started once one
+ * has thrown, and must not return before the tasks running have completed.
+ */
+public class PLPTasksTest {
+
+	private static MethodHandle handle(Runnable task) throws Exception {
+		return MethodHandles
+				.lookup()
+				.findVirtual(Runnable.class, "run",
+						MethodType.methodType(void.class)).bindTo(task);
+	}
+
+	/**
+	 * A task that counts how many tasks are executing, and how many have
+	 * completed.
+	 */
+	private static class Sleeper implements Runnable {
+		private final AtomicInteger running;
+		private final AtomicInteger completed;
+
+		Sleeper(AtomicInteger running, AtomicInteger completed) {
+			this.running = running;
+			this.completed = completed;
+		}
+
+		@Override
+		public void run() {
+			running.incrementAndGet();
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				running.decrementAndGet();
+				completed.incrementAndGet();
+			}
+		}
+	}
+
+	@Test
+	public void runsEveryTask() throws Exception {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger completed = new AtomicInteger();
+		MethodHandle[] tasks = new MethodHandle[20];
+		for (int i = 0; i != tasks.length; i++) {
+			tasks[i] = handle(new Sleeper(running, completed));
+		}
+		PLPTasks.run(tasks);
+		assertEquals(tasks.length, completed.get());
+	}
+
+	@Test
+	public void failureStopsTasksNotStarted() throws Exception {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger completed = new AtomicInteger();
+		// many more tasks than workers, so that most have not started when
+		// the first one throws
+		MethodHandle[] tasks = new MethodHandle[8 * PLPKernel.getPool()
+				.getParallelism() + 8];
+		tasks[0] = handle(new Runnable() {
+			@Override
+			public void run() {
+				// once the workers are executing other tasks
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new IllegalStateException("task failed");
+			}
+		});
+		for (int i = 1; i != tasks.length; i++) {
+			tasks[i] = handle(new Sleeper(running, completed));
+		}
+		try {
+			PLPTasks.run(tasks);
+			fail("the exception of the task was not rethrown");
+		} catch (IllegalStateException e) {
+			// the pool may rethrow a copy with the original as its cause
+			assertTrue(e.getMessage(), e.getMessage().contains("task failed"));
+		}
+		assertEquals("tasks still running after run returned", 0,
+				running.get());
+		assertTrue(completed.get() + " of " + (tasks.length - 1)
+				+ " tasks executed", completed.get() < tasks.length - 1);
+	}
+}
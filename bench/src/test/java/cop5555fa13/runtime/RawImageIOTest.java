@@ -0,0 +1,125 @@
+package cop5555fa13.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * RawImageIO must read back the pixels it wrote, whatever the stride of the
+ * image written, and reject files that are not whole raw images.
+ */
+public class RawImageIOTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * @return a PLPImage of width x height pixels whose rows are stride ints
+	 *         apart in its raster
+	 */
+	private static PLPImage stridedImage(int width, int height, int stride) {
+		BufferedImage parent = new BufferedImage(stride, height,
+				BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y != height; y++) {
+			for (int x = 0; x != stride; x++) {
+				parent.setRGB(x, y, x * 0x10305 + y * 0x20001);
+			}
+		}
+		PLPImage image = new PLPImage("strided");
+		image.image = parent.getSubimage(0, 0, width, height);
+		image.pixels = ((DataBufferInt) parent.getRaster().getDataBuffer())
+				.getData();
+		image.stride = stride;
+		image.width = width;
+		image.height = height;
+		return image;
+	}
+
+	private File writeRaw(PLPImage image) throws IOException {
+		File file = new File(folder.getRoot(), "image" + RawImageIO.EXTENSION);
+		RawImageIO.write(image, file);
+		return file;
+	}
+
+	private static void assertRejected(File file, String message) {
+		try {
+			RawImageIO.read(file);
+			fail(file + " was read");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		PLPImage image = stridedImage(7, 5, 7);
+		BufferedImage read = RawImageIO.read(writeRaw(image));
+		assertEquals(7, read.getWidth());
+		assertEquals(5, read.getHeight());
+		for (int y = 0; y != 5; y++) {
+			for (int x = 0; x != 7; x++) {
+				assertEquals(image.getPixel(x, y), read.getRGB(x, y));
+			}
+		}
+	}
+
+	@Test
+	public void roundTripWithStrideLargerThanWidth() throws Exception {
+		PLPImage image = stridedImage(7, 5, 11);
+		BufferedImage read = RawImageIO.read(writeRaw(image));
+		assertEquals(7, read.getWidth());
+		assertEquals(5, read.getHeight());
+		for (int y = 0; y != 5; y++) {
+			for (int x = 0; x != 7; x++) {
+				assertEquals(x + "," + y, image.image.getRGB(x, y),
+						read.getRGB(x, y));
+			}
+		}
+	}
+
+	@Test
+	public void truncatedFileIsRejected() throws Exception {
+		File file = writeRaw(stridedImage(7, 5, 7));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 4);
+		} finally {
+			raf.close();
+		}
+		assertRejected(file, "Truncated");
+	}
+
+	@Test
+	public void badMagicIsRejected() throws Exception {
+		File file = writeRaw(stridedImage(7, 5, 7));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.writeInt(RawImageIO.MAGIC + 1);
+		} finally {
+			raf.close();
+		}
+		assertRejected(file, "Not a raw image");
+	}
+
+	@Test
+	public void fileShorterThanTheHeaderIsRejected() throws Exception {
+		File file = new File(folder.getRoot(), "short" + RawImageIO.EXTENSION);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.writeInt(RawImageIO.MAGIC);
+		} finally {
+			raf.close();
+		}
+		assertRejected(file, "Not a raw image");
+	}
+}
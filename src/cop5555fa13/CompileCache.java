@@ -0,0 +1,266 @@
+package cop5555fa13;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * A directory of compiled programs, shared by the compiler processes given
+ * -cache=DIR, so that compiling a source compiled before only reads a file.
+ * An entry holds the class generated for a program, or the diagnostics
+ * printed for a source that does not compile. It is named by its key, the
+ * SHA-256 of the version of the compiler, of the options changing the
+ * generated class and of the source, and stored in the subdirectory named
+ * by the first two digits of the key.
+ *
+ * An entry is written to a temporary file in its subdirectory, then renamed
+ * to its name atomically, so that a reader sees all of an entry or nothing.
+ * Processes writing the same entry at once write the same bytes, and the
+ * last rename wins. An entry that cannot be read, or is for another key, is
+ * a miss. Entries are never removed: delete the directory to empty the
+ * cache.
+ */
+public class CompileCache {
+
+	/**
+	 * A compiled program, or the diagnostics of a source that does not
+	 * compile.
+	 */
+	public static class Entry {
+		/** name of the class, or null if the source does not compile */
+		public final String className;
+		public final byte[] classFile;
+		/** text printed for the errors of the source, or "" */
+		public final String diagnostics;
+
+		public Entry(String className, byte[] classFile) {
+			this(className, classFile, "");
+		}
+
+		public Entry(String diagnostics) {
+			this(null, null, diagnostics);
+		}
+
+		private Entry(String className, byte[] classFile, String diagnostics) {
+			this.className = className;
+			this.classFile = classFile;
+			this.diagnostics = diagnostics;
+		}
+	}
+
+	/** "PLPC", then the version of the format */
+	private static final int MAGIC = 0x504c5043;
+	private static final int FORMAT = 1;
+
+	private static String compilerVersion;
+
+	private final File dir;
+
+	public CompileCache(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * @return the key of the entry for source compiled with options, or
+	 *         null if the version of the compiler cannot be determined
+	 */
+	public static String key(String source, CompilerOptions options) {
+		String version = compilerVersion();
+		if (version == null) {
+			return null;
+		}
+		return PLPEngine.sha256(version + "\n" + options.codeGenFlags() + "\n"
+				+ source);
+	}
+
+	private File file(String key) {
+		return new File(new File(dir, key.substring(0, 2)), key + ".plpc");
+	}
+
+	/**
+	 * @return the entry with the given key, or null if there is none or it
+	 *         cannot be read
+	 */
+	public Entry get(String key) {
+		File file = file(key);
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != FORMAT
+						|| !in.readUTF().equals(key)) {
+					return null;
+				}
+				String className = in.readUTF();
+				String diagnostics = new String(readBytes(in),
+						StandardCharsets.UTF_8);
+				byte[] classFile = readBytes(in);
+				if (in.read() != -1) {
+					return null;
+				}
+				if (className.isEmpty()) {
+					return new Entry(diagnostics);
+				}
+				return new Entry(className, classFile, diagnostics);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// truncated, or removed meanwhile
+			return null;
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			throw new EOFException();
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Stores entry under key, replacing any entry with the same key. Errors
+	 * are reported on System.err, and leave the cache without the entry.
+	 */
+	public void put(String key, Entry entry) {
+		File file = file(key);
+		File parent = file.getParentFile();
+		File temp = null;
+		try {
+			if (!parent.isDirectory() && !parent.mkdirs()
+					&& !parent.isDirectory()) {
+				throw new IOException("cannot create " + parent);
+			}
+			temp = File.createTempFile(key.substring(0, 16) + ".", ".tmp",
+					parent);
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				DataOutputStream data = new DataOutputStream(
+						new BufferedOutputStream(out));
+				data.writeInt(MAGIC);
+				data.writeInt(FORMAT);
+				data.writeUTF(key);
+				data.writeUTF(entry.className == null ? "" : entry.className);
+				byte[] diagnostics = entry.diagnostics
+						.getBytes(StandardCharsets.UTF_8);
+				data.writeInt(diagnostics.length);
+				data.write(diagnostics);
+				byte[] classFile = entry.classFile == null ? new byte[0]
+						: entry.classFile;
+				data.writeInt(classFile.length);
+				data.write(classFile);
+				data.flush();
+				// on disk before it can be found under its name
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("cannot write compile cache entry " + file
+					+ ": " + e);
+		} finally {
+			if (temp != null) {
+				// left only if the move failed
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return the SHA-256 of the class files of the compiler and of ASM,
+	 *         which changes whenever either is rebuilt differently, or null
+	 *         if they cannot be read
+	 */
+	static synchronized String compilerVersion() {
+		if (compilerVersion == null) {
+			MessageDigest digest = PLPEngine.newSha256();
+			try {
+				Set<File> hashed = new LinkedHashSet<File>();
+				hashClasses(digest, Compiler.class, hashed);
+				hashClasses(digest, ClassWriter.class, hashed);
+			} catch (IOException | URISyntaxException
+					| IllegalArgumentException e) {
+				return null;
+			}
+			compilerVersion = PLPEngine.toHex(digest.digest());
+		}
+		return compilerVersion;
+	}
+
+	/**
+	 * Adds the jar containing c, or the class files of the packages under the
+	 * package of c in the directory containing it, to digest, unless hashed
+	 * contains it. Generated classes written in the same directory, which are
+	 * in the unnamed package, are left out.
+	 */
+	private static void hashClasses(MessageDigest digest, Class<?> c,
+			Set<File> hashed) throws IOException, URISyntaxException {
+		CodeSource source = c.getProtectionDomain().getCodeSource();
+		URL location = source == null ? null : source.getLocation();
+		if (location == null) {
+			throw new IOException("no location for " + c.getName());
+		}
+		File file = new File(location.toURI());
+		if (file.isDirectory()) {
+			file = new File(file, c.getPackage().getName().replace('.', '/'));
+		}
+		if (hashed.add(file)) {
+			hashFile(digest, file, file.getName());
+		}
+	}
+
+	private static void hashFile(MessageDigest digest, File file, String path)
+			throws IOException {
+		digest.update(path.getBytes(StandardCharsets.UTF_8));
+		if (file.isDirectory()) {
+			String[] names = file.list();
+			if (names == null) {
+				throw new IOException("cannot list " + file);
+			}
+			Arrays.sort(names);
+			for (String name : names) {
+				File child = new File(file, name);
+				if (child.isDirectory() || name.endsWith(".class")) {
+					hashFile(digest, child, path + "/" + name);
+				}
+			}
+			return;
+		}
+		byte[] buffer = new byte[1 << 16];
+		InputStream in = new FileInputStream(file);
+		try {
+			for (int n; (n = in.read(buffer)) != -1;) {
+				digest.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package cop5555fa13;
+
+import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandle;
+import java.util.Map;
+
+import cop5555fa13.runtime.FrameSink;
+import cop5555fa13.runtime.RunContext;
+
+/**
+ * A program compiled by PLPEngine, which can be run any number of times,
+ * concurrently or not. Each run executes a new instance of the generated
+ * class, with its own variables and images.
+ */
+public class CompiledProgram {
+
+	private final String name;
+	private final String sourceHash;
+	/** creates an instance of the generated class, with type ()Runnable */
+	private final MethodHandle constructor;
+
+	CompiledProgram(String name, String sourceHash, MethodHandle constructor) {
+		this.name = name;
+		this.sourceHash = sourceHash;
+		this.constructor = constructor;
+	}
+
+	/**
+	 * @return the name of the program
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the SHA-256 of the source, in hexadecimal, under which the
+	 *         engine caches the program
+	 */
+	public String getSourceHash() {
+		return sourceHash;
+	}
+
+	/**
+	 * Runs the program on the calling thread, and returns when it completes.
+	 *
+	 * @param inputs
+	 *            images by the file or URL the program loads them from, which
+	 *            are used instead of reading the file or URL; may be null
+	 * @param frameSink
+	 *            receives every update of the frame of a visible image of the
+	 *            run, on the thread executing the statement, or null to
+	 *            discard them
+	 */
+	public void run(Map<String, BufferedImage> inputs, FrameSink frameSink) {
+		// the images created by the program belong to the context
+		RunContext previous = new RunContext(inputs, frameSink).enter();
+		try {
+			Runnable program = (Runnable) constructor.invokeExact();
+			program.run();
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		} finally {
+			RunContext.exit(previous);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name + " " + sourceHash;
+	}
+}
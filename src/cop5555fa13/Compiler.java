@@ -1,15 +1,21 @@
 package cop5555fa13;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 import cop5555fa13.Parser.SyntaxException;
 import cop5555fa13.TokenStream.LexicalException;
 import cop5555fa13.ast.CodeGenVisitor;
+import cop5555fa13.ast.InterpreterVisitor;
+import cop5555fa13.ast.Optimizer;
 import cop5555fa13.ast.Program;
 import cop5555fa13.ast.TypeCheckVisitor;
 
@@ -22,6 +28,38 @@ public class Compiler {
 		}
 	}
 
+	/**
+	 * @return the text of the source file, read with the default charset
+	 */
+	private static String readSource(String fileName) throws IOException {
+		Reader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			StringBuilder source = new StringBuilder();
+			char[] buffer = new char[8192];
+			for (int n; (n = reader.read(buffer)) != -1;) {
+				source.append(buffer, 0, n);
+			}
+			return source.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Records the message of e, an error of the source being compiled, in
+	 * cache as it is printed by main.
+	 * 
+	 * @return e
+	 */
+	private static CompilerErrorException cacheError(CompileCache cache,
+			String key, CompilerErrorException e) {
+		if (cache != null) {
+			cache.put(key, new CompileCache.Entry("Compiler error: "
+					+ e.getMessage() + "\n"));
+		}
+		return e;
+	}
+
 	/**
 	 * @param args
 	 * @throws Exception
@@ -31,59 +69,119 @@ public class Compiler {
 
 		byte[] byteCode;
 		String name;
+		CompilerOptions runtimeOptions;
+		Program program;
+		// messages go to standard error when the frames are written to
+		// standard output
+		PrintStream messages = System.out;
 
 		try {
-			if (args.length == 0) {
+			// options come before the name of the source file
+			CompilerOptions options = new CompilerOptions();
+			String fileName = null;
+			for (String a : args) {
+				if (a.startsWith("-")) {
+					options.set(a);
+				} else {
+					fileName = a;
+				}
+			}
+			runtimeOptions = options;
+			if (options.framesOnStandardOutput()) {
+				messages = System.err;
+			}
+			if (fileName == null) {
 				throw new CompilerErrorException("missing file");
 			}
-			BufferedReader inputReader = null;
+			String source;
 			try {
-				inputReader = new BufferedReader(new FileReader(args[0]));
+				source = readSource(fileName);
 			} catch (FileNotFoundException e) {
 				throw new CompilerErrorException("error:  file not found");
 			}
 
-			TokenStream stream = new TokenStream(inputReader);
-
-			Scanner s = new Scanner(stream);
-			Program prog = null;
-
-			try {
-				s.scan();
-			} catch (LexicalException e) {
-				throw new CompilerErrorException("scan error");
-			}
-			Parser p = new Parser(stream);
-			prog = p.parse();
-			if (!p.getErrorList().isEmpty()) {
-				for(SyntaxException e : p.errorList) {
-					System.out.println(e.toString() + e.t.toString());
+			// a program compiled before is read from the cache instead,
+			// with the errors printed for a source that does not compile
+			CompileCache cache = null;
+			String key = null;
+			if (options.cacheDir != null && !options.interpret) {
+				key = CompileCache.key(source, options);
+				if (key != null) {
+					cache = new CompileCache(new File(options.cacheDir));
 				}
+			}
+			CompileCache.Entry cached = cache == null ? null : cache.get(key);
+			if (cached != null && cached.className == null) {
+				messages.print(cached.diagnostics);
 				return;
 			}
 
-			// we have a syntactically correct program and its AST.
-			TypeCheckVisitor typeChecker = new TypeCheckVisitor();
+			if (cached != null) {
+				name = cached.className;
+				byteCode = cached.classFile;
+				program = null;
+			} else {
+				TokenStream stream = new TokenStream(source);
+
+				Scanner s = new Scanner(stream);
+				Program prog = null;
+
+				try {
+					s.scan();
+				} catch (LexicalException e) {
+					throw cacheError(cache, key, new CompilerErrorException(
+							"scan error"));
+				}
+				Parser p = new Parser(stream);
+				prog = p.parse();
+				if (!p.getErrorList().isEmpty()) {
+					StringBuilder diagnostics = new StringBuilder();
+					for(SyntaxException e : p.errorList) {
+						diagnostics.append(e.toString() + e.t.toString())
+								.append('\n');
+					}
+					messages.print(diagnostics);
+					if (cache != null) {
+						cache.put(key, new CompileCache.Entry(diagnostics
+								.toString()));
+					}
+					return;
+				}
 
-			prog.visit(typeChecker, null);
-			if (!typeChecker.getErrorNodeList().isEmpty()) {
+				// we have a syntactically correct program and its AST.
+				TypeCheckVisitor typeChecker = new TypeCheckVisitor();
 
-				throw new CompilerErrorException("type checking error\n"
-						+ typeChecker.getLog());
-			}
+				prog.visit(typeChecker, null);
+				if (!typeChecker.getErrorNodeList().isEmpty()) {
 
-			// we have a correctly typed program and its AST
-			CodeGenVisitor codeGenerator = new CodeGenVisitor();
-			byteCode = (byte[]) prog.visit(codeGenerator, null);
-			name = prog.getProgName();
-			FileOutputStream f;
-			String classFileName = name + ".class";
-			System.out.println("writing class " + classFileName);
-			f = new FileOutputStream(classFileName);
-			f.write(byteCode);
-			f.close();
+					throw cacheError(cache, key, new CompilerErrorException(
+							"type checking error\n" + typeChecker.getLog()));
+				}
+
+				// we have a correctly typed program and its AST
+				Optimizer.optimize(prog, options);
+				program = prog;
+				name = prog.getProgName();
+				if (options.interpret) {
+					byteCode = null;
+				} else {
+					CodeGenVisitor codeGenerator = new CodeGenVisitor(options);
+					byteCode = (byte[]) prog.visit(codeGenerator, null);
+					if (cache != null) {
+						cache.put(key, new CompileCache.Entry(name, byteCode));
+					}
+				}
+			}
+			if (byteCode != null) {
+				FileOutputStream f;
+				String classFileName = name + ".class";
+				messages.println("writing class " + classFileName);
+				f = new FileOutputStream(classFileName);
+				f.write(byteCode);
+				f.close();
+			}
 		} catch (Exception e) {
-			System.out.println("Compiler error: " + e.getMessage());
+			messages.println("Compiler error: " + e.getMessage());
 			e.printStackTrace();
 			return;
 		}
@@ -94,6 +192,21 @@ public class Compiler {
 		 * guarantees. Feel free to comment it out.
 		 */
 
+		runtimeOptions.applyRuntimeProperties();
+		if (runtimeOptions.interpret) {
+			try {
+				program.visit(new InterpreterVisitor(runtimeOptions), null);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		try {
+			runtimeOptions.checkLoadable();
+		} catch (CompilerErrorException e) {
+			messages.println("cannot run " + name + ": " + e.getMessage());
+			return;
+		}
 		COP5555fa13ClassLoader cl = new COP5555fa13ClassLoader();
 		Class c = cl.defineClass(name, byteCode);
 		try {
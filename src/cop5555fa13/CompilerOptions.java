@@ -0,0 +1,312 @@
+package cop5555fa13;
+
+/**
+ * Options controlling how the compiler translates a program. The options are
+ * given on the command line of Compiler before the name of the source file.
+ *
+ * <pre>
+ * -parallel     run whole-image pixel assignments as row bands on a fork-join pool
+ * -tasks        run independent groups of statements containing whole-image
+ *               assignments concurrently on a fork-join pool; when one
+ *               throws, those running complete before the program stops
+ * -tile=N       traverse whole-image assignments in N x N tiles
+ * -columnmajor  traverse whole-image assignments column by column, as in
+ *               earlier versions, for comparison
+ * -vector       compute whole-image assignments with the Vector API, several
+ *               pixels at a time; running the classes needs
+ *               --add-modules jdk.incubator.vector
+ * -instance    generate the variables and images as instance fields and the
+ *               program as the run() of a Runnable, so that instances of one
+ *               class can run concurrently; main runs a new instance
+ * -interpret   execute the program by walking its AST instead of generating
+ *               a class file
+ * -tier=N       when interpreting, compile a whole-image assignment once it
+ *               has computed N pixels and a while loop once it has iterated
+ *               N times; 0 never compiles (default 10000)
+ * -nooutline    generate the loops of whole-image assignments in the method
+ *               executing the statement instead of a method of their own
+ * -nosplit      do not move statements to methods of their own when a method
+ *               would be too large for the JIT
+ * -nofold       do not fold constants and simplify expressions
+ * -nofuse       do not compute whole-image assignments in the loops of the
+ *               assignment that reads them
+ * -nocse        do not share common subexpressions of expressions and pixels
+ * -nolicm       do not move invariant subexpressions out of the loops of
+ *               whole-image assignments
+ * -noprefetch   do not start loading image files and URLs when the program
+ *               starts, only when their assignment is executed
+ * -cache=DIR    keep the classes compiled, and the errors of sources that
+ *               do not compile, in the directory DIR, and reuse them when
+ *               the same source is compiled again with the same compiler
+ *               and options
+ * -headless     run the program without opening frames
+ * -framesink=S  in headless mode, write the frames of visible images to S,
+ *               one of png:directory, raw:file or raw:- for standard output,
+ *               in which case messages are printed on standard error
+ * </pre>
+ *
+ * The last two only affect how the compiled program is run, and are passed to
+ * the runtime as the system properties cop5555fa13.headless and
+ * cop5555fa13.framesink.
+ */
+public class CompilerOptions implements Cloneable {
+
+	/**
+	 * Generate whole-image assignments as kernels executed in parallel.
+	 */
+	public boolean parallel;
+
+	/**
+	 * Execute independent groups of statements as concurrent tasks.
+	 */
+	public boolean tasks;
+
+	/**
+	 * Side of the square tiles in which whole-image assignments are
+	 * traversed, or 0 to traverse them row by row.
+	 */
+	public int tileSize;
+
+	/**
+	 * Traverse whole-image assignments with x in the outer loop.
+	 */
+	public boolean columnMajor;
+
+	/**
+	 * Compute the pixels of whole-image assignments with the Vector API when
+	 * their expressions allow it.
+	 */
+	public boolean vector;
+
+	/**
+	 * Keep the state of the program in instance fields, and run it with an
+	 * instance method.
+	 */
+	public boolean instance;
+
+	/**
+	 * Execute the program with InterpreterVisitor instead of generating a
+	 * class.
+	 */
+	public boolean interpret;
+
+	/**
+	 * Iterations, or pixels, after which the interpreter compiles a loop, or 0
+	 * to never compile.
+	 */
+	public int tierThreshold = 10000;
+
+	/**
+	 * Generate the loops of each whole-image assignment as a method of its
+	 * own.
+	 */
+	public boolean outline = true;
+
+	/**
+	 * Move statements to methods of their own when the method containing them
+	 * would be too large.
+	 */
+	public boolean split = true;
+
+	/**
+	 * Fold constant expressions and branches, and simplify arithmetic.
+	 */
+	public boolean fold = true;
+
+	/**
+	 * Compute a whole-image assignment read only at [x,y] by a later one in
+	 * the loops of that one.
+	 */
+	public boolean fuse = true;
+
+	/**
+	 * Evaluate identical subexpressions of an expression or pixel once.
+	 */
+	public boolean cse = true;
+
+	/**
+	 * Evaluate the subexpressions of a whole-image assignment that do not
+	 * depend on x, on y or on both outside of the corresponding loops.
+	 */
+	public boolean licm = true;
+
+	/**
+	 * Start loading every image source named in the program when it starts.
+	 */
+	public boolean prefetch = true;
+
+	/**
+	 * Directory of the CompileCache, or null to compile every time.
+	 */
+	public String cacheDir;
+
+	/**
+	 * Run the program without a display.
+	 */
+	public boolean headless;
+
+	/**
+	 * Where frames go in headless mode, or null to discard them.
+	 */
+	public String frameSink;
+
+	/**
+	 * Sets the option named by the given command line flag.
+	 *
+	 * @param flag
+	 *            command line argument starting with '-'
+	 * @throws CompilerErrorException
+	 *             if the flag is not a known option
+	 */
+	public void set(String flag) throws CompilerErrorException {
+		if (flag.equals("-parallel")) {
+			parallel = true;
+		} else if (flag.equals("-tasks")) {
+			tasks = true;
+		} else if (flag.startsWith("-tile=")) {
+			try {
+				tileSize = Integer.parseInt(flag.substring("-tile=".length()));
+			} catch (NumberFormatException e) {
+				throw new CompilerErrorException("invalid tile size " + flag);
+			}
+			if (tileSize <= 0) {
+				throw new CompilerErrorException("invalid tile size " + flag);
+			}
+		} else if (flag.equals("-columnmajor")) {
+			columnMajor = true;
+		} else if (flag.equals("-vector")) {
+			vector = true;
+		} else if (flag.equals("-instance")) {
+			instance = true;
+		} else if (flag.equals("-interpret")) {
+			interpret = true;
+		} else if (flag.startsWith("-tier=")) {
+			try {
+				tierThreshold = Integer.parseInt(flag.substring("-tier="
+						.length()));
+			} catch (NumberFormatException e) {
+				throw new CompilerErrorException("invalid tier threshold "
+						+ flag);
+			}
+			if (tierThreshold < 0) {
+				throw new CompilerErrorException("invalid tier threshold "
+						+ flag);
+			}
+		} else if (flag.equals("-nooutline")) {
+			outline = false;
+		} else if (flag.equals("-nosplit")) {
+			split = false;
+		} else if (flag.equals("-nofold")) {
+			fold = false;
+		} else if (flag.equals("-nofuse")) {
+			fuse = false;
+		} else if (flag.equals("-nocse")) {
+			cse = false;
+		} else if (flag.equals("-nolicm")) {
+			licm = false;
+		} else if (flag.equals("-noprefetch")) {
+			prefetch = false;
+		} else if (flag.startsWith("-cache=")) {
+			cacheDir = flag.substring("-cache=".length());
+			if (cacheDir.isEmpty()) {
+				throw new CompilerErrorException("invalid cache directory "
+						+ flag);
+			}
+		} else if (flag.equals("-headless")) {
+			headless = true;
+		} else if (flag.startsWith("-framesink=")) {
+			frameSink = flag.substring("-framesink=".length());
+			if (!frameSink.startsWith("png:") && !frameSink.startsWith("raw:")) {
+				throw new CompilerErrorException("invalid frame sink " + flag);
+			}
+		} else {
+			throw new CompilerErrorException("unknown option " + flag);
+		}
+	}
+
+	/**
+	 * @return the flags of the options that change the generated class, in a
+	 *         fixed order, so that options generating the same class give the
+	 *         same string
+	 */
+	public String codeGenFlags() {
+		StringBuilder flags = new StringBuilder();
+		appendFlag(flags, parallel, "-parallel");
+		appendFlag(flags, tasks, "-tasks");
+		appendFlag(flags, tileSize != 0, "-tile=" + tileSize);
+		appendFlag(flags, columnMajor, "-columnmajor");
+		appendFlag(flags, vector, "-vector");
+		appendFlag(flags, instance, "-instance");
+		appendFlag(flags, !outline, "-nooutline");
+		appendFlag(flags, !split, "-nosplit");
+		appendFlag(flags, !fold, "-nofold");
+		appendFlag(flags, !fuse, "-nofuse");
+		appendFlag(flags, !cse, "-nocse");
+		appendFlag(flags, !licm, "-nolicm");
+		appendFlag(flags, !prefetch, "-noprefetch");
+		return flags.toString();
+	}
+
+	private static void appendFlag(StringBuilder flags, boolean set,
+			String flag) {
+		if (set) {
+			if (flags.length() != 0) {
+				flags.append(' ');
+			}
+			flags.append(flag);
+		}
+	}
+
+	/**
+	 * @return options with the same values, that can be changed
+	 *         independently
+	 */
+	public CompilerOptions copy() {
+		try {
+			return (CompilerOptions) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * @return true if the frames are written to standard output, which must
+	 *         then carry nothing else
+	 */
+	public boolean framesOnStandardOutput() {
+		return "raw:-".equals(frameSink);
+	}
+
+	/**
+	 * Checks that this JVM can load the classes generated with these options.
+	 * Generating them needs no more than the compiler, so that a class can be
+	 * compiled, or read from the cache, where it cannot run.
+	 *
+	 * @throws CompilerErrorException
+	 *             if vector is set and the Vector API cannot be loaded
+	 */
+	public void checkLoadable() throws CompilerErrorException {
+		if (vector) {
+			try {
+				Class.forName("jdk.incubator.vector.IntVector");
+			} catch (ClassNotFoundException e) {
+				throw new CompilerErrorException(
+						"-vector needs --add-modules jdk.incubator.vector");
+			}
+		}
+	}
+
+	/**
+	 * Passes the options affecting the execution of the program to the
+	 * runtime. Must be called before the runtime classes are initialized.
+	 */
+	public void applyRuntimeProperties() {
+		if (headless) {
+			System.setProperty("java.awt.headless", "true");
+			System.setProperty("cop5555fa13.headless", "true");
+		}
+		if (frameSink != null) {
+			System.setProperty("cop5555fa13.framesink", frameSink);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package cop5555fa13;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cop5555fa13.Parser.SyntaxException;
+import cop5555fa13.TokenStream.LexicalException;
+import cop5555fa13.ast.CodeGenVisitor;
+import cop5555fa13.ast.Optimizer;
+import cop5555fa13.ast.Program;
+import cop5555fa13.ast.TypeCheckVisitor;
+
+/**
+ * Compiles programs once to run them many times in a long-running process,
+ * without writing class files.
+ *
+ * The class of a program is generated with -instance, so that concurrent
+ * runs don't share its variables and images, and defined as a hidden class
+ * of this package with MethodHandles.Lookup.defineHiddenClass (Java 15 or
+ * later). It is not named by any class loader, and is unloaded once its
+ * CompiledProgram is no longer reachable. The engine keeps the last
+ * programs compiled, by the SHA-256 of their source, and compiling the same
+ * source again returns the same CompiledProgram.
+ *
+ * The options -headless and -framesink of Compiler do not apply: the frames
+ * of a run go to the sink given to CompiledProgram.run.
+ */
+public class PLPEngine {
+
+	/** programs kept by the default engine */
+	public static final int DEFAULT_CACHE_SIZE = 64;
+
+	/** package of the generated classes, that of the lookup defining them */
+	private static final String PACKAGE = "cop5555fa13/";
+
+	private final CompilerOptions options;
+	private final Map<String, CompiledProgram> cache;
+
+	public PLPEngine() {
+		this(new CompilerOptions(), DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param options
+	 *            options for code generation, copied
+	 * @param cacheSize
+	 *            the most compiled programs kept, 0 to keep none
+	 */
+	public PLPEngine(CompilerOptions options, final int cacheSize) {
+		this.options = options.copy();
+		this.options.instance = true;
+		// least recently compiled or looked up first
+		this.cache = new LinkedHashMap<String, CompiledProgram>(16, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, CompiledProgram> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Compiles source, or returns the program compiled from the same source
+	 * if it is still cached.
+	 *
+	 * @param source
+	 *            text of the program
+	 * @throws CompilerErrorException
+	 *             if the program has lexical, syntax or type errors
+	 */
+	public CompiledProgram compile(String source) throws CompilerErrorException {
+		String hash = sha256(source);
+		synchronized (cache) {
+			CompiledProgram program = cache.get(hash);
+			if (program != null) {
+				return program;
+			}
+		}
+		CompiledProgram program = define(analyze(source), hash);
+		synchronized (cache) {
+			// another thread may have compiled the same source meanwhile
+			CompiledProgram cached = cache.get(hash);
+			if (cached != null) {
+				return cached;
+			}
+			cache.put(hash, program);
+		}
+		return program;
+	}
+
+	/**
+	 * Scans, parses, type checks and optimizes source.
+	 */
+	private Program analyze(String source) throws CompilerErrorException {
+		TokenStream stream = new TokenStream(source);
+		try {
+			new Scanner(stream).scan();
+		} catch (LexicalException e) {
+			throw new CompilerErrorException("scan error");
+		}
+		Parser parser = new Parser(stream);
+		Program program;
+		try {
+			program = parser.parse();
+		} catch (SyntaxException e) {
+			throw new CompilerErrorException("syntax error\n" + e.toString()
+					+ e.t.toString());
+		}
+		if (!parser.getErrorList().isEmpty()) {
+			StringBuilder errors = new StringBuilder("syntax error");
+			for (SyntaxException e : parser.getErrorList()) {
+				errors.append('\n').append(e.toString()).append(e.t.toString());
+			}
+			throw new CompilerErrorException(errors.toString());
+		}
+		try {
+			TypeCheckVisitor typeChecker = new TypeCheckVisitor();
+			program.visit(typeChecker, null);
+			if (!typeChecker.getErrorNodeList().isEmpty()) {
+				throw new CompilerErrorException("type checking error\n"
+						+ typeChecker.getLog());
+			}
+			Optimizer.optimize(program, options);
+		} catch (CompilerErrorException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new CompilerErrorException(e.toString());
+		}
+		return program;
+	}
+
+	/**
+	 * Generates the class of program, and defines it as a hidden class.
+	 */
+	private CompiledProgram define(Program program, String hash)
+			throws CompilerErrorException {
+		byte[] classFile;
+		try {
+			classFile = new CodeGenVisitor(options).generateVerifiableClass(
+					program, PACKAGE + program.getProgName());
+		} catch (CompilerErrorException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new CompilerErrorException(e.toString());
+		}
+		options.checkLoadable();
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup()
+					.defineHiddenClass(classFile, false);
+			MethodHandle constructor = lookup.findConstructor(
+					lookup.lookupClass(), MethodType.methodType(void.class));
+			return new CompiledProgram(program.getProgName(), hash,
+					constructor.asType(MethodType.methodType(Runnable.class)));
+		} catch (IllegalAccessException | NoSuchMethodException
+				| LinkageError e) {
+			throw new CompilerErrorException("cannot define class of "
+					+ program.getProgName() + ": " + e);
+		}
+	}
+
+	/**
+	 * @return the SHA-256 of the UTF-8 encoding of text, in hexadecimal
+	 */
+	static String sha256(String text) {
+		return toHex(newSha256().digest(text.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform implements SHA-256
+			throw new AssertionError(e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+					Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
@@ -319,15 +319,11 @@ public class Scanner {
                 if (position < stream.inputChars.length && stream.inputChars[position] == '/') {
                     kind = COMMENT;
 
-                    while (!((stream.inputChars[position] == '\r' && stream.inputChars[++position] == '\n')
-                            || stream.inputChars[position] == '\r'
-                            || stream.inputChars[position] == '\u0085'
-                            || stream.inputChars[position] == '\u2028'
-                            || stream.inputChars[position] == '\u2029' || stream.inputChars[position] == '\u001a')) {
+                    // a comment ends at the end of the line, whether lines end
+                    // with \n, \r\n or \r
+                    while (position < stream.inputChars.length
+                            && !isLineTerminator(stream.inputChars[position])) {
                         ++position;
-                        if (position >= stream.inputChars.length) {
-                            break;
-                        }
                     }
                     return stream.new Token(kind, beginPosition, position);
                 } else {
@@ -478,6 +474,15 @@ public class Scanner {
         }
     }
 
+    /**
+     * @param c
+     * @return true if c ends a line, and thus a comment.
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+                || c == '\u2029' || c == '\u001a';
+    }
+
     /**
      * Validation for the tokens separated from the code. Simple check like well
      * formedness of an expression is executed.
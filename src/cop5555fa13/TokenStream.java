@@ -76,6 +76,14 @@ public class TokenStream{
         return chars;
     }
     
+    /* Returns a token of the given kind and text that does not come from any
+     * program, for nodes created by the optimizer.  Its line number is 1.
+     */
+    public static Token makeToken(Kind kind, String text) {
+        TokenStream stream = new TokenStream(text);
+        return stream.new Token(kind, 0, text.length());
+    }
+
     public int getLineNumber(int pos){
         int insPt = Arrays.binarySearch(lineBreaks, pos);
         int lineNum = Math.abs(insPt + 1);
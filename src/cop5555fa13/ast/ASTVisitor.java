@@ -53,4 +53,8 @@ public interface ASTVisitor {
 
 	Object visitAssignExprStmt(AssignExprStmt assignExprStmt, Object arg) throws Exception;
 
+	Object visitTempExpr(TempExpr tempExpr, Object arg) throws Exception;
+
+	Object visitParallelStmt(ParallelStmt parallelStmt, Object arg) throws Exception;
+
 }
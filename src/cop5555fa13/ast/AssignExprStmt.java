@@ -4,7 +4,7 @@ import cop5555fa13.TokenStream.Token;
 
 public class AssignExprStmt extends AssignStmt {
 	final Token lhsIdent;
-	final Expr expr;
+	Expr expr;
 	public AssignExprStmt(Token lhsIdent, Expr expr) {
 		super();
 		this.lhsIdent = lhsIdent;
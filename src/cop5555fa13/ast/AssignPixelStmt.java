@@ -1,5 +1,8 @@
 package cop5555fa13.ast;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import cop5555fa13.TokenStream.Token;
 
 public class AssignPixelStmt extends AssignStmt {
@@ -7,6 +10,18 @@ public class AssignPixelStmt extends AssignStmt {
 	final Token lhsIdent;
 	final Pixel pixel;
 	boolean ispixel;
+
+	// subexpressions of a whole-image assignment moved out of the loops by
+	// LoopInvariantVisitor: those that depend on neither x nor y, on y only
+	// and on x only, evaluated in this order
+	final List<TempExpr> loopInvariants = new ArrayList<TempExpr>();
+	final List<TempExpr> rowInvariants = new ArrayList<TempExpr>();
+	final List<TempExpr> columnInvariants = new ArrayList<TempExpr>();
+
+	// whole-image assignments computed in the loops of this one by
+	// FusionVisitor, and whether their image must still be written
+	final List<AssignPixelStmt> producers = new ArrayList<AssignPixelStmt>();
+	boolean materialize;
 	
 	public AssignPixelStmt(Token lhsIdent, Pixel pixel) {
 		super();
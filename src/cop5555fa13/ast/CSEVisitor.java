@@ -0,0 +1,203 @@
+package cop5555fa13.ast;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Common subexpression elimination. Within each expression of a statement,
+ * and across the three channels of each pixel, identical subexpressions are
+ * replaced by a TempExpr, so that the code generator evaluates them once and
+ * loads the saved value at the other occurrences.
+ *
+ * Expressions have no side effects, so two identical subexpressions of the
+ * same expression have the same value. They may however throw (a division by
+ * zero, a sample out of the image), so an expression is only shared if its
+ * first occurrence in evaluation order is always evaluated, that is, not in a
+ * branch of a conditional expression. It is then evaluated at that same
+ * place, and the other occurrences, conditional or not, come after it.
+ *
+ * The largest shared subexpression is replaced first, then the search is
+ * repeated on the rewritten expression, so that a subexpression of a shared
+ * expression that also occurs elsewhere is shared as well.
+ */
+public class CSEVisitor extends TraversalVisitor {
+
+	private Program program;
+
+	private static class Occurrence {
+		final Expr expr;
+		final boolean conditional;
+		final int size;
+
+		Occurrence(Expr expr, boolean conditional, int size) {
+			this.expr = expr;
+			this.conditional = conditional;
+			this.size = size;
+		}
+	}
+
+	@Override
+	public Object visitProgram(Program program, Object arg) throws Exception {
+		this.program = program;
+		return super.visitProgram(program, arg);
+	}
+
+	@Override
+	public Object visitPixel(Pixel pixel, Object arg) throws Exception {
+		Expr[] channels = eliminate(new Expr[] { pixel.redExpr,
+				pixel.greenExpr, pixel.blueExpr });
+		pixel.redExpr = channels[0];
+		pixel.greenExpr = channels[1];
+		pixel.blueExpr = channels[2];
+		return null;
+	}
+
+	// the first composite expression reached from a statement is the root of
+	// an expression; it can't be shared with itself, so it is never replaced
+
+	@Override
+	public Object visitBinaryExpr(BinaryExpr binaryExpr, Object arg)
+			throws Exception {
+		eliminate(new Expr[] { binaryExpr });
+		return null;
+	}
+
+	@Override
+	public Object visitConditionalExpr(ConditionalExpr conditionalExpr,
+			Object arg) throws Exception {
+		eliminate(new Expr[] { conditionalExpr });
+		return null;
+	}
+
+	@Override
+	public Object visitSampleExpr(SampleExpr sampleExpr, Object arg)
+			throws Exception {
+		eliminate(new Expr[] { sampleExpr });
+		return null;
+	}
+
+	/**
+	 * Shares the common subexpressions of the given expressions, evaluated in
+	 * this order.
+	 *
+	 * @return the expressions after replacement
+	 */
+	private Expr[] eliminate(Expr[] roots) {
+		while (true) {
+			Map<String, List<Occurrence>> occurrences = new LinkedHashMap<String, List<Occurrence>>();
+			for (Expr root : roots) {
+				collect(root, false, occurrences);
+			}
+			List<Occurrence> best = null;
+			for (List<Occurrence> list : occurrences.values()) {
+				if (list.size() >= 2 && !list.get(0).conditional
+						&& (best == null || list.get(0).size > best.get(0).size)) {
+					best = list;
+				}
+			}
+			if (best == null) {
+				return roots;
+			}
+			int id = program.tempCount++;
+			IdentityHashMap<Expr, Expr> replacements = new IdentityHashMap<Expr, Expr>();
+			Expr first = best.get(0).expr;
+			replacements.put(first, new TempExpr(id, first, first.type));
+			for (Occurrence o : best.subList(1, best.size())) {
+				replacements.put(o.expr, new TempExpr(id, null, o.expr.type));
+			}
+			for (int i = 0; i != roots.length; i++) {
+				roots[i] = rewrite(roots[i], replacements);
+			}
+		}
+	}
+
+	/**
+	 * Records the subexpressions of expr that can be shared, in evaluation
+	 * order, keyed by their text.
+	 *
+	 * @return the key of expr
+	 */
+	private String collect(Expr expr, boolean conditional,
+			Map<String, List<Occurrence>> occurrences) {
+		String key;
+		if (expr instanceof BinaryExpr) {
+			BinaryExpr b = (BinaryExpr) expr;
+			key = "(" + collect(b.e0, conditional, occurrences) + " "
+					+ b.op.getText() + " "
+					+ collect(b.e1, conditional, occurrences) + ")";
+		} else if (expr instanceof ConditionalExpr) {
+			ConditionalExpr c = (ConditionalExpr) expr;
+			key = "(" + collect(c.condition, conditional, occurrences) + " ? "
+					+ collect(c.trueValue, true, occurrences) + " : "
+					+ collect(c.falseValue, true, occurrences) + ")";
+		} else if (expr instanceof SampleExpr) {
+			SampleExpr s = (SampleExpr) expr;
+			key = s.ident.getText() + "["
+					+ collect(s.xLoc, conditional, occurrences) + ","
+					+ collect(s.yLoc, conditional, occurrences) + "]"
+					+ s.color.getText();
+		} else if (expr instanceof TempExpr) {
+			TempExpr t = (TempExpr) expr;
+			if (t.isDefinition()) {
+				collect(t.expr, conditional, occurrences);
+			}
+			return "#t" + t.id;
+		} else {
+			return leafKey(expr);
+		}
+		List<Occurrence> list = occurrences.get(key);
+		if (list == null) {
+			list = new ArrayList<Occurrence>();
+			occurrences.put(key, list);
+		}
+		list.add(new Occurrence(expr, conditional, key.length()));
+		return key;
+	}
+
+	private static String leafKey(Expr expr) {
+		if (expr instanceof IdentExpr) {
+			return ((IdentExpr) expr).ident.getText();
+		} else if (expr instanceof IntLitExpr) {
+			return ((IntLitExpr) expr).intLit.getText();
+		} else if (expr instanceof BooleanLitExpr) {
+			return ((BooleanLitExpr) expr).booleanLit.getText();
+		} else if (expr instanceof PreDefExpr) {
+			return ((PreDefExpr) expr).constantLit.getText();
+		} else if (expr instanceof ImageAttributeExpr) {
+			ImageAttributeExpr a = (ImageAttributeExpr) expr;
+			return a.ident.getText() + "." + a.selector.getText();
+		}
+		throw new IllegalArgumentException("unexpected expression " + expr);
+	}
+
+	private static Expr rewrite(Expr expr,
+			IdentityHashMap<Expr, Expr> replacements) {
+		Expr replacement = replacements.get(expr);
+		if (replacement != null) {
+			return replacement;
+		}
+		if (expr instanceof BinaryExpr) {
+			BinaryExpr b = (BinaryExpr) expr;
+			b.e0 = rewrite(b.e0, replacements);
+			b.e1 = rewrite(b.e1, replacements);
+		} else if (expr instanceof ConditionalExpr) {
+			ConditionalExpr c = (ConditionalExpr) expr;
+			c.condition = rewrite(c.condition, replacements);
+			c.trueValue = rewrite(c.trueValue, replacements);
+			c.falseValue = rewrite(c.falseValue, replacements);
+		} else if (expr instanceof SampleExpr) {
+			SampleExpr s = (SampleExpr) expr;
+			s.xLoc = rewrite(s.xLoc, replacements);
+			s.yLoc = rewrite(s.yLoc, replacements);
+		} else if (expr instanceof TempExpr) {
+			TempExpr t = (TempExpr) expr;
+			if (t.isDefinition()) {
+				t.expr = rewrite(t.expr, replacements);
+			}
+		}
+		return expr;
+	}
+}
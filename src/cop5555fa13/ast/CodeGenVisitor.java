@@ -3,21 +3,123 @@ package cop5555fa13.ast;
 import static cop5555fa13.TokenStream.Kind.*;
 import static cop5555fa13.TokenStream.Kind;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
 import cop5555fa13.CompilerErrorException;
+import cop5555fa13.CompilerOptions;
 import cop5555fa13.runtime.*;
 
 public class CodeGenVisitor implements ASTVisitor, Opcodes {
 
 	private ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
 	private String progName;
+	private final CompilerOptions options;
+	private final CodeSizeVisitor codeSize;
+	private int taskCount = 0;
+
+	public CodeGenVisitor() {
+		this(new CompilerOptions());
+	}
+
+	public CodeGenVisitor(CompilerOptions options) {
+		this.options = options;
+		this.codeSize = new CodeSizeVisitor(options);
+		this.instance = options.instance;
+	}
+
+	/**
+	 * The variables and images are instance fields, and the generated
+	 * methods instance methods with this in slot 0, so that instances of the
+	 * class can run concurrently. Otherwise everything is static.
+	 */
+	private boolean instance;
+
+	/**
+	 * @return access, without ACC_STATIC if the class has instance state
+	 */
+	private int memberAccess(int access) {
+		return instance ? access & ~ACC_STATIC : access;
+	}
+
+	/**
+	 * Reserves slot 0 for this in a method being generated, which must not
+	 * have allocated slots yet.
+	 */
+	private void reserveThis() {
+		if (instance) {
+			getSlot("this");
+		}
+	}
+
+	/**
+	 * Pushes the receiver of a call to a generated method, if any.
+	 */
+	private void loadThis(MethodVisitor mv) {
+		if (instance) {
+			mv.visitVarInsn(ALOAD, getSlot("this"));
+		}
+	}
+
+	private void getField(MethodVisitor mv, String name, String desc) {
+		if (instance) {
+			mv.visitVarInsn(ALOAD, getSlot("this"));
+			mv.visitFieldInsn(GETFIELD, progName, name, desc);
+		} else {
+			mv.visitFieldInsn(GETSTATIC, progName, name, desc);
+		}
+	}
+
+	/**
+	 * Stores the int, boolean or reference on top of the stack to the field.
+	 */
+	private void putField(MethodVisitor mv, String name, String desc) {
+		if (instance) {
+			mv.visitVarInsn(ALOAD, getSlot("this"));
+			mv.visitInsn(SWAP);
+			mv.visitFieldInsn(PUTFIELD, progName, name, desc);
+		} else {
+			mv.visitFieldInsn(PUTSTATIC, progName, name, desc);
+		}
+	}
+
+	/**
+	 * Calls the generated method, whose receiver, if any, has been pushed by
+	 * loadThis before the arguments.
+	 */
+	private void invokeOwn(MethodVisitor mv, String name, String desc) {
+		mv.visitMethodInsn(instance ? INVOKESPECIAL : INVOKESTATIC, progName,
+				name, desc);
+	}
+
+	/**
+	 * Pushes a handle of the given type on the generated method, bound to
+	 * this if it is an instance method.
+	 */
+	private void loadHandle(MethodVisitor mv, String name, String desc) {
+		mv.visitLdcInsn(new Handle(instance ? H_INVOKESPECIAL : H_INVOKESTATIC,
+				progName, name, desc));
+		if (instance) {
+			mv.visitVarInsn(ALOAD, getSlot("this"));
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle",
+					"bindTo",
+					"(Ljava/lang/Object;)Ljava/lang/invoke/MethodHandle;");
+		}
+	}
 
 	private int slot = 0;
 
@@ -33,6 +135,61 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 
 	HashMap<String, Integer> slotMap = new HashMap<String, Integer>();
 
+	/**
+	 * int, boolean and pixel variables of the program, with their types. They
+	 * are declared as fields, but the generated methods keep their
+	 * values in local variables with slot key "var." + name: main for the
+	 * whole program, a kernel for the duration of its rows. A variable is
+	 * only stored to its field when its value is needed outside main: before
+	 * a kernel reading it is run, and when main returns.
+	 */
+	private final Map<String, Kind> scalarVars = new LinkedHashMap<String, Kind>();
+
+	/** images that may alias others, see TaskVisitor.aliasedImages */
+	private Set<String> aliasedImages = Collections.emptySet();
+
+	private static String varKey(String name) {
+		return "var." + name;
+	}
+
+	private void loadVar(MethodVisitor mv, String name) {
+		mv.visitVarInsn(ILOAD, getSlot(varKey(name)));
+	}
+
+	private void storeVar(MethodVisitor mv, String name) {
+		mv.visitVarInsn(ISTORE, getSlot(varKey(name)));
+	}
+
+	/**
+	 * Stores the local copies of the given variables to their fields.
+	 */
+	private void spillVars(MethodVisitor mv, Set<String> names) {
+		for (String name : names) {
+			loadVar(mv, name);
+			putField(mv, name,
+					typeMap.get(scalarVars.get(name)));
+		}
+	}
+
+	/**
+	 * Loads the given variables from their fields into local variables.
+	 */
+	private void fillVars(MethodVisitor mv, Set<String> names) {
+		for (String name : names) {
+			getField(mv, name,
+					typeMap.get(scalarVars.get(name)));
+			storeVar(mv, name);
+		}
+	}
+
+	private void visitVarLocals(MethodVisitor mv, Set<String> names,
+			Label start, Label end) {
+		for (String name : names) {
+			mv.visitLocalVariable(name, typeMap.get(scalarVars.get(name)),
+					null, start, end, getSlot(varKey(name)));
+		}
+	}
+
 	// map to look up JVM types correspondingHashMap<K, V> language
 	static final HashMap<Kind, String> typeMap = new HashMap<Kind, String>();
 	static {
@@ -53,56 +210,164 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		// get name and type
 		String varName = dec.ident.getText();
 		Kind t = dec.type;
-		String jvmType = typeMap.get(t);
-		Object initialValue = (t == _int || t == pixel || t == _boolean) ? Integer
-				.valueOf(0) : null;
-		// add static field to class file for this variable
-		FieldVisitor fv = cw.visitField(ACC_STATIC, varName, jvmType, null,
-				initialValue);
-		fv.visitEnd();
+		if (declareField(dec)) {
+			// the value lives in a local variable of main, starting at 0
+			mv.visitInsn(ICONST_0);
+			storeVar(mv, varName);
+		}
 		// if this is an image, generate code to create an empty image
 		if (t == image) {
 			mv.visitTypeInsn(NEW, PLPImage.className);
 			mv.visitInsn(DUP);
+			mv.visitLdcInsn(varName);
 			mv.visitMethodInsn(INVOKESPECIAL, PLPImage.className, "<init>",
-					"()V");
-			mv.visitFieldInsn(PUTSTATIC, progName, varName, typeMap.get(image));
+					PLPImage.initDesc);
+			putField(mv, varName, typeMap.get(image));
 		}
 		return null;
 	}
 
+	/**
+	 * Adds the field of dec to the class, and records it in
+	 * scalarVars if it holds an int, boolean or pixel.
+	 * 
+	 * @return true if dec is an int, boolean or pixel variable
+	 */
+	private boolean declareField(Dec dec) {
+		String varName = dec.ident.getText();
+		Kind t = dec.type;
+		Object initialValue = (t == _int || t == pixel || t == _boolean) ? Integer
+				.valueOf(0) : null;
+		FieldVisitor fv = cw.visitField(memberAccess(ACC_STATIC), varName,
+				typeMap.get(t),
+				null, initialValue);
+		fv.visitEnd();
+		if (initialValue != null) {
+			scalarVars.put(varName, t);
+		}
+		return initialValue != null;
+	}
+
+	/**
+	 * Generates a class named className, for the interpreter, whose public
+	 * static method run()V executes stmt, a statement of program. The
+	 * variables and images of program are static fields of the class, as in
+	 * the class of the whole program: run reads the variables stmt uses from
+	 * their fields and stores those it assigns back before returning, and
+	 * uses the images in their fields. The class has stack map frames, as
+	 * the class loader of the interpreter verifies it.
+	 * 
+	 * @return the class file
+	 */
+	public byte[] generateStatement(Program program, Stmt stmt,
+			String className) throws Exception {
+
+		cw = new FrameClassWriter();
+		progName = className;
+		// the interpreter exchanges the variables through static fields
+		instance = false;
+		aliasedImages = TaskVisitor.aliasedImages(program);
+		cw.visit(V1_7, ACC_PUBLIC + ACC_SUPER, className, null,
+				"java/lang/Object", null);
+		for (Dec dec : program.decList) {
+			declareField(dec);
+		}
+		List<Stmt> stmts = Collections.singletonList(stmt);
+		Set<String> assigned = collectAssignedVars(stmts);
+		generateStmtsMethod(ACC_PUBLIC + ACC_STATIC, stmts, "run",
+				collectStmtsVars(stmts, assigned), assigned);
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Generates the class of program as visitProgram does, but named
+	 * className and with stack map frames, which the classes defined through
+	 * a MethodHandles.Lookup must have to be verified.
+	 * 
+	 * @return the class file
+	 */
+	public byte[] generateVerifiableClass(Program program, String className)
+			throws Exception {
+		cw = new FrameClassWriter();
+		progName = className;
+		return (byte[]) program.visit(this, null);
+	}
+
+	/**
+	 * Computes the frames of the generated methods. Merging two classes the
+	 * class loader of ASM cannot load, such as those of an incubator module
+	 * it does not read, gives Object.
+	 */
+	private static class FrameClassWriter extends ClassWriter {
+		FrameClassWriter() {
+			super(ClassWriter.COMPUTE_FRAMES);
+		}
+
+		@Override
+		protected String getCommonSuperClass(String type1, String type2) {
+			try {
+				return super.getCommonSuperClass(type1, type2);
+			} catch (RuntimeException e) {
+				return "java/lang/Object";
+			}
+		}
+	}
+
 	@Override
 	public Object visitProgram(Program program, Object arg) throws Exception {
 
 		MethodVisitor mv = (MethodVisitor) arg;
 		String sourceFileName = (String) arg;
-		progName = program.getProgName();
+		if (progName == null) {
+			// not named by generateVerifiableClass
+			progName = program.getProgName();
+		}
+		aliasedImages = TaskVisitor.aliasedImages(program);
 		String superClassName = "java/lang/Object";
 
 		// visit the ClassWriter to set version, attributes, class name and
 		// superclass name
 		cw.visit(V1_7, ACC_PUBLIC + ACC_SUPER, progName, null, superClassName,
-				null);
+				instance ? new String[] { "java/lang/Runnable" } : null);
 		// Optionally, indicate the name of the source file
 		cw.visitSource(sourceFileName, null);
 		// initialize creation of main method
 		String mainDesc = "([Ljava/lang/String;)V";
-		mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC, "main", mainDesc, null,
-				null);
+		if (instance) {
+			// the program is run by run(), main runs a new instance
+			generateInstanceEntryPoints(mainDesc);
+			mv = cw.visitMethod(ACC_PUBLIC, "run", "()V", null, null);
+		} else {
+			mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC, "main", mainDesc,
+					null, null);
+		}
 		mv.visitCode();
 		Label start = new Label();
 		mv.visitLabel(start);
 		mv.visitLineNumber(program.ident.getLineNumber(), start);
+		// the formal parameter, or this, is in slot 0
+		getSlot(instance ? "this" : "args");
+		initCoordinates(mv);
+
+		if (options.prefetch) {
+			// start decoding every image source named in the program, so that
+			// the loads overlap instead of each blocking its statement
+			for (String source : collectImageSources(program)) {
+				mv.visitLdcInsn(source);
+				mv.visitMethodInsn(INVOKESTATIC, PLPImage.className,
+						"prefetchImage", PLPImage.prefetchImageDesc);
+			}
+		}
 
 		// visit children
 		for (Dec dec : program.decList) {
 			dec.visit(this, mv);
 		}
 
-		for (Stmt stmt : program.stmtList) {
-			stmt.visit(this, mv);
-		}
+		generateStmts(program.stmtList, mv);
 
+		// leave the final values of the variables in their fields
+		spillVars(mv, scalarVars.keySet());
 		// add a return statement to the main method
 		mv.visitInsn(RETURN);
 
@@ -111,14 +376,18 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		mv.visitLabel(end);
 		// visit local variables. The one is slot 0 is the formal parameter of
 		// the main method.
-		mv.visitLocalVariable("args", "[Ljava/lang/String;", null, start, end,
-				getSlot("args"));
+		if (instance) {
+			mv.visitLocalVariable("this", "L" + progName + ";", null, start,
+					end, getSlot("this"));
+		} else {
+			mv.visitLocalVariable("args", "[Ljava/lang/String;", null, start,
+					end, getSlot("args"));
+		}
 		mv.visitLocalVariable("x", typeMap.get(Kind._int), null, start, end,
 				getSlot("x"));
 		mv.visitLocalVariable("y", typeMap.get(Kind._int), null, start, end,
 				getSlot("y"));
-		// if there are any more local variables, visit them now.
-		// ......
+		visitVarLocals(mv, scalarVars.keySet(), start, end);
 
 		// finish up method
 		mv.visitMaxs(1, 1);
@@ -127,6 +396,32 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		return cw.toByteArray();
 	}
 
+	/**
+	 * Generates the public no-argument constructor of a class with instance
+	 * state, and a static main that runs a new instance.
+	 */
+	private void generateInstanceEntryPoints(String mainDesc) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null,
+				null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(1, 1);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(ACC_PUBLIC + ACC_STATIC, "main", mainDesc, null,
+				null);
+		mv.visitCode();
+		mv.visitTypeInsn(NEW, progName);
+		mv.visitInsn(DUP);
+		mv.visitMethodInsn(INVOKESPECIAL, progName, "<init>", "()V");
+		mv.visitMethodInsn(INVOKEVIRTUAL, progName, "run", "()V");
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(1, 1);
+		mv.visitEnd();
+	}
+
 	@Override
 	public Object visitAlternativeStmt(AlternativeStmt alternativeStmt,
 			Object arg) throws Exception {
@@ -137,16 +432,11 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		Label elseLabel = new Label();
 		Label endLabel = new Label();
 
-		// visit the expression
-		alternativeStmt.expr.visit(this, mv);
-
 		// check the condition and jump to appropriate label.
-		mv.visitJumpInsn(Opcodes.IFEQ, elseLabel);
+		generateCondition(alternativeStmt.expr, mv, elseLabel, false);
 
 		// visit the statements in if part
-		for (Stmt stmt : alternativeStmt.ifStmtList) {
-			stmt.visit(this, mv);
-		}
+		generateStmts(alternativeStmt.ifStmtList, mv);
 		// jump to end skipping else part.
 		mv.visitJumpInsn(Opcodes.GOTO, endLabel);
 
@@ -154,9 +444,7 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		mv.visitLabel(elseLabel);
 
 		// visit the statements in else part
-		for (Stmt stmt : alternativeStmt.elseStmtList) {
-			stmt.visit(this, mv);
-		}
+		generateStmts(alternativeStmt.elseStmtList, mv);
 		mv.visitLabel(endLabel);
 
 		return null;
@@ -168,140 +456,1560 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 
 		MethodVisitor mv = (MethodVisitor) arg;
 
-		// visit the expressions.
-		pauseStmt.expr.visit(this, mv);
+		// visit the expressions.
+		pauseStmt.expr.visit(this, mv);
+
+		// generate code to update the pixel.
+		mv.visitMethodInsn(INVOKESTATIC, PLPImage.className, "pause",
+				PLPImage.pauseDesc);
+
+		return null;
+	}
+
+	@Override
+	public Object visitIterationStmt(IterationStmt iterationStmt, Object arg)
+			throws Exception {
+		//System.out.println("IterationStmt");
+
+		MethodVisitor mv = (MethodVisitor) arg;
+
+		Label guardLabel = new Label();
+		Label bodyLabel = new Label();
+
+		mv.visitJumpInsn(Opcodes.GOTO, guardLabel);
+		mv.visitLabel(bodyLabel);
+
+		// visit the statements in while loop
+		generateStmts(iterationStmt.stmtList, mv);
+
+		mv.visitLabel(guardLabel);
+
+		// check the condition
+		generateCondition(iterationStmt.expr, mv, bodyLabel, true);
+
+		return null;
+	}
+
+	/**
+	 * Generates each group of a parallel statement as a method with
+	 * signature ()V, and runs them with PLPTasks. A task reads the variables
+	 * it uses from their fields and stores those it assigns back to their
+	 * fields before returning; the groups read and write disjoint variables.
+	 */
+	@Override
+	public Object visitParallelStmt(ParallelStmt parallelStmt, Object arg)
+			throws Exception {
+
+		MethodVisitor mv = (MethodVisitor) arg;
+		Set<String> used = new LinkedHashSet<String>();
+		Set<String> assigned = new LinkedHashSet<String>();
+		List<String> taskNames = new ArrayList<String>();
+		for (List<Stmt> task : parallelStmt.tasks) {
+			String taskName = "task$" + taskCount++;
+			Set<String> taskAssigned = collectAssignedVars(task);
+			Set<String> taskVars = collectStmtsVars(task, taskAssigned);
+			generateStmtsMethod(task, taskName, taskVars, taskAssigned);
+			taskNames.add(taskName);
+			used.addAll(taskVars);
+			assigned.addAll(taskAssigned);
+		}
+
+		// the tasks read the variables from their fields
+		spillVars(mv, used);
+		mv.visitLdcInsn(taskNames.size());
+		mv.visitTypeInsn(ANEWARRAY, "java/lang/invoke/MethodHandle");
+		for (int i = 0; i != taskNames.size(); i++) {
+			mv.visitInsn(DUP);
+			mv.visitLdcInsn(i);
+			loadHandle(mv, taskNames.get(i), PLPTasks.taskDesc);
+			mv.visitInsn(AASTORE);
+		}
+		mv.visitMethodInsn(INVOKESTATIC, PLPTasks.className, "run",
+				PLPTasks.runDesc);
+		fillVars(mv, assigned);
+		return null;
+	}
+
+	/**
+	 * Generates stmts in mv. If their code could make the method larger than
+	 * the JIT compiles, they are split into consecutive parts of about the
+	 * same size, each moved to a method of its own, called in order, and
+	 * split again if still too large. A statement too large for a method
+	 * stays in mv, its statement lists being split in turn.
+	 */
+	private void generateStmts(List<Stmt> stmts, MethodVisitor mv)
+			throws Exception {
+		int size = options.split && stmts.size() > 1 ? codeSize.size(stmts)
+				: 0;
+		if (size <= MAX_METHOD_SIZE) {
+			for (Stmt stmt : stmts) {
+				stmt.visit(this, mv);
+			}
+			return;
+		}
+		int partSize = size / Math.min(MAX_PARTS, size / MAX_METHOD_SIZE + 1);
+		List<Stmt> part = new ArrayList<Stmt>();
+		int size0 = 0;
+		for (Stmt stmt : stmts) {
+			int size1 = codeSize.size(stmt);
+			if (!part.isEmpty() && size0 + size1 > partSize) {
+				generatePart(part, size0, mv);
+				part = new ArrayList<Stmt>();
+				size0 = 0;
+			}
+			part.add(stmt);
+			size0 += size1;
+		}
+		generatePart(part, size0, mv);
+	}
+
+	/**
+	 * methods larger than this, as estimated by codeSize, are not compiled by
+	 * HotSpot
+	 */
+	private static final int MAX_METHOD_SIZE = 8000;
+
+	/** the most parts a statement list is split into at once */
+	private static final int MAX_PARTS = 16;
+
+	private int partCount = 0;
+
+	/**
+	 * Generates part, of the given estimated size, as a method with
+	 * signature ()V and its call in mv, unless it is a single statement too
+	 * large for a method.
+	 */
+	private void generatePart(List<Stmt> part, int size, MethodVisitor mv)
+			throws Exception {
+		if (part.size() == 1 && size > MAX_METHOD_SIZE) {
+			part.get(0).visit(this, mv);
+			return;
+		}
+		String partName = "part$" + partCount++;
+		Set<String> assigned = collectAssignedVars(part);
+		Set<String> vars = collectStmtsVars(part, assigned);
+		generateStmtsMethod(part, partName, vars, assigned);
+		spillVars(mv, vars);
+		loadThis(mv);
+		invokeOwn(mv, partName, "()V");
+		fillVars(mv, assigned);
+	}
+
+	/**
+	 * @return the int, boolean and pixel variables a method executing stmts
+	 *         reads from their fields: those read by stmts, and those
+	 *         assigned, which keep their value on the paths that don't assign
+	 *         them
+	 */
+	private Set<String> collectStmtsVars(List<Stmt> stmts, Set<String> assigned)
+			throws Exception {
+		Set<String> vars = new LinkedHashSet<String>(assigned);
+		for (Stmt stmt : stmts) {
+			vars.addAll(collectVars(stmt));
+		}
+		return vars;
+	}
+
+	/**
+	 * Generates a method with signature ()V executing stmts, that
+	 * reads vars from their fields first and stores assigned to their fields
+	 * before returning.
+	 */
+	private void generateStmtsMethod(List<Stmt> stmts, String methodName,
+			Set<String> vars, Set<String> assigned) throws Exception {
+		generateStmtsMethod(memberAccess(ACC_PRIVATE + ACC_STATIC), stmts,
+				methodName, vars, assigned);
+	}
+
+	private void generateStmtsMethod(int access, List<Stmt> stmts,
+			String methodName, Set<String> vars, Set<String> assigned)
+			throws Exception {
+
+		MethodVisitor mv = cw.visitMethod(access, methodName, "()V", null,
+				null);
+
+		// the method numbers its local variables independently of main
+		HashMap<String, Integer> mainSlotMap = slotMap;
+		int mainSlot = slot;
+		slotMap = new HashMap<String, Integer>();
+		slot = 0;
+		reserveThis();
+
+		mv.visitCode();
+		Label start = new Label();
+		mv.visitLabel(start);
+		initCoordinates(mv);
+		fillVars(mv, vars);
+		generateStmts(stmts, mv);
+		spillVars(mv, assigned);
+		mv.visitInsn(RETURN);
+
+		Label end = new Label();
+		mv.visitLabel(end);
+		visitVarLocals(mv, vars, start, end);
+		mv.visitMaxs(1, 1);
+		mv.visitEnd();
+
+		slotMap = mainSlotMap;
+		slot = mainSlot;
+	}
+
+	/**
+	 * Sets x and y to 0, their value in statements outside the loops of
+	 * whole-image assignments, so that reading them there passes
+	 * verification.
+	 */
+	private void initCoordinates(MethodVisitor mv) {
+		mv.visitInsn(ICONST_0);
+		mv.visitVarInsn(ISTORE, getSlot("x"));
+		mv.visitInsn(ICONST_0);
+		mv.visitVarInsn(ISTORE, getSlot("y"));
+	}
+
+	/**
+	 * @return the int, boolean and pixel variables assigned by stmts
+	 */
+	private Set<String> collectAssignedVars(List<Stmt> stmts) throws Exception {
+		final Set<String> vars = new LinkedHashSet<String>();
+		TraversalVisitor visitor = new TraversalVisitor() {
+			@Override
+			public Object visitAssignPixelStmt(AssignPixelStmt stmt, Object arg)
+					throws Exception {
+				if (stmt.ispixel) {
+					vars.add(stmt.lhsIdent.getText());
+				}
+				return super.visitAssignPixelStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitAssignExprStmt(AssignExprStmt stmt, Object arg)
+					throws Exception {
+				if (scalarVars.containsKey(stmt.lhsIdent.getText())) {
+					vars.add(stmt.lhsIdent.getText());
+				}
+				return super.visitAssignExprStmt(stmt, arg);
+			}
+		};
+		for (Stmt stmt : stmts) {
+			stmt.visit(visitor, null);
+		}
+		return vars;
+	}
+
+	@Override
+	public Object visitAssignPixelStmt(AssignPixelStmt assignPixelStmt,
+			Object arg) throws Exception {
+
+		MethodVisitor mv = (MethodVisitor) arg;
+
+		// if lhs is pixel
+		if (assignPixelStmt.ispixel) {
+
+			// visit the pixel to generate code to leave value on top of stack
+			assignPixelStmt.pixel.visit(this, mv);
+
+			// store the value in the pixel named by lhs.
+			storeVar(mv, assignPixelStmt.lhsIdent.getText());
+		} else if (!assignPixelStmt.producers.isEmpty()) {
+			generateFusedAssignment(assignPixelStmt, mv);
+		} else {
+			generateImageAssignment(assignPixelStmt, mv);
+		}
+		return null;
+	}
+
+	/**
+	 * Generates a whole-image assignment with the producers FusionVisitor
+	 * attached to it. If every producer's image has the size of the assigned
+	 * one, their pixels are computed in its loops; otherwise the producers
+	 * are executed first, as written.
+	 */
+	private void generateFusedAssignment(AssignPixelStmt assignPixelStmt,
+			MethodVisitor mv) throws Exception {
+
+		Label unfused = new Label();
+		Label end = new Label();
+		String lhs = assignPixelStmt.lhsIdent.getText();
+		for (AssignPixelStmt producer : assignPixelStmt.producers) {
+			String name = producer.lhsIdent.getText();
+			for (String dimension : new String[] { "getWidth", "getHeight" }) {
+				getField(mv, name, PLPImage.classDesc);
+				mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className,
+						dimension, "()I");
+				getField(mv, lhs, PLPImage.classDesc);
+				mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className,
+						dimension, "()I");
+				mv.visitJumpInsn(Opcodes.IF_ICMPNE, unfused);
+			}
+		}
+		for (AssignPixelStmt producer : assignPixelStmt.producers) {
+			if (producer.materialize) {
+				// written in the loops, possibly by several bands
+				getField(mv, producer.lhsIdent.getText(), PLPImage.classDesc);
+				mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className,
+						"ensureImage", PLPImage.ensureImageDesc);
+			}
+		}
+		fusedProducers = assignPixelStmt.producers;
+		generateImageAssignment(assignPixelStmt, mv);
+		fusedProducers = Collections.emptyList();
+		mv.visitJumpInsn(Opcodes.GOTO, end);
+
+		mv.visitLabel(unfused);
+		for (AssignPixelStmt producer : assignPixelStmt.producers) {
+			generateImageAssignment(producer, mv);
+		}
+		generateImageAssignment(assignPixelStmt, mv);
+		mv.visitLabel(end);
+	}
+
+	/**
+	 * producers whose pixel is computed in the loops being generated, in
+	 * slots with key fusedKey
+	 */
+	private List<AssignPixelStmt> fusedProducers = Collections.emptyList();
+
+	private static String fusedKey(String image) {
+		return "fused." + image;
+	}
+
+	private boolean isFused(String image) {
+		for (AssignPixelStmt producer : fusedProducers) {
+			if (producer.lhsIdent.getText().equals(image)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void generateImageAssignment(AssignPixelStmt assignPixelStmt,
+			MethodVisitor mv) throws Exception {
+
+		if (options.parallel
+				&& isIndependentPerPixel(assignPixelStmt)) {
+			// lhs is an image, computed by a kernel on row bands in parallel
+			String kernelName = methodName(assignPixelStmt);
+			Set<String> vars = collectVars(assignPixelStmt);
+			generatePixelKernel(assignPixelStmt, kernelName, vars);
+
+			// the kernel reads the variables from their fields
+			spillVars(mv, vars);
+
+			// load the image, create its raster before the bands write to it.
+			getField(mv, assignPixelStmt.lhsIdent.getText(), PLPImage.classDesc);
+			mv.visitInsn(DUP);
+			mv.visitInsn(DUP);
+			mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className,
+					"ensureImage", PLPImage.ensureImageDesc);
+
+			// run the kernel on all rows of the image.
+			mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "getHeight", "()I");
+			loadHandle(mv, kernelName, PLPKernel.kernelDesc);
+			mv.visitInsn(SWAP);
+			mv.visitMethodInsn(INVOKESTATIC, PLPKernel.className, "run",
+					PLPKernel.runDesc);
+
+			// Update the frame
+			mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className,
+					"updateFrame", PLPImage.updateFrameDesc);
+		} else if (options.outline
+				&& collectVars(assignPixelStmt).size() <= maxParameters(options)) {
+			// lhs is an image, computed by a method taking the variables the
+			// pixel reads as parameters
+			String loopsName = methodName(assignPixelStmt);
+			Set<String> vars = collectVars(assignPixelStmt);
+			generateOutlinedLoops(assignPixelStmt, loopsName, vars);
+			loadThis(mv);
+			for (String name : vars) {
+				loadVar(mv, name);
+			}
+			invokeOwn(mv, loopsName, outlinedLoopsDesc(vars));
+
+			// Update the frame
+			getField(mv, assignPixelStmt.lhsIdent.getText(), PLPImage.classDesc);
+			mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className,
+					"updateFrame", PLPImage.updateFrameDesc);
+		} else {
+			// lhs is an image
+			generateInlineLoops(assignPixelStmt, mv);
+
+			// Update the frame
+			getField(mv, assignPixelStmt.lhsIdent.getText(), PLPImage.classDesc);
+			mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className,
+					"updateFrame", PLPImage.updateFrameDesc);
+		}
+	}
+
+	/**
+	 * Generates the loops of a whole-image assignment over all the rows of
+	 * the image in mv.
+	 */
+	private void generateInlineLoops(AssignPixelStmt assignPixelStmt,
+			MethodVisitor mv) throws Exception {
+
+		// load the image.
+		getField(mv, assignPixelStmt.lhsIdent.getText(), PLPImage.classDesc);
+		mv.visitInsn(DUP);
+		
+		// get image parameters.
+		mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "getWidth", "()I");
+		mv.visitVarInsn(ISTORE,getSlot("localWidth"));			
+		mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "getHeight", "()I");	
+		mv.visitVarInsn(ISTORE,getSlot("localHeight"));
+
+		// the operand stack must be empty in the loops, HotSpot cannot
+		// compile them on stack replacement otherwise
+		generatePixelLoops(assignPixelStmt, mv, -1, getSlot("localHeight"));
+	}
+
+	/** the most parameters a method can have, all of them ints */
+	static final int MAX_PARAMETERS = 255;
+
+	/**
+	 * @return the most variables an outlined method can take as parameters:
+	 *         one less for the instance methods of -instance, where this
+	 *         takes a slot
+	 */
+	static int maxParameters(CompilerOptions options) {
+		return options.instance ? MAX_PARAMETERS - 1 : MAX_PARAMETERS;
+	}
+
+	/** names of the methods generated besides main */
+	private final Set<String> methodNames = new HashSet<String>();
+
+	/**
+	 * @return a new name for a method computing the pixels of
+	 *         assignPixelStmt, made of the image and the source line so that
+	 *         profilers and stack traces show what it computes
+	 */
+	private String methodName(AssignPixelStmt assignPixelStmt) {
+		String base = assignPixelStmt.lhsIdent.getText() + "$line"
+				+ assignPixelStmt.lhsIdent.getLineNumber();
+		String name = base;
+		for (int n = 2; !methodNames.add(name); n++) {
+			name = base + "$" + n;
+		}
+		return name;
+	}
+
+	private String outlinedLoopsDesc(Set<String> vars) {
+		StringBuilder desc = new StringBuilder("(");
+		for (String name : vars) {
+			desc.append(typeMap.get(scalarVars.get(name)));
+		}
+		return desc.append(")V").toString();
+	}
+
+	/**
+	 * Generates a method that assigns the pixel of a whole-image
+	 * assignment to the whole image, with the variables read by the pixel as
+	 * parameters. Being small and entered once per execution of the
+	 * assignment, it is compiled and inlined by the JIT like any other method,
+	 * instead of on stack replacement as part of the method running the
+	 * program.
+	 */
+	private void generateOutlinedLoops(AssignPixelStmt assignPixelStmt,
+			String loopsName, Set<String> vars) throws Exception {
+
+		MethodVisitor mv = cw.visitMethod(
+				memberAccess(ACC_PRIVATE + ACC_STATIC), loopsName,
+				outlinedLoopsDesc(vars), null, null);
+
+		// the method numbers its local variables independently of main,
+		// starting with the parameters
+		HashMap<String, Integer> mainSlotMap = slotMap;
+		int mainSlot = slot;
+		slotMap = new HashMap<String, Integer>();
+		slot = 0;
+		reserveThis();
+		for (String name : vars) {
+			getSlot(varKey(name));
+		}
+
+		mv.visitCode();
+		Label start = new Label();
+		mv.visitLabel(start);
+		mv.visitLineNumber(assignPixelStmt.lhsIdent.getLineNumber(), start);
+		generateInlineLoops(assignPixelStmt, mv);
+		mv.visitInsn(RETURN);
+
+		Label end = new Label();
+		mv.visitLabel(end);
+		mv.visitLocalVariable("x", "I", null, start, end, getSlot("x"));
+		mv.visitLocalVariable("y", "I", null, start, end, getSlot("y"));
+		visitVarLocals(mv, vars, start, end);
+		mv.visitMaxs(1, 1);
+		mv.visitEnd();
+
+		slotMap = mainSlotMap;
+		slot = mainSlot;
+	}
+
+	/**
+	 * Generates the loops over x and y that assign the pixel of a whole-image
+	 * assignment to every location of the image. x runs from 0 to the value
+	 * in slot localWidth, y over the given rows.
+	 * 
+	 * When the pixels can be computed in any order the image is traversed in
+	 * row-major order, the order of the raster in memory, or in square tiles
+	 * if a tile size is set, and a vector of pixels at a time when vector
+	 * code is enabled and the pixel can be computed with it. Otherwise x is
+	 * the outer loop, which is the order that defines which pixels a sample
+	 * of the assigned image sees.
+	 * 
+	 * @param assignPixelStmt
+	 * @param mv
+	 * @param rowStartSlot
+	 *            slot holding the first row, or -1 to start at row 0
+	 * @param rowEndSlot
+	 *            slot holding the row after the last one
+	 */
+	private void generatePixelLoops(AssignPixelStmt assignPixelStmt,
+			MethodVisitor mv, int rowStartSlot, int rowEndSlot) throws Exception {
+
+		// rasters of the images sampled at [x,y] are loaded once, before the
+		// loops, and read directly in them
+		Set<String> rasters = collectRasterSamples(assignPixelStmt.pixel);
+		for (AssignPixelStmt producer : fusedProducers) {
+			rasters.remove(producer.lhsIdent.getText());
+		}
+		String lhs = assignPixelStmt.lhsIdent.getText();
+		boolean vector = options.vector && !options.columnMajor
+				&& options.tileSize == 0 && fusedProducers.isEmpty()
+				&& isIndependentPerPixel(assignPixelStmt)
+				&& isVectorizable(assignPixelStmt);
+		if (vector) {
+			// the vector loop stores into the raster of the assigned image
+			rasters.add(lhs);
+		}
+		if (rasters.contains(lhs)) {
+			// create or unshare the raster now rather than in the first
+			// setPixel, which would leave the loaded one stale
+			getField(mv, lhs, PLPImage.classDesc);
+			mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className,
+					"ensureImage", PLPImage.ensureImageDesc);
+		}
+		for (String name : rasters) {
+			getField(mv, name, PLPImage.classDesc);
+			mv.visitInsn(DUP);
+			mv.visitVarInsn(ILOAD, getSlot("localWidth"));
+			mv.visitVarInsn(ILOAD, rowEndSlot);
+			mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className,
+					"getRasterFor", PLPImage.getRasterForDesc);
+			mv.visitVarInsn(ASTORE, getSlot(rasterKey(name)));
+			mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className,
+					"getStride", "()I");
+			mv.visitVarInsn(ISTORE, getSlot(strideKey(name)));
+		}
+		hoistedRasters = rasters;
+		for (AssignPixelStmt producer : fusedProducers) {
+			generateInvariants(producer.loopInvariants, mv);
+		}
+		generateInvariants(assignPixelStmt.loopInvariants, mv);
+
+		if (vector) {
+			generateVectorLoops(assignPixelStmt, mv, rowStartSlot, rowEndSlot);
+		} else if (options.columnMajor || !isIndependentPerPixel(assignPixelStmt)) {
+			generateColumnMajorLoops(assignPixelStmt, mv, rowStartSlot, rowEndSlot);
+		} else if (options.tileSize > 0) {
+			generateTiledLoops(assignPixelStmt, mv, rowStartSlot, rowEndSlot);
+		} else {
+			generateRowMajorLoops(assignPixelStmt, mv, rowStartSlot, rowEndSlot);
+		}
+		hoistedRasters = Collections.emptySet();
+	}
+
+	/**
+	 * Evaluates subexpressions moved out of the pixel by LoopInvariantVisitor
+	 * into their temporaries.
+	 */
+	private void generateInvariants(List<TempExpr> invariants,
+			MethodVisitor mv) throws Exception {
+		for (TempExpr t : invariants) {
+			t.expr.visit(this, mv);
+			mv.visitVarInsn(ISTORE, getSlot("temp." + t.id));
+		}
+	}
+
+	private void generateRowInvariants(AssignPixelStmt assignPixelStmt,
+			MethodVisitor mv) throws Exception {
+		for (AssignPixelStmt producer : fusedProducers) {
+			generateInvariants(producer.rowInvariants, mv);
+		}
+		generateInvariants(assignPixelStmt.rowInvariants, mv);
+	}
+
+	private void generateColumnInvariants(AssignPixelStmt assignPixelStmt,
+			MethodVisitor mv) throws Exception {
+		for (AssignPixelStmt producer : fusedProducers) {
+			generateInvariants(producer.columnInvariants, mv);
+		}
+		generateInvariants(assignPixelStmt.columnInvariants, mv);
+	}
+
+	/**
+	 * @return the ids of the temporaries defined by the column invariants of
+	 *         assignPixelStmt and of the producers fused into it: those of the
+	 *         invariants, and those of the common subexpressions defined in
+	 *         them, which the pixel may read too
+	 */
+	private Set<Integer> columnTemps(AssignPixelStmt assignPixelStmt)
+			throws Exception {
+		List<TempExpr> invariants = new ArrayList<TempExpr>();
+		for (AssignPixelStmt producer : fusedProducers) {
+			invariants.addAll(producer.columnInvariants);
+		}
+		invariants.addAll(assignPixelStmt.columnInvariants);
+		final Set<Integer> ids = new LinkedHashSet<Integer>();
+		TraversalVisitor definitions = new TraversalVisitor() {
+			@Override
+			public Object visitTempExpr(TempExpr tempExpr, Object arg)
+					throws Exception {
+				if (tempExpr.isDefinition()) {
+					ids.add(tempExpr.id);
+				}
+				return super.visitTempExpr(tempExpr, arg);
+			}
+		};
+		for (TempExpr t : invariants) {
+			t.expr.visit(definitions, null);
+			ids.add(t.id);
+		}
+		return ids;
+	}
+
+	private static String columnsKey(int id) {
+		return "columns." + id;
+	}
+
+	/**
+	 * Evaluates the column invariants for every x of the image into arrays,
+	 * before loops whose inner loop is over x, so that these loops load them
+	 * with loadColumnInvariants instead of evaluating them again in every
+	 * row.
+	 */
+	private void generateColumnTables(AssignPixelStmt assignPixelStmt,
+			MethodVisitor mv) throws Exception {
+		Set<Integer> temps = columnTemps(assignPixelStmt);
+		if (temps.isEmpty()) {
+			return;
+		}
+		for (int id : temps) {
+			mv.visitVarInsn(ILOAD, getSlot("localWidth"));
+			mv.visitIntInsn(NEWARRAY, T_INT);
+			mv.visitVarInsn(ASTORE, getSlot(columnsKey(id)));
+		}
+		Label guard = new Label();
+		Label body = new Label();
+		mv.visitInsn(ICONST_0);
+		mv.visitVarInsn(ISTORE, getSlot("x"));
+		mv.visitJumpInsn(Opcodes.GOTO, guard);
+		mv.visitLabel(body);
+		generateColumnInvariants(assignPixelStmt, mv);
+		for (int id : temps) {
+			mv.visitVarInsn(ALOAD, getSlot(columnsKey(id)));
+			mv.visitVarInsn(ILOAD, getSlot("x"));
+			mv.visitVarInsn(ILOAD, getSlot("temp." + id));
+			mv.visitInsn(IASTORE);
+		}
+		mv.visitIincInsn(getSlot("x"), 1);
+		mv.visitLabel(guard);
+		mv.visitVarInsn(ILOAD, getSlot("x"));
+		mv.visitVarInsn(ILOAD, getSlot("localWidth"));
+		mv.visitJumpInsn(Opcodes.IF_ICMPLT, body);
+	}
+
+	/**
+	 * Loads the column invariants at x from the arrays of
+	 * generateColumnTables into their temporaries.
+	 */
+	private void loadColumnInvariants(AssignPixelStmt assignPixelStmt,
+			MethodVisitor mv) throws Exception {
+		for (int id : columnTemps(assignPixelStmt)) {
+			mv.visitVarInsn(ALOAD, getSlot(columnsKey(id)));
+			mv.visitVarInsn(ILOAD, getSlot("x"));
+			mv.visitInsn(IALOAD);
+			mv.visitVarInsn(ISTORE, getSlot("temp." + id));
+		}
+	}
+
+	/**
+	 * images whose raster and stride are held in local variables of the loops
+	 * being generated, with slot keys rasterKey and strideKey.
+	 */
+	private Set<String> hoistedRasters = Collections.emptySet();
+
+	private static String rasterKey(String image) {
+		return "raster." + image;
+	}
+
+	private static String strideKey(String image) {
+		return "stride." + image;
+	}
+
+	/**
+	 * @return the images sampled at exactly [x,y] in pixel
+	 */
+	static Set<String> collectRasterSamples(Pixel pixel)
+			throws Exception {
+		final Set<String> images = new LinkedHashSet<String>();
+		pixel.visit(new TraversalVisitor() {
+			@Override
+			public Object visitSampleExpr(SampleExpr sampleExpr, Object arg)
+					throws Exception {
+				if (isSampleAtXY(sampleExpr)) {
+					images.add(sampleExpr.ident.getText());
+				}
+				return super.visitSampleExpr(sampleExpr, arg);
+			}
+		}, null);
+		return images;
+	}
+
+	private static boolean isSampleAtXY(SampleExpr sampleExpr) {
+		return isPreDef(sampleExpr.xLoc, Kind.x)
+				&& isPreDef(sampleExpr.yLoc, Kind.y);
+	}
+
+	private void generateColumnMajorLoops(AssignPixelStmt assignPixelStmt,
+			MethodVisitor mv, int rowStartSlot, int rowEndSlot) throws Exception {
+
+		Label outerGuard = new Label();
+		Label outerBody = new Label();
+		Label innerGuard = new Label();
+		Label innerBody = new Label();
+
+		// Initialize outer loop variable 'x' to 0
+		mv.visitInsn(ICONST_0);
+		mv.visitVarInsn(ISTORE,getSlot("x"));
+
+		mv.visitJumpInsn(Opcodes.GOTO, outerGuard);
+		mv.visitLabel(outerBody);
+		generateColumnInvariants(assignPixelStmt, mv);
+
+		// initialize inner loop variable 'y' to the first row
+		loadRowStart(mv, rowStartSlot);
+		mv.visitVarInsn(ISTORE,getSlot("y"));
+
+		/***************************************************/
+		// visit y statement
+		mv.visitJumpInsn(Opcodes.GOTO, innerGuard);
+		mv.visitLabel(innerBody);
+		generateRowInvariants(assignPixelStmt, mv);
+
+		generatePixelStore(assignPixelStmt, mv);
+
+		// increase y by 1
+		mv.visitIincInsn(getSlot("y"), 1);
+
+		mv.visitLabel(innerGuard);
+		
+		// condition check
+		mv.visitVarInsn(ILOAD, getSlot("y"));
+		mv.visitVarInsn(ILOAD, rowEndSlot);
+		
+		// check the condition
+		mv.visitJumpInsn(Opcodes.IF_ICMPLT, innerBody);
+		/*************************************************/
+
+		mv.visitIincInsn(getSlot("x"), 1);
+
+		mv.visitLabel(outerGuard);
+		
+		mv.visitVarInsn(ILOAD, getSlot("x"));
+		mv.visitVarInsn(ILOAD,getSlot("localWidth"));	
+		// check the condition
+		mv.visitJumpInsn(Opcodes.IF_ICMPLT, outerBody);
+	}
+
+	private void generateRowMajorLoops(AssignPixelStmt assignPixelStmt,
+			MethodVisitor mv, int rowStartSlot, int rowEndSlot) throws Exception {
+
+		Label outerGuard = new Label();
+		Label outerBody = new Label();
+		Label innerGuard = new Label();
+		Label innerBody = new Label();
+
+		generateColumnTables(assignPixelStmt, mv);
+
+		// Initialize outer loop variable 'y' to the first row
+		loadRowStart(mv, rowStartSlot);
+		mv.visitVarInsn(ISTORE, getSlot("y"));
+
+		mv.visitJumpInsn(Opcodes.GOTO, outerGuard);
+		mv.visitLabel(outerBody);
+		generateRowInvariants(assignPixelStmt, mv);
+
+		// initialize inner loop variable 'x' to 0
+		mv.visitInsn(ICONST_0);
+		mv.visitVarInsn(ISTORE, getSlot("x"));
+
+		mv.visitJumpInsn(Opcodes.GOTO, innerGuard);
+		mv.visitLabel(innerBody);
+		loadColumnInvariants(assignPixelStmt, mv);
+
+		generatePixelStore(assignPixelStmt, mv);
+
+		// increase x by 1
+		mv.visitIincInsn(getSlot("x"), 1);
+
+		mv.visitLabel(innerGuard);
+		mv.visitVarInsn(ILOAD, getSlot("x"));
+		mv.visitVarInsn(ILOAD, getSlot("localWidth"));
+		mv.visitJumpInsn(Opcodes.IF_ICMPLT, innerBody);
+
+		// increase y by 1
+		mv.visitIincInsn(getSlot("y"), 1);
+
+		mv.visitLabel(outerGuard);
+		mv.visitVarInsn(ILOAD, getSlot("y"));
+		mv.visitVarInsn(ILOAD, rowEndSlot);
+		mv.visitJumpInsn(Opcodes.IF_ICMPLT, outerBody);
+	}
+
+	/**
+	 * Row-major traversal of square tiles of options.tileSize pixels, each
+	 * tile itself traversed in row-major order.
+	 */
+	private void generateTiledLoops(AssignPixelStmt assignPixelStmt,
+			MethodVisitor mv, int rowStartSlot, int rowEndSlot) throws Exception {
+
+		int tile = options.tileSize;
+		int tileY = getSlot("tileY");
+		int tileYEnd = getSlot("tileYEnd");
+		int tileX = getSlot("tileX");
+		int tileXEnd = getSlot("tileXEnd");
+		Label tileYGuard = new Label();
+		Label tileYBody = new Label();
+		Label tileXGuard = new Label();
+		Label tileXBody = new Label();
+		Label yGuard = new Label();
+		Label yBody = new Label();
+		Label xGuard = new Label();
+		Label xBody = new Label();
+
+		generateColumnTables(assignPixelStmt, mv);
+
+		// rows of tiles
+		loadRowStart(mv, rowStartSlot);
+		mv.visitVarInsn(ISTORE, tileY);
+		mv.visitJumpInsn(Opcodes.GOTO, tileYGuard);
+		mv.visitLabel(tileYBody);
+
+		// last row of this row of tiles is min(tileY + tile, rowEnd)
+		mv.visitVarInsn(ILOAD, tileY);
+		mv.visitLdcInsn(tile);
+		mv.visitInsn(IADD);
+		mv.visitVarInsn(ILOAD, rowEndSlot);
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "min", "(II)I");
+		mv.visitVarInsn(ISTORE, tileYEnd);
+
+		// tiles in the row
+		mv.visitInsn(ICONST_0);
+		mv.visitVarInsn(ISTORE, tileX);
+		mv.visitJumpInsn(Opcodes.GOTO, tileXGuard);
+		mv.visitLabel(tileXBody);
+
+		// last column of this tile is min(tileX + tile, localWidth)
+		mv.visitVarInsn(ILOAD, tileX);
+		mv.visitLdcInsn(tile);
+		mv.visitInsn(IADD);
+		mv.visitVarInsn(ILOAD, getSlot("localWidth"));
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "min", "(II)I");
+		mv.visitVarInsn(ISTORE, tileXEnd);
+
+		// rows of the tile
+		mv.visitVarInsn(ILOAD, tileY);
+		mv.visitVarInsn(ISTORE, getSlot("y"));
+		mv.visitJumpInsn(Opcodes.GOTO, yGuard);
+		mv.visitLabel(yBody);
+		generateRowInvariants(assignPixelStmt, mv);
+
+		// pixels in the row of the tile
+		mv.visitVarInsn(ILOAD, tileX);
+		mv.visitVarInsn(ISTORE, getSlot("x"));
+		mv.visitJumpInsn(Opcodes.GOTO, xGuard);
+		mv.visitLabel(xBody);
+		loadColumnInvariants(assignPixelStmt, mv);
+
+		generatePixelStore(assignPixelStmt, mv);
+
+		mv.visitIincInsn(getSlot("x"), 1);
+		mv.visitLabel(xGuard);
+		mv.visitVarInsn(ILOAD, getSlot("x"));
+		mv.visitVarInsn(ILOAD, tileXEnd);
+		mv.visitJumpInsn(Opcodes.IF_ICMPLT, xBody);
+
+		mv.visitIincInsn(getSlot("y"), 1);
+		mv.visitLabel(yGuard);
+		mv.visitVarInsn(ILOAD, getSlot("y"));
+		mv.visitVarInsn(ILOAD, tileYEnd);
+		mv.visitJumpInsn(Opcodes.IF_ICMPLT, yBody);
+
+		mv.visitVarInsn(ILOAD, tileX);
+		mv.visitLdcInsn(tile);
+		mv.visitInsn(IADD);
+		mv.visitVarInsn(ISTORE, tileX);
+		mv.visitLabel(tileXGuard);
+		mv.visitVarInsn(ILOAD, tileX);
+		mv.visitVarInsn(ILOAD, getSlot("localWidth"));
+		mv.visitJumpInsn(Opcodes.IF_ICMPLT, tileXBody);
+
+		mv.visitVarInsn(ILOAD, tileY);
+		mv.visitLdcInsn(tile);
+		mv.visitInsn(IADD);
+		mv.visitVarInsn(ISTORE, tileY);
+		mv.visitLabel(tileYGuard);
+		mv.visitVarInsn(ILOAD, tileY);
+		mv.visitVarInsn(ILOAD, rowEndSlot);
+		mv.visitJumpInsn(Opcodes.IF_ICMPLT, tileYBody);
+	}
+
+	// the Vector API, named rather than linked so that the compiler does not
+	// need the incubator module
+	private static final String INT_VECTOR = "jdk/incubator/vector/IntVector";
+	private static final String VECTOR_MASK = "jdk/incubator/vector/VectorMask";
+	private static final String VECTOR_SPECIES = "jdk/incubator/vector/VectorSpecies";
+	private static final String VECTOR_OPERATORS = "jdk/incubator/vector/VectorOperators";
+	private static final String INT_VECTOR_DESC = "Ljdk/incubator/vector/IntVector;";
+	private static final String VECTOR_DESC = "Ljdk/incubator/vector/Vector;";
+	private static final String VECTOR_MASK_DESC = "Ljdk/incubator/vector/VectorMask;";
+	private static final String VECTOR_SPECIES_DESC = "Ljdk/incubator/vector/VectorSpecies;";
+	private static final String BINARY_DESC = "Ljdk/incubator/vector/VectorOperators$Binary;";
+	private static final String COMPARISON_DESC = "Ljdk/incubator/vector/VectorOperators$Comparison;";
+
+	/**
+	 * temporaries holding a vector in the vector loop being generated: the
+	 * column invariants and the subexpressions shared in the pixel. The
+	 * others are ints evaluated before the loop over x.
+	 */
+	private Set<Integer> vectorTemps = Collections.emptySet();
+
+	private static String vectorTempKey(int id) {
+		return "vtemp." + id;
+	}
+
+	/**
+	 * Row-major traversal computing the pixels of a row a vector of
+	 * IntVector.SPECIES_PREFERRED at a time: the samples at [x,y] are loaded
+	 * from the rasters, every operation of the pixel is applied lane-wise,
+	 * and the packed pixels are stored into the raster of the assigned image.
+	 * The columns after the last whole vector are computed by the scalar loop.
+	 */
+	private void generateVectorLoops(AssignPixelStmt assignPixelStmt,
+			MethodVisitor mv, int rowStartSlot, int rowEndSlot) throws Exception {
+
+		int vectorEnd = getSlot("vectorEnd");
+		Label outerGuard = new Label();
+		Label outerBody = new Label();
+		Label vectorGuard = new Label();
+		Label vectorBody = new Label();
+		Label tailGuard = new Label();
+		Label tailBody = new Label();
+
+		// the columns computed by the vector loop
+		generateSpecies(mv);
+		mv.visitVarInsn(ILOAD, getSlot("localWidth"));
+		mv.visitMethodInsn(INVOKEINTERFACE, VECTOR_SPECIES, "loopBound", "(I)I");
+		mv.visitVarInsn(ISTORE, vectorEnd);
+
+		loadRowStart(mv, rowStartSlot);
+		mv.visitVarInsn(ISTORE, getSlot("y"));
+		mv.visitJumpInsn(Opcodes.GOTO, outerGuard);
+		mv.visitLabel(outerBody);
+		generateRowInvariants(assignPixelStmt, mv);
+
+		mv.visitInsn(ICONST_0);
+		mv.visitVarInsn(ISTORE, getSlot("x"));
+		mv.visitJumpInsn(Opcodes.GOTO, vectorGuard);
+		mv.visitLabel(vectorBody);
+		vectorTemps = collectVectorTemps(assignPixelStmt);
+		for (TempExpr t : assignPixelStmt.columnInvariants) {
+			generateVector(t.expr, mv);
+			mv.visitVarInsn(ASTORE, getSlot(vectorTempKey(t.id)));
+		}
+		generateVectorStore(assignPixelStmt, mv);
+		vectorTemps = Collections.emptySet();
+
+		// increase x by the number of lanes
+		mv.visitVarInsn(ILOAD, getSlot("x"));
+		generateSpecies(mv);
+		mv.visitMethodInsn(INVOKEINTERFACE, VECTOR_SPECIES, "length", "()I");
+		mv.visitInsn(IADD);
+		mv.visitVarInsn(ISTORE, getSlot("x"));
+
+		mv.visitLabel(vectorGuard);
+		mv.visitVarInsn(ILOAD, getSlot("x"));
+		mv.visitVarInsn(ILOAD, vectorEnd);
+		mv.visitJumpInsn(Opcodes.IF_ICMPLT, vectorBody);
+
+		// the remaining columns, one at a time
+		mv.visitJumpInsn(Opcodes.GOTO, tailGuard);
+		mv.visitLabel(tailBody);
+		generateColumnInvariants(assignPixelStmt, mv);
+		generatePixelStore(assignPixelStmt, mv);
+		mv.visitIincInsn(getSlot("x"), 1);
+
+		mv.visitLabel(tailGuard);
+		mv.visitVarInsn(ILOAD, getSlot("x"));
+		mv.visitVarInsn(ILOAD, getSlot("localWidth"));
+		mv.visitJumpInsn(Opcodes.IF_ICMPLT, tailBody);
+
+		mv.visitIincInsn(getSlot("y"), 1);
+
+		mv.visitLabel(outerGuard);
+		mv.visitVarInsn(ILOAD, getSlot("y"));
+		mv.visitVarInsn(ILOAD, rowEndSlot);
+		mv.visitJumpInsn(Opcodes.IF_ICMPLT, outerBody);
+	}
+
+	/**
+	 * Stores the pixels of the vector at [x,y] into the raster of the
+	 * assigned image. As Pixel.makePixel, the low bytes of the samples are
+	 * selected in the lanes where red and green have the form 0xffffffkk, and
+	 * the samples truncated to [0, Z] in the others.
+	 */
+	private void generateVectorStore(AssignPixelStmt assignPixelStmt,
+			MethodVisitor mv) throws Exception {
+
+		Pixel pixel = assignPixelStmt.pixel;
+		int red = getSlot("vector.red");
+		int green = getSlot("vector.green");
+		int blue = getSlot("vector.blue");
+		generateVector(pixel.redExpr, mv);
+		mv.visitVarInsn(ASTORE, red);
+		generateVector(pixel.greenExpr, mv);
+		mv.visitVarInsn(ASTORE, green);
+		generateVector(pixel.blueExpr, mv);
+		mv.visitVarInsn(ASTORE, blue);
+
+		int[] samples = { red, green, blue };
+		int[] shifts = { ImageConstants.SHIFT_RED, ImageConstants.SHIFT_GRN,
+				ImageConstants.SHIFT_BLU };
+		// truncated samples
+		for (int i = 0; i != samples.length; i++) {
+			mv.visitVarInsn(ALOAD, samples[i]);
+			mv.visitInsn(ICONST_0);
+			mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "max", intOperandDesc());
+			mv.visitLdcInsn(ImageConstants.Z);
+			mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "min", intOperandDesc());
+			generateVectorShift(mv, "LSHL", shifts[i]);
+			if (i != 0) {
+				mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "or", vectorOperandDesc());
+			}
+		}
+		// low bytes
+		for (int i = 0; i != samples.length; i++) {
+			mv.visitVarInsn(ALOAD, samples[i]);
+			mv.visitLdcInsn(0xff);
+			mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "and", intOperandDesc());
+			generateVectorShift(mv, "LSHL", shifts[i]);
+			if (i != 0) {
+				mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "or", vectorOperandDesc());
+			}
+		}
+		// lanes where (red | 0xff) == -1 and (green | 0xff) == -1
+		for (int i = 0; i != 2; i++) {
+			mv.visitVarInsn(ALOAD, samples[i]);
+			mv.visitLdcInsn(0xff);
+			mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "or", intOperandDesc());
+			mv.visitFieldInsn(GETSTATIC, VECTOR_OPERATORS, "EQ", COMPARISON_DESC);
+			mv.visitInsn(ICONST_M1);
+			mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "compare", "("
+					+ COMPARISON_DESC + "I)" + VECTOR_MASK_DESC);
+		}
+		mv.visitMethodInsn(INVOKEVIRTUAL, VECTOR_MASK, "and", "("
+				+ VECTOR_MASK_DESC + ")" + VECTOR_MASK_DESC);
+		mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "blend", "(" + VECTOR_DESC
+				+ VECTOR_MASK_DESC + ")" + INT_VECTOR_DESC);
+
+		// into raster[y * stride + x]
+		String lhs = assignPixelStmt.lhsIdent.getText();
+		mv.visitVarInsn(ALOAD, getSlot(rasterKey(lhs)));
+		generateRasterIndex(mv, lhs);
+		mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "intoArray", "([II)V");
+	}
+
+	/**
+	 * Leaves y * stride + x of the hoisted raster of image on the stack.
+	 */
+	private void generateRasterIndex(MethodVisitor mv, String image) {
+		mv.visitVarInsn(ILOAD, getSlot("y"));
+		mv.visitVarInsn(ILOAD, getSlot(strideKey(image)));
+		mv.visitInsn(IMUL);
+		mv.visitVarInsn(ILOAD, getSlot("x"));
+		mv.visitInsn(IADD);
+	}
+
+	/**
+	 * Leaves the value of expr in the lanes [x, x + lanes) of the row on the
+	 * stack: an IntVector for an int, a VectorMask for a boolean. Expressions
+	 * that are the same in every lane are evaluated once and broadcast.
+	 */
+	private void generateVector(Expr expr, MethodVisitor mv) throws Exception {
+
+		if (isUniform(expr, vectorTemps)) {
+			generateSpecies(mv);
+			expr.visit(this, mv);
+			if (expr.type == Kind._boolean) {
+				mv.visitMethodInsn(INVOKEINTERFACE, VECTOR_SPECIES, "maskAll",
+						"(Z)" + VECTOR_MASK_DESC);
+			} else {
+				mv.visitMethodInsn(INVOKESTATIC, INT_VECTOR, "broadcast", "("
+						+ VECTOR_SPECIES_DESC + "I)" + INT_VECTOR_DESC);
+			}
+		} else if (expr instanceof PreDefExpr) {
+			// x, x + 1, ...
+			generateSpecies(mv);
+			mv.visitMethodInsn(INVOKESTATIC, INT_VECTOR, "zero", "("
+					+ VECTOR_SPECIES_DESC + ")" + INT_VECTOR_DESC);
+			mv.visitInsn(ICONST_1);
+			mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "addIndex", intOperandDesc());
+			mv.visitVarInsn(ILOAD, getSlot("x"));
+			mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "add", intOperandDesc());
+		} else if (expr instanceof SampleExpr) {
+			SampleExpr sampleExpr = (SampleExpr) expr;
+			String image = sampleExpr.ident.getText();
+			generateSpecies(mv);
+			mv.visitVarInsn(ALOAD, getSlot(rasterKey(image)));
+			generateRasterIndex(mv, image);
+			mv.visitMethodInsn(INVOKESTATIC, INT_VECTOR, "fromArray", "("
+					+ VECTOR_SPECIES_DESC + "[II)" + INT_VECTOR_DESC);
+			int offset = ImageConstants.BITOFFSETS[colorCode(sampleExpr.color
+					.getText())];
+			if (offset != 0) {
+				generateVectorShift(mv, "LSHR", offset);
+			}
+			mv.visitLdcInsn(0xff);
+			mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "and", intOperandDesc());
+		} else if (expr instanceof TempExpr) {
+			TempExpr tempExpr = (TempExpr) expr;
+			int tempSlot = getSlot(vectorTempKey(tempExpr.id));
+			if (tempExpr.isDefinition()) {
+				generateVector(tempExpr.expr, mv);
+				mv.visitInsn(DUP);
+				mv.visitVarInsn(ASTORE, tempSlot);
+			} else {
+				mv.visitVarInsn(ALOAD, tempSlot);
+			}
+		} else if (expr instanceof ConditionalExpr) {
+			// both values are computed, then blended by the condition
+			ConditionalExpr conditionalExpr = (ConditionalExpr) expr;
+			generateVector(conditionalExpr.condition, mv);
+			generateVector(conditionalExpr.trueValue, mv);
+			mv.visitInsn(SWAP);
+			generateVector(conditionalExpr.falseValue, mv);
+			mv.visitInsn(DUP_X2);
+			mv.visitInsn(POP);
+			mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "blend", "("
+					+ VECTOR_DESC + VECTOR_MASK_DESC + ")" + INT_VECTOR_DESC);
+		} else {
+			generateVectorBinary((BinaryExpr) expr, mv);
+		}
+	}
+
+	private void generateVectorBinary(BinaryExpr binaryExpr, MethodVisitor mv)
+			throws Exception {
+
+		Kind op = binaryExpr.op.kind;
+		if (binaryExpr.e0.type == Kind._boolean) {
+			// &, |, == and != of masks
+			generateVector(binaryExpr.e0, mv);
+			generateVector(binaryExpr.e1, mv);
+			String maskOperandDesc = "(" + VECTOR_MASK_DESC + ")"
+					+ VECTOR_MASK_DESC;
+			mv.visitMethodInsn(INVOKEVIRTUAL, VECTOR_MASK, op == AND ? "and"
+					: op == OR ? "or" : "eq", maskOperandDesc);
+			if (op == NEQ) {
+				mv.visitMethodInsn(INVOKEVIRTUAL, VECTOR_MASK, "not", "()"
+						+ VECTOR_MASK_DESC);
+			}
+			return;
+		}
+
+		generateVector(binaryExpr.e0, mv);
+		if (isComparison(op)) {
+			mv.visitFieldInsn(GETSTATIC, VECTOR_OPERATORS, comparisonName(op),
+					COMPARISON_DESC);
+			boolean scalar = generateVectorOperand(binaryExpr.e1, mv);
+			mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "compare", "("
+					+ COMPARISON_DESC + (scalar ? "I" : VECTOR_DESC) + ")"
+					+ VECTOR_MASK_DESC);
+		} else if (op == LSHIFT || op == RSHIFT) {
+			mv.visitFieldInsn(GETSTATIC, VECTOR_OPERATORS,
+					op == LSHIFT ? "LSHL" : "ASHR", BINARY_DESC);
+			boolean scalar = generateVectorOperand(binaryExpr.e1, mv);
+			mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "lanewise", "("
+					+ BINARY_DESC + (scalar ? "I" : VECTOR_DESC) + ")"
+					+ INT_VECTOR_DESC);
+		} else if (op == DIV || op == MOD) {
+			// by a non zero literal
+			int divisor = ConstantFoldVisitor.intValue(binaryExpr.e1);
+			if (op == MOD) {
+				// e0 - e0 / divisor * divisor
+				mv.visitInsn(DUP);
+			}
+			mv.visitLdcInsn(divisor);
+			mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "div", intOperandDesc());
+			if (op == MOD) {
+				mv.visitLdcInsn(divisor);
+				mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "mul", intOperandDesc());
+				mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "sub", vectorOperandDesc());
+			}
+		} else {
+			boolean scalar = generateVectorOperand(binaryExpr.e1, mv);
+			mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, arithmeticName(op),
+					scalar ? intOperandDesc() : vectorOperandDesc());
+		}
+	}
+
+	/**
+	 * @return the IntVector method applying op, one of + - * and the & and |
+	 *         of ints the simplifications introduce
+	 */
+	private static String arithmeticName(Kind op) {
+		switch (op) {
+		case PLUS: return "add";
+		case MINUS: return "sub";
+		case TIMES: return "mul";
+		case AND: return "and";
+		default: return "or";
+		}
+	}
 
-		// generate code to update the pixel.
-		mv.visitMethodInsn(INVOKESTATIC, PLPImage.className, "pause",
-				PLPImage.pauseDesc);
+	/**
+	 * Leaves the right operand of an int operation on the stack: its int
+	 * value if it is the same in every lane, a vector otherwise.
+	 * 
+	 * @return true if an int was left
+	 */
+	private boolean generateVectorOperand(Expr expr, MethodVisitor mv)
+			throws Exception {
+		if (isUniform(expr, vectorTemps)) {
+			expr.visit(this, mv);
+			return true;
+		}
+		generateVector(expr, mv);
+		return false;
+	}
 
-		return null;
+	private static void generateVectorShift(MethodVisitor mv, String op,
+			int count) {
+		if (count == 0) {
+			return;
+		}
+		mv.visitFieldInsn(GETSTATIC, VECTOR_OPERATORS, op, BINARY_DESC);
+		mv.visitLdcInsn(count);
+		mv.visitMethodInsn(INVOKEVIRTUAL, INT_VECTOR, "lanewise", "("
+				+ BINARY_DESC + "I)" + INT_VECTOR_DESC);
 	}
 
-	@Override
-	public Object visitIterationStmt(IterationStmt iterationStmt, Object arg)
-			throws Exception {
-		//System.out.println("IterationStmt");
+	private static void generateSpecies(MethodVisitor mv) {
+		mv.visitFieldInsn(GETSTATIC, INT_VECTOR, "SPECIES_PREFERRED",
+				VECTOR_SPECIES_DESC);
+	}
 
-		MethodVisitor mv = (MethodVisitor) arg;
+	private static String intOperandDesc() {
+		return "(I)" + INT_VECTOR_DESC;
+	}
 
-		Label guardLabel = new Label();
-		Label bodyLabel = new Label();
+	private static String vectorOperandDesc() {
+		return "(" + VECTOR_DESC + ")" + INT_VECTOR_DESC;
+	}
 
-		mv.visitJumpInsn(Opcodes.GOTO, guardLabel);
-		mv.visitLabel(bodyLabel);
+	private static String comparisonName(Kind op) {
+		switch (op) {
+		case EQ: return "EQ";
+		case NEQ: return "NE";
+		case LT: return "LT";
+		case GEQ: return "GE";
+		case GT: return "GT";
+		default: return "LE";
+		}
+	}
 
-		// visit the statements in while loop
-		for (Stmt stmt : iterationStmt.stmtList) {
-			stmt.visit(this, mv);
+	/**
+	 * The pixel of a whole-image assignment can be computed a vector at a
+	 * time if its samples, and those of its column invariants, are at [x,y],
+	 * it divides only by non zero literals where it depends on x, and the
+	 * values of its conditional expressions can be computed when not
+	 * selected: they cannot throw.
+	 */
+	private boolean isVectorizable(AssignPixelStmt assignPixelStmt)
+			throws Exception {
+		Set<Integer> temps = collectVectorTemps(assignPixelStmt);
+		for (TempExpr t : assignPixelStmt.columnInvariants) {
+			if (!isVectorizable(t.expr, temps)) {
+				return false;
+			}
 		}
+		Pixel pixel = assignPixelStmt.pixel;
+		return isVectorizable(pixel.redExpr, temps)
+				&& isVectorizable(pixel.greenExpr, temps)
+				&& isVectorizable(pixel.blueExpr, temps);
+	}
 
-		mv.visitLabel(guardLabel);
+	private static boolean isVectorizable(Expr expr, Set<Integer> temps)
+			throws Exception {
+		if (isUniform(expr, temps) || isPreDef(expr, Kind.x)) {
+			return true;
+		} else if (expr instanceof SampleExpr) {
+			return isSampleAtXY((SampleExpr) expr);
+		} else if (expr instanceof TempExpr) {
+			TempExpr t = (TempExpr) expr;
+			return !t.isDefinition() || isVectorizable(t.expr, temps);
+		} else if (expr instanceof BinaryExpr) {
+			BinaryExpr b = (BinaryExpr) expr;
+			if (b.op.kind == DIV || b.op.kind == MOD) {
+				Integer divisor = ConstantFoldVisitor.intValue(b.e1);
+				if (divisor == null || divisor == 0) {
+					return false;
+				}
+			}
+			return b.e0.type != image && isVectorizable(b.e0, temps)
+					&& isVectorizable(b.e1, temps);
+		} else if (expr instanceof ConditionalExpr) {
+			ConditionalExpr c = (ConditionalExpr) expr;
+			return c.type != Kind._boolean
+					&& isVectorizable(c.condition, temps)
+					&& isVectorizable(c.trueValue, temps)
+					&& isVectorizable(c.falseValue, temps)
+					&& !dividesByVariable(c.trueValue)
+					&& !dividesByVariable(c.falseValue);
+		}
+		return false;
+	}
 
-		// visit the expression
-		iterationStmt.expr.visit(this, mv);
+	/**
+	 * @return true if expr has the same value in every lane of a vector of
+	 *         the row: it does not depend on x, sample an image, or define a
+	 *         temporary
+	 */
+	private static boolean isUniform(Expr expr, final Set<Integer> temps)
+			throws Exception {
+		final boolean[] uniform = { true };
+		expr.visit(new TraversalVisitor() {
+			@Override
+			public Object visitPreDefExpr(PreDefExpr preDefExpr, Object arg) {
+				uniform[0] &= !isPreDef(preDefExpr, Kind.x);
+				return null;
+			}
 
-		// check the condition
-		mv.visitJumpInsn(Opcodes.IFNE, bodyLabel);
+			@Override
+			public Object visitSampleExpr(SampleExpr sampleExpr, Object arg) {
+				uniform[0] = false;
+				return null;
+			}
 
-		return null;
+			@Override
+			public Object visitTempExpr(TempExpr tempExpr, Object arg) {
+				uniform[0] &= !tempExpr.isDefinition()
+						&& !temps.contains(tempExpr.id);
+				return null;
+			}
+		}, null);
+		return uniform[0];
 	}
 
-	@Override
-	public Object visitAssignPixelStmt(AssignPixelStmt assignPixelStmt,
-			Object arg) throws Exception {
-
-		MethodVisitor mv = (MethodVisitor) arg;
-
-		// if lhs is pixel
-		if (assignPixelStmt.ispixel) {
+	/**
+	 * @return true if expr divides by something else than a non zero literal
+	 */
+	private static boolean dividesByVariable(Expr expr) throws Exception {
+		final boolean[] divides = { false };
+		expr.visit(new TraversalVisitor() {
+			@Override
+			public Object visitBinaryExpr(BinaryExpr binaryExpr, Object arg)
+					throws Exception {
+				Kind op = binaryExpr.op.kind;
+				if (op == DIV || op == MOD) {
+					Integer divisor = ConstantFoldVisitor.intValue(binaryExpr.e1);
+					divides[0] |= divisor == null || divisor == 0;
+				}
+				return super.visitBinaryExpr(binaryExpr, arg);
+			}
+		}, null);
+		return divides[0];
+	}
 
-			// visit the pixel to generate code to leave value on top of stack
-			assignPixelStmt.pixel.visit(this, mv);
+	/**
+	 * @return the temporaries computed as vectors: the column invariants and
+	 *         those defined in them or in the pixel
+	 */
+	private static Set<Integer> collectVectorTemps(
+			AssignPixelStmt assignPixelStmt) throws Exception {
+		final Set<Integer> temps = new HashSet<Integer>();
+		TraversalVisitor definitions = new TraversalVisitor() {
+			@Override
+			public Object visitTempExpr(TempExpr tempExpr, Object arg)
+					throws Exception {
+				if (tempExpr.isDefinition()) {
+					temps.add(tempExpr.id);
+				}
+				return super.visitTempExpr(tempExpr, arg);
+			}
+		};
+		for (TempExpr t : assignPixelStmt.columnInvariants) {
+			temps.add(t.id);
+			t.expr.visit(definitions, null);
+		}
+		assignPixelStmt.pixel.visit(definitions, null);
+		return temps;
+	}
 
-			// store the value in the pixel named by lhs.
-			mv.visitFieldInsn(PUTSTATIC, progName,
-					assignPixelStmt.lhsIdent.getText(), typeMap.get(Kind.pixel));
+	private void loadRowStart(MethodVisitor mv, int rowStartSlot) {
+		if (rowStartSlot < 0) {
+			mv.visitInsn(ICONST_0);
 		} else {
-			// lhs is an image
+			mv.visitVarInsn(ILOAD, rowStartSlot);
+		}
+	}
 
-			Label outerGuard = new Label();
-			Label outerBody = new Label();
-			Label innerGuard = new Label();
-			Label innerBody = new Label();
-			
-			// load the image.
-			mv.visitFieldInsn(GETSTATIC, progName, assignPixelStmt.lhsIdent.getText(), PLPImage.classDesc);
-			mv.visitInsn(DUP);
-			mv.visitInsn(DUP);
-			
-			// get image parameters.
-			mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "getWidth", "()I");
-			mv.visitVarInsn(ISTORE,getSlot("localWidth"));			
-			mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "getHeight", "()I");	
-			mv.visitVarInsn(ISTORE,getSlot("localHeight"));
-			
-			// Initialize outer loop variable 'x' to 0
-			mv.visitInsn(ICONST_0);
-			mv.visitVarInsn(ISTORE,getSlot("x"));
+	/**
+	 * Generates the body of the loops of a whole-image assignment, which is
+	 * SinglePixelAssignmentStmt at [x,y].
+	 */
+	private void generatePixelStore(AssignPixelStmt assignPixelStmt,
+			MethodVisitor mv) throws Exception {
+
+		// pixels of the fused producers, and of their images if still needed
+		for (AssignPixelStmt producer : fusedProducers) {
+			String image = producer.lhsIdent.getText();
+			producer.pixel.visit(this, mv);
+			mv.visitVarInsn(ISTORE, getSlot(fusedKey(image)));
+			if (producer.materialize) {
+				getField(mv, image,
+						PLPImage.classDesc);
+				mv.visitVarInsn(ILOAD, getSlot("x"));
+				mv.visitVarInsn(ILOAD, getSlot("y"));
+				mv.visitVarInsn(ILOAD, getSlot(fusedKey(image)));
+				mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className,
+						"setPixel", "(III)V");
+			}
+		}
 
-			mv.visitJumpInsn(Opcodes.GOTO, outerGuard);
-			mv.visitLabel(outerBody);
+		// first get the image.
+		String name = assignPixelStmt.lhsIdent.getText();
+		getField(mv, name, PLPImage.classDesc);
 
-			// initialize inner loop variable 'y' to 0
-			mv.visitInsn(ICONST_0);
-			mv.visitVarInsn(ISTORE,getSlot("y"));
+		// Load x and y expressions.
+		mv.visitVarInsn(ILOAD, getSlot("x"));
+		mv.visitVarInsn(ILOAD, getSlot("y"));
 
-			/***************************************************/
-			// visit y statement
-			mv.visitJumpInsn(Opcodes.GOTO, innerGuard);
-			mv.visitLabel(innerBody);
+		// visit the pixel
+		assignPixelStmt.pixel.visit(this, mv);
 
-			// Body part start///////////////////////////////////////////
-			// This is SinglePixelAssignmentStmt in a loop over x and y
+		// generate code to update the pixel.
+		mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "setPixel",
+				"(III)V");
+	}
 
-			// first get the image.
-			String name = assignPixelStmt.lhsIdent.getText();
-			mv.visitFieldInsn(GETSTATIC, progName, name, PLPImage.classDesc);
+	/**
+	 * Generates a method with signature (II)V, to be run by
+	 * PLPKernel, that assigns the pixel of a whole-image assignment to the rows
+	 * [rowStart, rowEnd) of the image. The method has its own local variables,
+	 * so x and y are private to each band, and copies the variables it reads
+	 * from their fields into locals before the loops.
+	 * 
+	 * @param assignPixelStmt
+	 * @param kernelName
+	 * @param vars
+	 *            variables read by the pixel, which must have been spilled
+	 */
+	private void generatePixelKernel(AssignPixelStmt assignPixelStmt,
+			String kernelName, Set<String> vars) throws Exception {
+
+		MethodVisitor mv = cw.visitMethod(
+				memberAccess(ACC_PRIVATE + ACC_STATIC), kernelName,
+				PLPKernel.kernelDesc, null, null);
+
+		// the kernel numbers its local variables independently of main
+		HashMap<String, Integer> mainSlotMap = slotMap;
+		int mainSlot = slot;
+		slotMap = new HashMap<String, Integer>();
+		slot = 0;
+		reserveThis();
 
-			// Load x and y expressions.
-			mv.visitVarInsn(ILOAD, getSlot("x"));
-			mv.visitVarInsn(ILOAD, getSlot("y"));
+		mv.visitCode();
+		Label start = new Label();
+		mv.visitLabel(start);
+		mv.visitLineNumber(assignPixelStmt.lhsIdent.getLineNumber(), start);
+		int rowStart = getSlot("rowStart");
+		int rowEnd = getSlot("rowEnd");
 
-			// visit the pixel
-			assignPixelStmt.pixel.visit(this, mv);
+		getField(mv, assignPixelStmt.lhsIdent.getText(), PLPImage.classDesc);
+		mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "getWidth", "()I");
+		mv.visitVarInsn(ISTORE, getSlot("localWidth"));
+		fillVars(mv, vars);
 
-			// generate code to update the pixel.
-			mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "setPixel",
-					"(III)V");
+		generatePixelLoops(assignPixelStmt, mv, rowStart, rowEnd);
+		mv.visitInsn(RETURN);
 
-			// increase y by 1
-			mv.visitIincInsn(getSlot("y"), 1);
+		Label end = new Label();
+		mv.visitLabel(end);
+		mv.visitLocalVariable("rowStart", "I", null, start, end, rowStart);
+		mv.visitLocalVariable("rowEnd", "I", null, start, end, rowEnd);
+		mv.visitLocalVariable("x", "I", null, start, end, getSlot("x"));
+		mv.visitLocalVariable("y", "I", null, start, end, getSlot("y"));
+		visitVarLocals(mv, vars, start, end);
+		mv.visitMaxs(1, 1);
+		mv.visitEnd();
 
-			mv.visitLabel(innerGuard);
-			
-			// condition check
-			mv.visitVarInsn(ILOAD, getSlot("y"));
-			mv.visitVarInsn(ILOAD,getSlot("localHeight"));
-			
-			// check the condition
-			mv.visitJumpInsn(Opcodes.IF_ICMPLT, innerBody);
-			/*************************************************/
+		slotMap = mainSlotMap;
+		slot = mainSlot;
+	}
 
-			mv.visitIincInsn(getSlot("x"), 1);
+	/**
+	 * A whole-image assignment can be computed in any order, and so in
+	 * parallel, unless its pixel samples the image being assigned at a
+	 * location other than [x,y]: such a sample may or may not see pixels
+	 * already written by the assignment depending on the order. An image
+	 * that may alias the assigned one is taken to be it.
+	 * 
+	 * @param assignPixelStmt
+	 * @return true if the pixels can be computed independently
+	 */
+	private boolean isIndependentPerPixel(AssignPixelStmt assignPixelStmt)
+			throws Exception {
+		final String lhs = assignPixelStmt.lhsIdent.getText();
+		final boolean aliased = aliasedImages.contains(lhs);
+		final boolean[] independent = { true };
+		assignPixelStmt.pixel.visit(new TraversalVisitor() {
+			@Override
+			public Object visitSampleExpr(SampleExpr sampleExpr, Object arg)
+					throws Exception {
+				String image = sampleExpr.ident.getText();
+				if ((image.equals(lhs) || aliased
+						&& aliasedImages.contains(image))
+						&& !isSampleAtXY(sampleExpr)) {
+					independent[0] = false;
+				}
+				return super.visitSampleExpr(sampleExpr, arg);
+			}
+		}, null);
+		return independent[0];
+	}
 
-			mv.visitLabel(outerGuard);
-			
-			mv.visitVarInsn(ILOAD, getSlot("x"));
-			mv.visitVarInsn(ILOAD,getSlot("localWidth"));	
-			// check the condition
-			mv.visitJumpInsn(Opcodes.IF_ICMPLT, outerBody);
+	/**
+	 * @return the int, boolean and pixel variables read by node
+	 */
+	private Set<String> collectVars(ASTNode node) throws Exception {
+		final Set<String> vars = new LinkedHashSet<String>();
+		node.visit(new TraversalVisitor() {
+			@Override
+			public Object visitIdentExpr(IdentExpr identExpr, Object arg) {
+				String name = identExpr.ident.getText();
+				if (scalarVars.containsKey(name)) {
+					vars.add(name);
+				}
+				return null;
+			}
+		}, null);
+		return vars;
+	}
 
-			// Update the frame
-			mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className,
-					"updateFrame", PLPImage.updateFrameDesc);
-		}
-		return null;
+	private static boolean isPreDef(Expr expr, Kind kind) {
+		return expr instanceof PreDefExpr
+				&& ((PreDefExpr) expr).constantLit.kind == kind;
 	}
 
 	@Override
@@ -329,7 +2037,7 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 
 		// first get the image.
 		String imageName = singlePixelAssignmentStmt.lhsIdent.getText();
-		mv.visitFieldInsn(GETSTATIC, progName, imageName, PLPImage.classDesc);
+		getField(mv, imageName, PLPImage.classDesc);
 
 		// duplicate the address.
 		mv.visitInsn(DUP);
@@ -359,7 +2067,7 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 
 		// first get the image.
 		String imageName = singleSampleAssignmentStmt.lhsIdent.getText();
-		mv.visitFieldInsn(GETSTATIC, progName, imageName, PLPImage.classDesc);
+		getField(mv, imageName, PLPImage.classDesc);
 
 		// duplicate the address.
 		mv.visitInsn(DUP);
@@ -404,7 +2112,7 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		// ident.
 		// first get the image.
 		String imageName = screenLocationAssignmentStmt.lhsIdent.getText();
-		mv.visitFieldInsn(GETSTATIC, progName, imageName, PLPImage.classDesc);
+		getField(mv, imageName, PLPImage.classDesc);
 
 		// visit the x_Loc expression.
 		mv.visitInsn(DUP);
@@ -433,7 +2141,7 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 
 		// first get the image.
 		String imageName = shapeAssignmentStmt.lhsIdent.getText();
-		mv.visitFieldInsn(GETSTATIC, progName, imageName, PLPImage.classDesc);
+		getField(mv, imageName, PLPImage.classDesc);
 
 		// visit the height expression.
 		mv.visitInsn(DUP);
@@ -466,7 +2174,7 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		MethodVisitor mv = (MethodVisitor) arg;
 		// generate code to leave image on top of stack
 		String imageName = setVisibleAssignmentStmt.lhsIdent.getText();
-		mv.visitFieldInsn(GETSTATIC, progName, imageName, PLPImage.classDesc);
+		getField(mv, imageName, PLPImage.classDesc);
 		// duplicate address. Will consume one for updating setVisible field
 		// and one for invoking updateFrame.
 		mv.visitInsn(DUP);
@@ -487,12 +2195,12 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		MethodVisitor mv = (MethodVisitor) arg;
 		// generate code to leave address of target image on top of stack
 		String image_name = fileAssignStmt.lhsIdent.getText();
-		mv.visitFieldInsn(GETSTATIC, progName, image_name, typeMap.get(image));
+		getField(mv, image_name, typeMap.get(image));
 		// generate code to duplicate this address. We'll need it for loading
 		// the image and again for updating the frame.
 		mv.visitInsn(DUP);
 		// generate code to leave address of String containing a filename or url
-		mv.visitLdcInsn(fileAssignStmt.fileName.getText().replace("\"", ""));
+		mv.visitLdcInsn(imageSource(fileAssignStmt));
 		// generate code to get the image by calling the loadImage method
 		mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "loadImage",
 				PLPImage.loadImageDesc);
@@ -502,21 +2210,53 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		return null;
 	}
 
+	/**
+	 * @return the file name or URL assigned by fileAssignStmt, without quotes
+	 */
+	static String imageSource(cop5555fa13.ast.FileAssignStmt fileAssignStmt) {
+		return fileAssignStmt.fileName.getText().replace("\"", "");
+	}
+
+	/**
+	 * Collects the distinct image sources of all file assignments of program,
+	 * in the order they appear.
+	 * 
+	 * @param program
+	 * @return file names and URLs
+	 */
+	static Set<String> collectImageSources(Program program) throws Exception {
+		final Set<String> sources = new LinkedHashSet<String>();
+		program.visit(new TraversalVisitor() {
+			@Override
+			public Object FileAssignStmt(
+					cop5555fa13.ast.FileAssignStmt fileAssignStmt, Object arg) {
+				sources.add(imageSource(fileAssignStmt));
+				return null;
+			}
+		}, null);
+		return sources;
+	}
+
 	@Override
 	public Object visitConditionalExpr(ConditionalExpr conditionalExpr,
 			Object arg) throws Exception {
 		
 		MethodVisitor mv = (MethodVisitor) arg;
 
+		Integer trueConstant = constantValue(conditionalExpr.trueValue);
+		Integer falseConstant = constantValue(conditionalExpr.falseValue);
+		if (trueConstant != null && falseConstant != null) {
+			generateSelect(conditionalExpr.condition, mv, trueConstant,
+					falseConstant);
+			return null;
+		}
+
 		// create the labels
 		Label falseLabel = new Label();
 		Label endLabel = new Label();
 
-		// visit the expression.
-		conditionalExpr.condition.visit(this, mv);
-
 		// check the condition and jump to appropriate label.
-		mv.visitJumpInsn(Opcodes.IFEQ, falseLabel);
+		generateCondition(conditionalExpr.condition, mv, falseLabel, false);
 
 		// visit the statements in if part
 		conditionalExpr.trueValue.visit(this, mv);
@@ -534,12 +2274,252 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		return null;
 	}
 
+	/**
+	 * Generates code that jumps to target if the boolean expression cond
+	 * evaluates to jumpIf, and falls through otherwise. Comparisons jump
+	 * directly on their operands instead of computing 0 or 1 first, and & and
+	 * | of conditions jump as soon as their left operand decides the result,
+	 * when the right operand has no effect the program could observe: it
+	 * cannot throw and defines no temporary.
+	 */
+	private void generateCondition(Expr cond, MethodVisitor mv, Label target,
+			boolean jumpIf) throws Exception {
+
+		if (cond instanceof BooleanLitExpr) {
+			if (((BooleanLitExpr) cond).booleanLit.getBooleanVal() == jumpIf) {
+				mv.visitJumpInsn(Opcodes.GOTO, target);
+			}
+			return;
+		}
+		if (cond instanceof BinaryExpr) {
+			BinaryExpr binaryExpr = (BinaryExpr) cond;
+			Kind op = binaryExpr.op.kind;
+			if (isComparison(op)) {
+				if (!jumpIf) {
+					op = negate(op);
+				}
+				if (binaryExpr.e0.type == image) {
+					binaryExpr.e0.visit(this, mv);
+					binaryExpr.e1.visit(this, mv);
+					mv.visitJumpInsn(op == EQ ? Opcodes.IF_ACMPEQ
+							: Opcodes.IF_ACMPNE, target);
+				} else if (isZero(binaryExpr.e1)) {
+					binaryExpr.e0.visit(this, mv);
+					mv.visitJumpInsn(compareWithZero(op), target);
+				} else if (isZero(binaryExpr.e0)) {
+					binaryExpr.e1.visit(this, mv);
+					mv.visitJumpInsn(compareWithZero(swap(op)), target);
+				} else {
+					binaryExpr.e0.visit(this, mv);
+					binaryExpr.e1.visit(this, mv);
+					mv.visitJumpInsn(compare(op), target);
+				}
+				return;
+			}
+			if ((op == AND || op == OR) && isSkippable(binaryExpr.e1)) {
+				if (jumpIf == (op == OR)) {
+					// either operand alone decides to jump
+					generateCondition(binaryExpr.e0, mv, target, jumpIf);
+					generateCondition(binaryExpr.e1, mv, target, jumpIf);
+				} else {
+					// the left operand alone decides not to jump
+					Label skip = new Label();
+					generateCondition(binaryExpr.e0, mv, skip, !jumpIf);
+					generateCondition(binaryExpr.e1, mv, target, jumpIf);
+					mv.visitLabel(skip);
+				}
+				return;
+			}
+		}
+		cond.visit(this, mv);
+		mv.visitJumpInsn(jumpIf ? Opcodes.IFNE : Opcodes.IFEQ, target);
+	}
+
+	/**
+	 * Generates cond ? trueConstant : falseConstant without branches when
+	 * cond is a comparison of ints: its 0 or 1 value is computed with
+	 * arithmetic, then turned into a mask that selects one of the constants.
+	 */
+	private void generateSelect(Expr cond, MethodVisitor mv, int trueConstant,
+			int falseConstant) throws Exception {
+
+		generateConditionValue(cond, mv);
+		if (trueConstant == 1 && falseConstant == 0) {
+			return;
+		}
+		if (trueConstant == 0 && falseConstant == 1) {
+			mv.visitInsn(ICONST_1);
+			mv.visitInsn(IXOR);
+			return;
+		}
+		// -cond is all ones or zero: falseConstant ^ (mask & (trueConstant ^
+		// falseConstant))
+		mv.visitInsn(INEG);
+		mv.visitLdcInsn(trueConstant ^ falseConstant);
+		mv.visitInsn(IAND);
+		if (falseConstant != 0) {
+			mv.visitLdcInsn(falseConstant);
+			mv.visitInsn(IXOR);
+		}
+	}
+
+	/**
+	 * Leaves 1 on the stack if cond is true, 0 otherwise, computing
+	 * comparisons of ints without branches.
+	 */
+	private void generateConditionValue(Expr cond, MethodVisitor mv)
+			throws Exception {
+
+		if (cond instanceof BinaryExpr
+				&& isComparison(((BinaryExpr) cond).op.kind)
+				&& ((BinaryExpr) cond).e0.type != image) {
+			BinaryExpr binaryExpr = (BinaryExpr) cond;
+			Kind op = binaryExpr.op.kind;
+			if (op == EQ || op == NEQ) {
+				// d = e0 ^ e1 is 0 iff equal, and then only d | -d is not
+				// negative
+				binaryExpr.e0.visit(this, mv);
+				binaryExpr.e1.visit(this, mv);
+				mv.visitInsn(IXOR);
+				mv.visitInsn(DUP);
+				mv.visitInsn(INEG);
+				mv.visitInsn(IOR);
+				mv.visitLdcInsn(31);
+				mv.visitInsn(IUSHR);
+				if (op == EQ) {
+					mv.visitInsn(ICONST_1);
+					mv.visitInsn(IXOR);
+				}
+			} else {
+				// the sign of e0 - e1, or e1 - e0, computed in long so that
+				// it cannot overflow
+				binaryExpr.e0.visit(this, mv);
+				mv.visitInsn(I2L);
+				binaryExpr.e1.visit(this, mv);
+				mv.visitInsn(I2L);
+				mv.visitInsn(LSUB);
+				if (op == GT || op == LEQ) {
+					mv.visitInsn(LNEG);
+				}
+				mv.visitLdcInsn(63);
+				mv.visitInsn(LUSHR);
+				mv.visitInsn(L2I);
+				if (op == GEQ || op == LEQ) {
+					mv.visitInsn(ICONST_1);
+					mv.visitInsn(IXOR);
+				}
+			}
+			return;
+		}
+		cond.visit(this, mv);
+	}
+
+	private static boolean isComparison(Kind op) {
+		return op == EQ || op == NEQ || op == LT || op == GT || op == LEQ
+				|| op == GEQ;
+	}
+
+	/**
+	 * @return the comparison that is true when op is false
+	 */
+	private static Kind negate(Kind op) {
+		switch (op) {
+		case EQ: return NEQ;
+		case NEQ: return EQ;
+		case LT: return GEQ;
+		case GEQ: return LT;
+		case GT: return LEQ;
+		default: return GT;
+		}
+	}
+
+	/**
+	 * @return the comparison that is true when op is, with operands swapped
+	 */
+	private static Kind swap(Kind op) {
+		switch (op) {
+		case LT: return GT;
+		case GT: return LT;
+		case LEQ: return GEQ;
+		case GEQ: return LEQ;
+		default: return op;
+		}
+	}
+
+	private static int compare(Kind op) {
+		switch (op) {
+		case EQ: return Opcodes.IF_ICMPEQ;
+		case NEQ: return Opcodes.IF_ICMPNE;
+		case LT: return Opcodes.IF_ICMPLT;
+		case GEQ: return Opcodes.IF_ICMPGE;
+		case GT: return Opcodes.IF_ICMPGT;
+		default: return Opcodes.IF_ICMPLE;
+		}
+	}
+
+	private static int compareWithZero(Kind op) {
+		switch (op) {
+		case EQ: return Opcodes.IFEQ;
+		case NEQ: return Opcodes.IFNE;
+		case LT: return Opcodes.IFLT;
+		case GEQ: return Opcodes.IFGE;
+		case GT: return Opcodes.IFGT;
+		default: return Opcodes.IFLE;
+		}
+	}
+
+	private static boolean isZero(Expr expr) {
+		Integer value = ConstantFoldVisitor.intValue(expr);
+		return value != null && value == 0;
+	}
+
+	/**
+	 * @return the value of an int or boolean literal, or null
+	 */
+	private static Integer constantValue(Expr expr) {
+		if (expr instanceof BooleanLitExpr) {
+			return ((BooleanLitExpr) expr).booleanLit.getBooleanVal() ? 1 : 0;
+		}
+		return ConstantFoldVisitor.intValue(expr);
+	}
+
+	/**
+	 * @return true if not evaluating expr cannot be observed
+	 */
+	private static boolean isSkippable(Expr expr) throws Exception {
+		if (ConstantFoldVisitor.mayThrow(expr)) {
+			return false;
+		}
+		final boolean[] definesTemp = { false };
+		expr.visit(new TraversalVisitor() {
+			@Override
+			public Object visitTempExpr(TempExpr tempExpr, Object arg)
+					throws Exception {
+				definesTemp[0] |= tempExpr.isDefinition();
+				return super.visitTempExpr(tempExpr, arg);
+			}
+		}, null);
+		return !definesTemp[0];
+	}
+
 	@Override
 	public Object visitBinaryExpr(BinaryExpr binaryExpr, Object arg)
 			throws Exception {
 
 		MethodVisitor mv = (MethodVisitor) arg;
 
+		if (isComparison(binaryExpr.op.kind)) {
+			Label trueLabel = new Label();
+			Label endLabel = new Label();
+			generateCondition(binaryExpr, mv, trueLabel, true);
+			mv.visitInsn(ICONST_0);
+			mv.visitJumpInsn(Opcodes.GOTO, endLabel);
+			mv.visitLabel(trueLabel);
+			mv.visitInsn(ICONST_1);
+			mv.visitLabel(endLabel);
+			return null;
+		}
+
 		// visit e0 and e1 so that they leave their values on stack.
 		binaryExpr.e0.visit(this, mv);
 		binaryExpr.e1.visit(this, mv);
@@ -563,78 +2543,6 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 			mv.visitInsn(IAND);
 		} else if (binaryExpr.op.kind == Kind.OR) {
 			mv.visitInsn(IOR);
-		} else if (binaryExpr.op.kind == Kind.EQ) {
-
-			Label trueLabel = new Label();
-			Label endLabel = new Label();
-			// check the condition EQ
-			mv.visitJumpInsn(Opcodes.IF_ICMPEQ, trueLabel);
-			mv.visitInsn(ICONST_0);
-			mv.visitJumpInsn(Opcodes.GOTO, endLabel);
-			mv.visitLabel(trueLabel);
-			mv.visitInsn(ICONST_1);
-			mv.visitLabel(endLabel);
-
-		} else if (binaryExpr.op.kind == Kind.NEQ) {
-
-			Label trueLabel = new Label();
-			Label endLabel = new Label();
-			// check the condition NEQ
-			mv.visitJumpInsn(Opcodes.IF_ICMPNE, trueLabel);
-			mv.visitInsn(ICONST_0);
-			mv.visitJumpInsn(Opcodes.GOTO, endLabel);
-			mv.visitLabel(trueLabel);
-			mv.visitInsn(ICONST_1);
-			mv.visitLabel(endLabel);
-
-		} else if (binaryExpr.op.kind == Kind.GT) {
-
-			Label trueLabel = new Label();
-			Label endLabel = new Label();
-			// check the condition GT
-			mv.visitJumpInsn(Opcodes.IF_ICMPGT, trueLabel);
-			mv.visitInsn(ICONST_0);
-			mv.visitJumpInsn(Opcodes.GOTO, endLabel);
-			mv.visitLabel(trueLabel);
-			mv.visitInsn(ICONST_1);
-			mv.visitLabel(endLabel);
-
-		} else if (binaryExpr.op.kind == Kind.GEQ) {
-
-			Label trueLabel = new Label();
-			Label endLabel = new Label();
-			// check the condition GE
-			mv.visitJumpInsn(Opcodes.IF_ICMPGE, trueLabel);
-			mv.visitInsn(ICONST_0);
-			mv.visitJumpInsn(Opcodes.GOTO, endLabel);
-			mv.visitLabel(trueLabel);
-			mv.visitInsn(ICONST_1);
-			mv.visitLabel(endLabel);
-
-		} else if (binaryExpr.op.kind == Kind.LT) {
-
-			Label trueLabel = new Label();
-			Label endLabel = new Label();
-			// check the condition LT
-			mv.visitJumpInsn(Opcodes.IF_ICMPLT, trueLabel);
-			mv.visitInsn(ICONST_0);
-			mv.visitJumpInsn(Opcodes.GOTO, endLabel);
-			mv.visitLabel(trueLabel);
-			mv.visitInsn(ICONST_1);
-			mv.visitLabel(endLabel);
-
-		} else if (binaryExpr.op.kind == Kind.LEQ) {
-
-			Label trueLabel = new Label();
-			Label endLabel = new Label();
-			// check the condition LE
-			mv.visitJumpInsn(Opcodes.IF_ICMPLE, trueLabel);
-			mv.visitInsn(ICONST_0);
-			mv.visitJumpInsn(Opcodes.GOTO, endLabel);
-			mv.visitLabel(trueLabel);
-			mv.visitInsn(ICONST_1);
-			mv.visitLabel(endLabel);
-
 		} else {
 			throw new CompilerErrorException("Invalid Operand found");
 		}
@@ -648,25 +2556,35 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 
 		MethodVisitor mv = (MethodVisitor) arg;
 
-		// get the image.
 		String image_name = sampleExpr.ident.getText();
-		mv.visitFieldInsn(GETSTATIC, progName, image_name, typeMap.get(image));
+		int colorCode = colorCode(sampleExpr.color.getText());
+
+		if (isSampleAtXY(sampleExpr) && isFused(image_name)) {
+			// the pixel computed by the producer in these loops
+			mv.visitVarInsn(ILOAD, getSlot(fusedKey(image_name)));
+			generateSampleOf(mv, colorCode);
+			return null;
+		}
+		if (isSampleAtXY(sampleExpr) && hoistedRasters.contains(image_name)) {
+			// raster[y * stride + x], bounds checked before the loops
+			mv.visitVarInsn(ALOAD, getSlot(rasterKey(image_name)));
+			mv.visitVarInsn(ILOAD, getSlot("y"));
+			mv.visitVarInsn(ILOAD, getSlot(strideKey(image_name)));
+			mv.visitInsn(IMUL);
+			mv.visitVarInsn(ILOAD, getSlot("x"));
+			mv.visitInsn(IADD);
+			mv.visitInsn(IALOAD);
+			generateSampleOf(mv, colorCode);
+			return null;
+		}
+
+		// get the image.
+		getField(mv, image_name, typeMap.get(image));
 
 		// evaluate the expressions.
 		sampleExpr.xLoc.visit(this, mv);
 		sampleExpr.yLoc.visit(this, mv);
 
-		String color = sampleExpr.color.getText();
-		int colorCode = -1;
-		if (color.equalsIgnoreCase("red")) {
-			colorCode = ImageConstants.RED;
-		} else if (color.equalsIgnoreCase("green")) {
-			colorCode = ImageConstants.GRN;
-		} else if (color.equalsIgnoreCase("blue")) {
-			colorCode = ImageConstants.BLU;
-		} else {
-			throw new CompilerErrorException("Invalid color name. must be one of {'red' , 'green', 'blue'}");
-		}
 		mv.visitLdcInsn(colorCode);
 
 		// generate code to update the pixel.
@@ -676,6 +2594,34 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		return null;
 	}
 
+	/**
+	 * @return the ImageConstants code of the color named red, green or blue
+	 */
+	static int colorCode(String color) throws CompilerErrorException {
+		if (color.equalsIgnoreCase("red")) {
+			return ImageConstants.RED;
+		} else if (color.equalsIgnoreCase("green")) {
+			return ImageConstants.GRN;
+		} else if (color.equalsIgnoreCase("blue")) {
+			return ImageConstants.BLU;
+		}
+		throw new CompilerErrorException("Invalid color name. must be one of {'red' , 'green', 'blue'}");
+	}
+
+	/**
+	 * Replaces the pixel on top of the stack by its sample of the given
+	 * color, (pixel >>> offset) & 0xff.
+	 */
+	private static void generateSampleOf(MethodVisitor mv, int colorCode) {
+		int offset = ImageConstants.BITOFFSETS[colorCode];
+		if (offset != 0) {
+			mv.visitLdcInsn(offset);
+			mv.visitInsn(IUSHR);
+		}
+		mv.visitLdcInsn(0xff);
+		mv.visitInsn(IAND);
+	}
+
 	@Override
 	public Object visitImageAttributeExpr(
 			ImageAttributeExpr imageAttributeExpr, Object arg) throws Exception {
@@ -684,7 +2630,7 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 
 		// get the image
 		String image_name = imageAttributeExpr.ident.getText();
-		mv.visitFieldInsn(GETSTATIC, progName, image_name, typeMap.get(image));
+		getField(mv, image_name, typeMap.get(image));
 
 		if(imageAttributeExpr.selector.kind == Kind.x_loc) {
 			mv.visitMethodInsn(INVOKEVIRTUAL, PLPImage.className, "getX_loc", "()I");
@@ -706,8 +2652,13 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 			throws Exception {
 
 		MethodVisitor mv = (MethodVisitor) arg;
-		mv.visitFieldInsn(GETSTATIC, progName, identExpr.ident.getText(),
-				typeMap.get(identExpr.type));
+		String name = identExpr.ident.getText();
+		if (scalarVars.containsKey(name)) {
+			loadVar(mv, name);
+		} else {
+			getField(mv, name,
+					typeMap.get(identExpr.type));
+		}
 		return null;
 	}
 
@@ -741,7 +2692,8 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		if (PreDefExpr.type == Kind.Z) {
 			mv.visitLdcInsn(ImageConstants.Z);
 		} else if (PreDefExpr.type == Kind.SCREEN_SIZE) {
-			mv.visitLdcInsn(PLPImage.SCREENSIZE);
+			// read at run time, the screen may differ from the one compiled on
+			mv.visitFieldInsn(GETSTATIC, PLPImage.className, "SCREENSIZE", "I");
 		} else if (PreDefExpr.type == Kind.x) {
 			mv.visitVarInsn(ILOAD, getSlot("x"));
 		} else if (PreDefExpr.type == Kind.y) {
@@ -756,6 +2708,23 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		return null;
 	}
 
+	@Override
+	public Object visitTempExpr(TempExpr tempExpr, Object arg)
+			throws Exception {
+
+		MethodVisitor mv = (MethodVisitor) arg;
+		int tempSlot = getSlot("temp." + tempExpr.id);
+		if (tempExpr.isDefinition()) {
+			// evaluate, and keep a copy for the other occurrences
+			tempExpr.expr.visit(this, mv);
+			mv.visitInsn(DUP);
+			mv.visitVarInsn(ISTORE, tempSlot);
+		} else {
+			mv.visitVarInsn(ILOAD, tempSlot);
+		}
+		return null;
+	}
+
 	@Override
 	public Object visitAssignExprStmt(AssignExprStmt assignExprStmt, Object arg)
 			throws Exception {
@@ -765,12 +2734,18 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes {
 		assignExprStmt.expr.visit(this, mv);
 		// set the value of right hand side expression to left hand side
 		// variable.
-		if (assignExprStmt.expr.type == Kind.SCREEN_SIZE) {
+		if (assignExprStmt.expr.type == Kind.SCREEN_SIZE
+				|| assignExprStmt.expr.type == Kind.x
+				|| assignExprStmt.expr.type == Kind.y) {
 			assignExprStmt.expr.type = Kind._int;
 		}
-		mv.visitFieldInsn(PUTSTATIC, progName,
-				assignExprStmt.lhsIdent.getText(),
-				typeMap.get(assignExprStmt.expr.type));
+		String name = assignExprStmt.lhsIdent.getText();
+		if (scalarVars.containsKey(name)) {
+			storeVar(mv, name);
+		} else {
+			putField(mv, name,
+					typeMap.get(assignExprStmt.expr.type));
+		}
 		return null;
 	}
 
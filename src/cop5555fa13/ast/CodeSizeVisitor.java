@@ -0,0 +1,319 @@
+package cop5555fa13.ast;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import cop5555fa13.CompilerOptions;
+
+/**
+ * Estimates the number of bytes of bytecode CodeGenVisitor generates for a
+ * node in the method containing it, so that statement lists can be split
+ * before their method exceeds the limits of the JVM. The visit methods return
+ * an Integer.
+ *
+ * The estimates are upper bounds: every load of a local variable or constant
+ * is counted at its widest encoding, and comparisons and conditionals at the
+ * size of their longest branches. The code of the outlined loops and kernels
+ * of whole-image assignments, which is in methods of its own, only counts for
+ * their call.
+ */
+public class CodeSizeVisitor implements ASTVisitor {
+
+	// a local variable load or store, or a constant, at its widest
+	private static final int LOAD = 4;
+	// a field access or method invocation
+	private static final int INVOKE = 3;
+	// the loops of a whole-image assignment, without the pixel
+	private static final int LOOPS = 200;
+	// a hoisted raster or fused producer pixel
+	private static final int RASTER = 40;
+
+	private final CompilerOptions options;
+
+	public CodeSizeVisitor(CompilerOptions options) {
+		this.options = options;
+	}
+
+	public int size(ASTNode node) throws Exception {
+		return (Integer) node.visit(this, null);
+	}
+
+	public int size(List<Stmt> stmts) throws Exception {
+		int size = 0;
+		for (Stmt stmt : stmts) {
+			size += size(stmt);
+		}
+		return size;
+	}
+
+	@Override
+	public Object visitDec(Dec dec, Object arg) throws Exception {
+		return 2 * INVOKE + 2 * LOAD + 4;
+	}
+
+	@Override
+	public Object visitProgram(Program program, Object arg) throws Exception {
+		int size = 0;
+		for (Dec dec : program.decList) {
+			size += size(dec);
+		}
+		return size + size(program.stmtList);
+	}
+
+	@Override
+	public Object visitAlternativeStmt(AlternativeStmt alternativeStmt,
+			Object arg) throws Exception {
+		return size(alternativeStmt.expr) + 2 * INVOKE
+				+ size(alternativeStmt.ifStmtList)
+				+ size(alternativeStmt.elseStmtList);
+	}
+
+	@Override
+	public Object visitPauseStmt(PauseStmt pauseStmt, Object arg)
+			throws Exception {
+		return size(pauseStmt.expr) + INVOKE;
+	}
+
+	@Override
+	public Object visitIterationStmt(IterationStmt iterationStmt, Object arg)
+			throws Exception {
+		return size(iterationStmt.expr) + 2 * INVOKE
+				+ size(iterationStmt.stmtList);
+	}
+
+	@Override
+	public Object visitAssignPixelStmt(AssignPixelStmt assignPixelStmt,
+			Object arg) throws Exception {
+		if (assignPixelStmt.ispixel) {
+			return size(assignPixelStmt.pixel) + LOAD;
+		}
+		int size = imageAssignmentSize(assignPixelStmt);
+		if (!assignPixelStmt.producers.isEmpty()) {
+			// the fused assignment, and the producers and the assignment as
+			// written in case the sizes differ
+			size *= 2;
+			for (AssignPixelStmt producer : assignPixelStmt.producers) {
+				size += imageAssignmentSize(producer) + 8 * INVOKE + 2;
+			}
+		}
+		return size;
+	}
+
+	private int imageAssignmentSize(AssignPixelStmt assignPixelStmt)
+			throws Exception {
+		int vars = identNames(assignPixelStmt).size();
+		if (options.outline && vars <= CodeGenVisitor.maxParameters(options)) {
+			// a call, after loading or spilling the variables
+			return vars * (LOAD + INVOKE) + 8 * INVOKE + 4;
+		}
+		int size = LOOPS + size(assignPixelStmt.pixel);
+		for (AssignPixelStmt producer : assignPixelStmt.producers) {
+			size += size(producer.pixel) + RASTER;
+		}
+		for (TempExpr t : assignPixelStmt.loopInvariants) {
+			size += size(t) + LOAD;
+		}
+		for (TempExpr t : assignPixelStmt.rowInvariants) {
+			size += size(t) + LOAD;
+		}
+		for (TempExpr t : assignPixelStmt.columnInvariants) {
+			// evaluated into an array before the loops, loaded from it in them
+			size += size(t) + 4 * LOAD;
+		}
+		if (!assignPixelStmt.columnInvariants.isEmpty()) {
+			size += LOOPS;
+		}
+		size += RASTER * samples(assignPixelStmt);
+		if (options.vector) {
+			// a vector operation takes up to three times the bytes of the
+			// scalar one, and the scalar loop is kept for the last columns
+			size *= 4;
+		}
+		return size;
+	}
+
+	private static Set<String> identNames(ASTNode node) throws Exception {
+		final Set<String> names = new HashSet<String>();
+		node.visit(new TraversalVisitor() {
+			@Override
+			public Object visitIdentExpr(IdentExpr identExpr, Object arg) {
+				names.add(identExpr.ident.getText());
+				return null;
+			}
+		}, null);
+		return names;
+	}
+
+	private static int samples(ASTNode node) throws Exception {
+		final int[] samples = { 0 };
+		node.visit(new TraversalVisitor() {
+			@Override
+			public Object visitSampleExpr(SampleExpr sampleExpr, Object arg)
+					throws Exception {
+				samples[0]++;
+				return super.visitSampleExpr(sampleExpr, arg);
+			}
+		}, null);
+		return samples[0];
+	}
+
+	@Override
+	public Object visitPixel(Pixel pixel, Object arg) throws Exception {
+		return size(pixel.redExpr) + size(pixel.greenExpr)
+				+ size(pixel.blueExpr) + INVOKE;
+	}
+
+	@Override
+	public Object visitSinglePixelAssignmentStmt(
+			SinglePixelAssignmentStmt singlePixelAssignmentStmt, Object arg)
+			throws Exception {
+		return size(singlePixelAssignmentStmt.xExpr)
+				+ size(singlePixelAssignmentStmt.yExpr)
+				+ size(singlePixelAssignmentStmt.pixel) + 3 * INVOKE + 1;
+	}
+
+	@Override
+	public Object visitSingleSampleAssignmentStmt(
+			SingleSampleAssignmentStmt singleSampleAssignmentStmt, Object arg)
+			throws Exception {
+		return size(singleSampleAssignmentStmt.xExpr)
+				+ size(singleSampleAssignmentStmt.yExpr)
+				+ size(singleSampleAssignmentStmt.rhsExpr) + 3 * INVOKE
+				+ LOAD + 1;
+	}
+
+	@Override
+	public Object visitScreenLocationAssignmentStmt(
+			ScreenLocationAssignmentStmt screenLocationAssignmentStmt,
+			Object arg) throws Exception {
+		return size(screenLocationAssignmentStmt.xScreenExpr)
+				+ size(screenLocationAssignmentStmt.yScreenExpr) + 4 * INVOKE
+				+ 2;
+	}
+
+	@Override
+	public Object visitShapeAssignmentStmt(
+			ShapeAssignmentStmt shapeAssignmentStmt, Object arg)
+			throws Exception {
+		return size(shapeAssignmentStmt.width)
+				+ size(shapeAssignmentStmt.height) + 5 * INVOKE + 3;
+	}
+
+	@Override
+	public Object visitSetVisibleAssignmentStmt(
+			SetVisibleAssignmentStmt setVisibleAssignmentStmt, Object arg)
+			throws Exception {
+		return size(setVisibleAssignmentStmt.expr) + 3 * INVOKE + 1;
+	}
+
+	@Override
+	public Object FileAssignStmt(FileAssignStmt fileAssignStmt, Object arg)
+			throws Exception {
+		return 3 * INVOKE + LOAD + 1;
+	}
+
+	@Override
+	public Object visitConditionalExpr(ConditionalExpr conditionalExpr,
+			Object arg) throws Exception {
+		return size(conditionalExpr.condition)
+				+ size(conditionalExpr.trueValue)
+				+ size(conditionalExpr.falseValue) + 2 * INVOKE;
+	}
+
+	@Override
+	public Object visitBinaryExpr(BinaryExpr binaryExpr, Object arg)
+			throws Exception {
+		// a comparison branches to push 0 or 1
+		return size(binaryExpr.e0) + size(binaryExpr.e1) + 2 * INVOKE + 2;
+	}
+
+	@Override
+	public Object visitSampleExpr(SampleExpr sampleExpr, Object arg)
+			throws Exception {
+		return size(sampleExpr.xLoc) + size(sampleExpr.yLoc) + RASTER;
+	}
+
+	@Override
+	public Object visitImageAttributeExpr(
+			ImageAttributeExpr imageAttributeExpr, Object arg)
+			throws Exception {
+		return 2 * INVOKE;
+	}
+
+	@Override
+	public Object visitIdentExpr(IdentExpr identExpr, Object arg)
+			throws Exception {
+		return LOAD;
+	}
+
+	@Override
+	public Object visitIntLitExpr(IntLitExpr intLitExpr, Object arg)
+			throws Exception {
+		return LOAD;
+	}
+
+	@Override
+	public Object visitBooleanLitExpr(BooleanLitExpr booleanLitExpr,
+			Object arg) throws Exception {
+		return LOAD;
+	}
+
+	@Override
+	public Object visitPreDefExpr(PreDefExpr PreDefExpr, Object arg)
+			throws Exception {
+		return LOAD;
+	}
+
+	@Override
+	public Object visitAssignExprStmt(AssignExprStmt assignExprStmt,
+			Object arg) throws Exception {
+		return size(assignExprStmt.expr) + LOAD;
+	}
+
+	@Override
+	public Object visitTempExpr(TempExpr tempExpr, Object arg)
+			throws Exception {
+		if (tempExpr.isDefinition()) {
+			return size(tempExpr.expr) + LOAD + 1;
+		}
+		return LOAD;
+	}
+
+	@Override
+	public Object visitParallelStmt(ParallelStmt parallelStmt, Object arg)
+			throws Exception {
+		// spilling and filling the variables, and building the array of
+		// tasks
+		int size = 4 * INVOKE;
+		for (List<Stmt> task : parallelStmt.tasks) {
+			Set<String> vars = new HashSet<String>();
+			for (Stmt stmt : task) {
+				vars.addAll(identNames(stmt));
+				vars.addAll(assignedNames(stmt));
+			}
+			size += 2 * vars.size() * (LOAD + INVOKE) + INVOKE + LOAD + 2;
+		}
+		return size;
+	}
+
+	private static Set<String> assignedNames(Stmt stmt) throws Exception {
+		final Set<String> names = new HashSet<String>();
+		stmt.visit(new TraversalVisitor() {
+			@Override
+			public Object visitAssignExprStmt(AssignExprStmt stmt, Object arg)
+					throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return super.visitAssignExprStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitAssignPixelStmt(AssignPixelStmt stmt, Object arg)
+					throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return super.visitAssignPixelStmt(stmt, arg);
+			}
+		}, null);
+		return names;
+	}
+}
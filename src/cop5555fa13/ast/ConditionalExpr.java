@@ -1,9 +1,9 @@
 package cop5555fa13.ast;
 
 public class ConditionalExpr extends Expr {
-	final Expr condition;
-	final Expr trueValue;
-	final Expr falseValue;
+	Expr condition;
+	Expr trueValue;
+	Expr falseValue;
 	public ConditionalExpr(Expr condition, Expr trueValue, Expr falseValue) {
 		super();
 		this.condition = condition;
@@ -0,0 +1,501 @@
+package cop5555fa13.ast;
+
+import java.util.List;
+import java.util.ListIterator;
+
+import cop5555fa13.TokenStream;
+import cop5555fa13.TokenStream.Kind;
+import cop5555fa13.runtime.ImageConstants;
+
+/**
+ * Constant folding and algebraic simplification. Every expression of the
+ * program is rewritten bottom up:
+ *
+ * <ul>
+ * <li>Z and operators whose operands are all literals are replaced by their
+ * value. A division or modulo by a literal 0 is left to fail at run time.</li>
+ * <li>Identities such as e + 0, e * 1, e / 1, e << 0, e & true and e | false
+ * are replaced by e.</li>
+ * <li>e * 0, e % 1, e & false and e | true are replaced by their value when
+ * evaluating e cannot throw (a division, a modulo or a sample).</li>
+ * <li>e * 2^k becomes e << k, and when e is known not to be negative, e / 2^k
+ * becomes e >> k and e % 2^k becomes e & (2^k - 1).</li>
+ * <li>Conditional expressions with a literal condition are replaced by the
+ * selected value, if statements with a literal condition by the statements
+ * of the selected branch, and while statements with a false condition are
+ * removed.</li>
+ * </ul>
+ *
+ * SCREEN_SIZE is not folded, since it is read at run time. An expression is
+ * only replaced by one of its operands when both are integers, or both have
+ * the same type.
+ */
+public class ConstantFoldVisitor extends TraversalVisitor {
+
+	@Override
+	public Object visitProgram(Program program, Object arg) throws Exception {
+		foldStmts(program.stmtList);
+		return null;
+	}
+
+	@Override
+	public Object visitAlternativeStmt(AlternativeStmt alternativeStmt,
+			Object arg) throws Exception {
+		alternativeStmt.expr = fold(alternativeStmt.expr);
+		foldStmts(alternativeStmt.ifStmtList);
+		foldStmts(alternativeStmt.elseStmtList);
+		return null;
+	}
+
+	@Override
+	public Object visitPauseStmt(PauseStmt pauseStmt, Object arg)
+			throws Exception {
+		pauseStmt.expr = fold(pauseStmt.expr);
+		return null;
+	}
+
+	@Override
+	public Object visitIterationStmt(IterationStmt iterationStmt, Object arg)
+			throws Exception {
+		iterationStmt.expr = fold(iterationStmt.expr);
+		foldStmts(iterationStmt.stmtList);
+		return null;
+	}
+
+	@Override
+	public Object visitPixel(Pixel pixel, Object arg) throws Exception {
+		pixel.redExpr = fold(pixel.redExpr);
+		pixel.greenExpr = fold(pixel.greenExpr);
+		pixel.blueExpr = fold(pixel.blueExpr);
+		return null;
+	}
+
+	@Override
+	public Object visitSinglePixelAssignmentStmt(
+			SinglePixelAssignmentStmt singlePixelAssignmentStmt, Object arg)
+			throws Exception {
+		singlePixelAssignmentStmt.xExpr = fold(singlePixelAssignmentStmt.xExpr);
+		singlePixelAssignmentStmt.yExpr = fold(singlePixelAssignmentStmt.yExpr);
+		singlePixelAssignmentStmt.pixel.visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitSingleSampleAssignmentStmt(
+			SingleSampleAssignmentStmt singleSampleAssignmentStmt, Object arg)
+			throws Exception {
+		singleSampleAssignmentStmt.xExpr = fold(singleSampleAssignmentStmt.xExpr);
+		singleSampleAssignmentStmt.yExpr = fold(singleSampleAssignmentStmt.yExpr);
+		singleSampleAssignmentStmt.rhsExpr = fold(singleSampleAssignmentStmt.rhsExpr);
+		return null;
+	}
+
+	@Override
+	public Object visitScreenLocationAssignmentStmt(
+			ScreenLocationAssignmentStmt screenLocationAssignmentStmt,
+			Object arg) throws Exception {
+		screenLocationAssignmentStmt.xScreenExpr = fold(screenLocationAssignmentStmt.xScreenExpr);
+		screenLocationAssignmentStmt.yScreenExpr = fold(screenLocationAssignmentStmt.yScreenExpr);
+		return null;
+	}
+
+	@Override
+	public Object visitShapeAssignmentStmt(
+			ShapeAssignmentStmt shapeAssignmentStmt, Object arg)
+			throws Exception {
+		shapeAssignmentStmt.width = fold(shapeAssignmentStmt.width);
+		shapeAssignmentStmt.height = fold(shapeAssignmentStmt.height);
+		return null;
+	}
+
+	@Override
+	public Object visitSetVisibleAssignmentStmt(
+			SetVisibleAssignmentStmt setVisibleAssignmentStmt, Object arg)
+			throws Exception {
+		setVisibleAssignmentStmt.expr = fold(setVisibleAssignmentStmt.expr);
+		return null;
+	}
+
+	@Override
+	public Object visitAssignExprStmt(AssignExprStmt assignExprStmt, Object arg)
+			throws Exception {
+		assignExprStmt.expr = fold(assignExprStmt.expr);
+		return null;
+	}
+
+	/**
+	 * Folds the statements of stmtList, and replaces the if and while
+	 * statements whose condition became a literal.
+	 */
+	private void foldStmts(List<Stmt> stmtList) throws Exception {
+		ListIterator<Stmt> it = stmtList.listIterator();
+		while (it.hasNext()) {
+			Stmt stmt = it.next();
+			stmt.visit(this, null);
+			if (stmt instanceof AlternativeStmt) {
+				AlternativeStmt alt = (AlternativeStmt) stmt;
+				Boolean condition = booleanValue(alt.expr);
+				if (condition != null) {
+					it.remove();
+					for (Stmt s : condition ? alt.ifStmtList : alt.elseStmtList) {
+						it.add(s);
+					}
+				}
+			} else if (stmt instanceof IterationStmt) {
+				Boolean condition = booleanValue(((IterationStmt) stmt).expr);
+				if (condition != null && !condition) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the folded expression, which is expr itself or a replacement
+	 */
+	Expr fold(Expr expr) {
+		if (expr instanceof BinaryExpr) {
+			BinaryExpr b = (BinaryExpr) expr;
+			b.e0 = fold(b.e0);
+			b.e1 = fold(b.e1);
+			return foldBinary(b);
+		} else if (expr instanceof ConditionalExpr) {
+			ConditionalExpr c = (ConditionalExpr) expr;
+			c.condition = fold(c.condition);
+			c.trueValue = fold(c.trueValue);
+			c.falseValue = fold(c.falseValue);
+			Boolean condition = booleanValue(c.condition);
+			if (condition != null) {
+				return replaceBy(c, condition ? c.trueValue : c.falseValue);
+			}
+		} else if (expr instanceof SampleExpr) {
+			SampleExpr s = (SampleExpr) expr;
+			s.xLoc = fold(s.xLoc);
+			s.yLoc = fold(s.yLoc);
+		} else if (expr instanceof TempExpr) {
+			TempExpr t = (TempExpr) expr;
+			if (t.isDefinition()) {
+				t.expr = fold(t.expr);
+			}
+		} else if (expr instanceof PreDefExpr
+				&& ((PreDefExpr) expr).constantLit.kind == Kind.Z) {
+			return intLit(ImageConstants.Z);
+		}
+		return expr;
+	}
+
+	private Expr foldBinary(BinaryExpr b) {
+		Kind op = b.op.kind;
+		Integer i0 = intValue(b.e0);
+		Integer i1 = intValue(b.e1);
+		if (i0 != null && i1 != null) {
+			int v0 = i0, v1 = i1;
+			switch (op) {
+			case PLUS:
+				return intLit(v0 + v1);
+			case MINUS:
+				return intLit(v0 - v1);
+			case TIMES:
+				return intLit(v0 * v1);
+			case DIV:
+				return v1 == 0 ? b : intLit(v0 / v1);
+			case MOD:
+				return v1 == 0 ? b : intLit(v0 % v1);
+			case LSHIFT:
+				return intLit(v0 << v1);
+			case RSHIFT:
+				return intLit(v0 >> v1);
+			case AND:
+				return intLit(v0 & v1);
+			case OR:
+				return intLit(v0 | v1);
+			case EQ:
+				return booleanLit(v0 == v1);
+			case NEQ:
+				return booleanLit(v0 != v1);
+			case LT:
+				return booleanLit(v0 < v1);
+			case GT:
+				return booleanLit(v0 > v1);
+			case LEQ:
+				return booleanLit(v0 <= v1);
+			case GEQ:
+				return booleanLit(v0 >= v1);
+			default:
+				return b;
+			}
+		}
+		Boolean b0 = booleanValue(b.e0);
+		Boolean b1 = booleanValue(b.e1);
+		if (b0 != null && b1 != null) {
+			switch (op) {
+			case AND:
+				return booleanLit(b0 & b1);
+			case OR:
+				return booleanLit(b0 | b1);
+			case EQ:
+				return booleanLit(b0.booleanValue() == b1.booleanValue());
+			case NEQ:
+				return booleanLit(b0.booleanValue() != b1.booleanValue());
+			default:
+				return b;
+			}
+		}
+		switch (op) {
+		case PLUS:
+			if (isInt(i1, 0)) {
+				return replaceBy(b, b.e0);
+			} else if (isInt(i0, 0)) {
+				return replaceBy(b, b.e1);
+			}
+			break;
+		case MINUS:
+			if (isInt(i1, 0)) {
+				return replaceBy(b, b.e0);
+			}
+			break;
+		case TIMES:
+			if (isInt(i1, 1)) {
+				return replaceBy(b, b.e0);
+			} else if (isInt(i0, 1)) {
+				return replaceBy(b, b.e1);
+			} else if ((isInt(i1, 0) && !mayThrow(b.e0))
+					|| (isInt(i0, 0) && !mayThrow(b.e1))) {
+				return intLit(0);
+			} else if (log2(i1) > 0) {
+				return binary(b.e0, Kind.LSHIFT, "<<", intLit(log2(i1)));
+			} else if (log2(i0) > 0) {
+				return binary(b.e1, Kind.LSHIFT, "<<", intLit(log2(i0)));
+			}
+			break;
+		case DIV:
+			if (isInt(i1, 1)) {
+				return replaceBy(b, b.e0);
+			} else if (log2(i1) > 0 && isNonNegative(b.e0)) {
+				return binary(b.e0, Kind.RSHIFT, ">>", intLit(log2(i1)));
+			}
+			break;
+		case MOD:
+			if (isInt(i1, 1) && !mayThrow(b.e0)) {
+				return intLit(0);
+			} else if (log2(i1) > 0 && isNonNegative(b.e0)) {
+				return binary(b.e0, Kind.AND, "&", intLit(i1 - 1));
+			}
+			break;
+		case LSHIFT:
+		case RSHIFT:
+			if (i1 != null && (i1 & 31) == 0) {
+				return replaceBy(b, b.e0);
+			}
+			break;
+		case AND:
+			if (Boolean.TRUE.equals(b1)) {
+				return replaceBy(b, b.e0);
+			} else if (Boolean.TRUE.equals(b0)) {
+				return replaceBy(b, b.e1);
+			} else if ((Boolean.FALSE.equals(b1) && !mayThrow(b.e0))
+					|| (Boolean.FALSE.equals(b0) && !mayThrow(b.e1))) {
+				return booleanLit(false);
+			}
+			break;
+		case OR:
+			if (Boolean.FALSE.equals(b1)) {
+				return replaceBy(b, b.e0);
+			} else if (Boolean.FALSE.equals(b0)) {
+				return replaceBy(b, b.e1);
+			} else if ((Boolean.TRUE.equals(b1) && !mayThrow(b.e0))
+					|| (Boolean.TRUE.equals(b0) && !mayThrow(b.e1))) {
+				return booleanLit(true);
+			}
+			break;
+		default:
+			break;
+		}
+		return b;
+	}
+
+	/**
+	 * @return replacement if it has the type of expr, else expr
+	 */
+	private static Expr replaceBy(Expr expr, Expr replacement) {
+		if (replacement.type == expr.type
+				|| (isInteger(replacement.type) && isInteger(expr.type))) {
+			return replacement;
+		}
+		return expr;
+	}
+
+	private static boolean isInteger(Kind type) {
+		return type == Kind._int || type == Kind.x || type == Kind.y
+				|| type == Kind.SCREEN_SIZE;
+	}
+
+	private static boolean isInt(Integer value, int expected) {
+		return value != null && value == expected;
+	}
+
+	/**
+	 * @return k if value is 2^k, else -1
+	 */
+	private static int log2(Integer value) {
+		if (value == null || value <= 0 || Integer.bitCount(value) != 1) {
+			return -1;
+		}
+		return Integer.numberOfTrailingZeros(value);
+	}
+
+	static Integer intValue(Expr expr) {
+		if (expr instanceof IntLitExpr) {
+			return ((IntLitExpr) expr).intLit.getIntVal();
+		}
+		return null;
+	}
+
+	static Boolean booleanValue(Expr expr) {
+		if (expr instanceof BooleanLitExpr) {
+			return ((BooleanLitExpr) expr).booleanLit.getBooleanVal();
+		}
+		return null;
+	}
+
+	private static IntLitExpr intLit(int value) {
+		IntLitExpr lit = new IntLitExpr(TokenStream.makeToken(Kind.INT_LIT,
+				Integer.toString(value)));
+		lit.type = Kind._int;
+		return lit;
+	}
+
+	private static BooleanLitExpr booleanLit(boolean value) {
+		BooleanLitExpr lit = new BooleanLitExpr(TokenStream.makeToken(
+				Kind.BOOLEAN_LIT, Boolean.toString(value)));
+		lit.type = Kind._boolean;
+		return lit;
+	}
+
+	private static BinaryExpr binary(Expr e0, Kind op, String text, Expr e1) {
+		BinaryExpr b = new BinaryExpr(e0, TokenStream.makeToken(op, text), e1);
+		b.type = Kind._int;
+		return b;
+	}
+
+	/**
+	 * @return true if evaluating expr may throw an exception: it divides by
+	 *         something else than a non zero literal, or samples an image
+	 */
+	static boolean mayThrow(Expr expr) {
+		if (expr instanceof BinaryExpr) {
+			BinaryExpr b = (BinaryExpr) expr;
+			if ((b.op.kind == Kind.DIV || b.op.kind == Kind.MOD)
+					&& !(intValue(b.e1) != null && intValue(b.e1) != 0)) {
+				return true;
+			}
+			return mayThrow(b.e0) || mayThrow(b.e1);
+		} else if (expr instanceof ConditionalExpr) {
+			ConditionalExpr c = (ConditionalExpr) expr;
+			return mayThrow(c.condition) || mayThrow(c.trueValue)
+					|| mayThrow(c.falseValue);
+		} else if (expr instanceof SampleExpr) {
+			return true;
+		} else if (expr instanceof TempExpr) {
+			TempExpr t = (TempExpr) expr;
+			return t.isDefinition() && mayThrow(t.expr);
+		}
+		return false;
+	}
+
+	private static boolean isNonNegative(Expr expr) {
+		long[] range = range(expr);
+		return range != null && range[0] >= 0;
+	}
+
+	/**
+	 * @return the smallest and largest values expr can take, or null if they
+	 *         are not known
+	 */
+	static long[] range(Expr expr) {
+		Integer value = intValue(expr);
+		if (value != null) {
+			return new long[] { value, value };
+		}
+		if (expr instanceof PreDefExpr) {
+			// x, y and SCREEN_SIZE are never negative
+			return new long[] { 0, Integer.MAX_VALUE };
+		} else if (expr instanceof SampleExpr) {
+			return new long[] { 0, 255 };
+		} else if (expr instanceof ImageAttributeExpr) {
+			Kind selector = ((ImageAttributeExpr) expr).selector.kind;
+			if (selector == Kind.width || selector == Kind.height) {
+				return new long[] { 0, Integer.MAX_VALUE };
+			}
+		} else if (expr instanceof ConditionalExpr) {
+			ConditionalExpr c = (ConditionalExpr) expr;
+			long[] r0 = range(c.trueValue);
+			long[] r1 = range(c.falseValue);
+			if (r0 != null && r1 != null) {
+				return new long[] { Math.min(r0[0], r1[0]),
+						Math.max(r0[1], r1[1]) };
+			}
+		} else if (expr instanceof TempExpr) {
+			TempExpr t = (TempExpr) expr;
+			return t.isDefinition() ? range(t.expr) : null;
+		} else if (expr instanceof BinaryExpr) {
+			BinaryExpr b = (BinaryExpr) expr;
+			long[] r0 = range(b.e0);
+			long[] r1 = range(b.e1);
+			if (r0 == null || r1 == null) {
+				return null;
+			}
+			switch (b.op.kind) {
+			case PLUS:
+				return checked(r0[0] + r1[0], r0[1] + r1[1]);
+			case MINUS:
+				return checked(r0[0] - r1[1], r0[1] - r1[0]);
+			case TIMES:
+				if (r0[0] >= 0 && r1[0] >= 0) {
+					return checked(r0[0] * r1[0], r0[1] * r1[1]);
+				}
+				break;
+			case DIV:
+				if (r0[0] >= 0 && r1[0] > 0) {
+					return new long[] { r0[0] / r1[1], r0[1] / r1[0] };
+				}
+				break;
+			case MOD:
+				if (r0[0] >= 0 && r1[0] > 0) {
+					return new long[] { 0, Math.min(r0[1], r1[1] - 1) };
+				}
+				break;
+			case AND:
+				if (r0[0] >= 0 && r1[0] >= 0) {
+					return new long[] { 0, Math.min(r0[1], r1[1]) };
+				}
+				break;
+			case RSHIFT:
+				if (r0[0] >= 0 && r1[0] == r1[1]) {
+					int k = (int) r1[0] & 31;
+					return new long[] { r0[0] >> k, r0[1] >> k };
+				}
+				break;
+			case LSHIFT:
+				if (r0[0] >= 0 && r1[0] == r1[1]) {
+					int k = (int) r1[0] & 31;
+					return checked(r0[0] << k, r0[1] << k);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the range lo..hi, or null if int arithmetic may overflow in it
+	 */
+	private static long[] checked(long lo, long hi) {
+		if (lo < Integer.MIN_VALUE || hi > Integer.MAX_VALUE) {
+			return null;
+		}
+		return new long[] { lo, hi };
+	}
+}
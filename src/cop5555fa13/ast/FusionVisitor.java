@@ -0,0 +1,381 @@
+package cop5555fa13.ast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import cop5555fa13.TokenStream;
+import cop5555fa13.TokenStream.Kind;
+import cop5555fa13.TokenStream.Token;
+
+/**
+ * Fusion of whole-image assignments. When an image written by a whole-image
+ * assignment, the producer, is next used in the same statement list by a
+ * later whole-image assignment, the consumer, that only samples it at [x,y],
+ * the producer is removed from the list and attached to the consumer: the code
+ * generator then computes the producer's pixel in the consumer's loops and
+ * uses it for those samples, instead of writing a whole image and reading it
+ * back. The written image is only materialized, in the same loops, if the
+ * program reads it anywhere else.
+ *
+ * A producer is only moved if moving it can't be observed:
+ * <ul>
+ * <li>its pixel can't throw, so it samples no image and only divides by non
+ * zero literals;</li>
+ * <li>its image is never made visible, nor accessed through a variable that
+ * may alias it, and the statements between producer and consumer don't
+ * mention it or the images whose attributes the producer reads;</li>
+ * <li>the variables it reads that are assigned between producer and consumer
+ * are copied into new variables where the producer was, and the producer
+ * reads the copies.</li>
+ * </ul>
+ * The code generator checks that the producer's image has the consumer's size
+ * when the consumer is executed; if not, it executes the producer and then
+ * the consumer as they were written.
+ */
+public class FusionVisitor extends TraversalVisitor {
+
+	private Program program;
+
+	/** images that can't be fused, because they may be visible or aliased */
+	private final Set<String> excluded = new HashSet<String>();
+
+	private int copyCount = 0;
+
+	@Override
+	public Object visitProgram(Program program, Object arg) throws Exception {
+		this.program = program;
+		program.visit(new TraversalVisitor() {
+			@Override
+			public Object visitSetVisibleAssignmentStmt(
+					SetVisibleAssignmentStmt stmt, Object arg) throws Exception {
+				excluded.add(stmt.lhsIdent.getText());
+				return super.visitSetVisibleAssignmentStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitAssignExprStmt(AssignExprStmt stmt, Object arg)
+					throws Exception {
+				excluded.add(stmt.lhsIdent.getText());
+				return super.visitAssignExprStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitIdentExpr(IdentExpr identExpr, Object arg) {
+				excluded.add(identExpr.ident.getText());
+				return null;
+			}
+		}, null);
+		fuseStmts(program.stmtList);
+		return null;
+	}
+
+	@Override
+	public Object visitAlternativeStmt(AlternativeStmt alternativeStmt,
+			Object arg) throws Exception {
+		fuseStmts(alternativeStmt.ifStmtList);
+		fuseStmts(alternativeStmt.elseStmtList);
+		return null;
+	}
+
+	@Override
+	public Object visitIterationStmt(IterationStmt iterationStmt, Object arg)
+			throws Exception {
+		fuseStmts(iterationStmt.stmtList);
+		return null;
+	}
+
+	private void fuseStmts(List<Stmt> stmtList) throws Exception {
+		for (int c = 0; c < stmtList.size(); c++) {
+			Stmt stmt = stmtList.get(c);
+			stmt.visit(this, null);
+			if (!(stmt instanceof AssignPixelStmt)
+					|| ((AssignPixelStmt) stmt).ispixel) {
+				continue;
+			}
+			AssignPixelStmt consumer = (AssignPixelStmt) stmt;
+			for (String image : samplesAtXYOnly(consumer)) {
+				// the last statement before the consumer that mentions the
+				// image must be the producer
+				int p = c - 1;
+				while (p >= 0 && !names(stmtList.get(p)).contains(image)) {
+					p--;
+				}
+				if (p >= 0 && fuse(stmtList, p, c, image)) {
+					c = stmtList.indexOf(consumer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Attaches the statement at index p, if it is a producer of image for the
+	 * consumer at index c, to the consumer.
+	 *
+	 * @return true if it was
+	 */
+	private boolean fuse(List<Stmt> stmtList, int p, int c, String image)
+			throws Exception {
+		if (!(stmtList.get(p) instanceof AssignPixelStmt)) {
+			return false;
+		}
+		AssignPixelStmt producer = (AssignPixelStmt) stmtList.get(p);
+		AssignPixelStmt consumer = (AssignPixelStmt) stmtList.get(c);
+		Pixel pixel = producer.pixel;
+		if (producer.ispixel || !producer.lhsIdent.getText().equals(image)
+				|| excluded.contains(image)
+				|| ConstantFoldVisitor.mayThrow(pixel.redExpr)
+				|| ConstantFoldVisitor.mayThrow(pixel.greenExpr)
+				|| ConstantFoldVisitor.mayThrow(pixel.blueExpr)) {
+			return false;
+		}
+		// the sizes of the images the producer reads must not change
+		List<Stmt> between = stmtList.subList(p + 1, c);
+		Set<String> attributes = attributeImages(producer);
+		Set<String> assigned = new HashSet<String>();
+		for (Stmt stmt : between) {
+			Set<String> names = names(stmt);
+			names.retainAll(attributes);
+			if (!names.isEmpty()) {
+				return false;
+			}
+			assigned.addAll(assignedVars(stmt));
+		}
+
+		// copy the variables assigned in between where the producer was
+		List<Stmt> copies = new ArrayList<Stmt>();
+		Map<String, Token> copyNames = new HashMap<String, Token>();
+		for (IdentExpr identExpr : identExprs(producer)) {
+			String name = identExpr.ident.getText();
+			if (!assigned.contains(name)) {
+				continue;
+			}
+			Token copy = copyNames.get(name);
+			if (copy == null) {
+				copy = TokenStream.makeToken(Kind.IDENT, name + "#"
+						+ copyCount++);
+				copyNames.put(name, copy);
+				program.decList.add(new Dec(identExpr.type, copy));
+				IdentExpr value = new IdentExpr(identExpr.ident);
+				value.type = identExpr.type;
+				copies.add(new AssignExprStmt(copy, value));
+			}
+			identExpr.ident = copy;
+		}
+
+		producer.materialize = isReadOutside(image, consumer);
+		consumer.producers.add(producer);
+		stmtList.remove(p);
+		stmtList.addAll(p, copies);
+		return true;
+	}
+
+	/**
+	 * @return the images only sampled at [x,y] in the pixel of consumer,
+	 *         other than the one it assigns
+	 */
+	private static Set<String> samplesAtXYOnly(AssignPixelStmt consumer)
+			throws Exception {
+		final Set<String> atXY = new LinkedHashSet<String>();
+		final Set<String> elsewhere = new HashSet<String>();
+		consumer.pixel.visit(new TraversalVisitor() {
+			@Override
+			public Object visitSampleExpr(SampleExpr sampleExpr, Object arg)
+					throws Exception {
+				String image = sampleExpr.ident.getText();
+				if (isSampleAtXY(sampleExpr)) {
+					atXY.add(image);
+				} else {
+					elsewhere.add(image);
+				}
+				return super.visitSampleExpr(sampleExpr, arg);
+			}
+		}, null);
+		atXY.removeAll(elsewhere);
+		atXY.remove(consumer.lhsIdent.getText());
+		return atXY;
+	}
+
+	static boolean isSampleAtXY(SampleExpr sampleExpr) {
+		return isPreDef(sampleExpr.xLoc, Kind.x)
+				&& isPreDef(sampleExpr.yLoc, Kind.y);
+	}
+
+	private static boolean isPreDef(Expr expr, Kind kind) {
+		return expr instanceof PreDefExpr
+				&& ((PreDefExpr) expr).constantLit.kind == kind;
+	}
+
+	/**
+	 * @return true if image is sampled anywhere in the program except in
+	 *         consumer
+	 */
+	private boolean isReadOutside(final String image,
+			final AssignPixelStmt consumer) throws Exception {
+		final boolean[] read = { false };
+		program.visit(new TraversalVisitor() {
+			@Override
+			public Object visitAssignPixelStmt(AssignPixelStmt stmt, Object arg)
+					throws Exception {
+				return stmt == consumer ? null : super.visitAssignPixelStmt(
+						stmt, arg);
+			}
+
+			@Override
+			public Object visitSampleExpr(SampleExpr sampleExpr, Object arg)
+					throws Exception {
+				read[0] |= sampleExpr.ident.getText().equals(image);
+				return super.visitSampleExpr(sampleExpr, arg);
+			}
+		}, null);
+		return read[0];
+	}
+
+	/**
+	 * @return the names of the variables and images that stmt reads or
+	 *         writes
+	 */
+	static Set<String> names(Stmt stmt) throws Exception {
+		final Set<String> names = new HashSet<String>();
+		stmt.visit(new TraversalVisitor() {
+			@Override
+			public Object visitAssignPixelStmt(AssignPixelStmt stmt, Object arg)
+					throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return super.visitAssignPixelStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitSinglePixelAssignmentStmt(
+					SinglePixelAssignmentStmt stmt, Object arg)
+					throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return super.visitSinglePixelAssignmentStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitSingleSampleAssignmentStmt(
+					SingleSampleAssignmentStmt stmt, Object arg)
+					throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return super.visitSingleSampleAssignmentStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitScreenLocationAssignmentStmt(
+					ScreenLocationAssignmentStmt stmt, Object arg)
+					throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return super.visitScreenLocationAssignmentStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitShapeAssignmentStmt(ShapeAssignmentStmt stmt,
+					Object arg) throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return super.visitShapeAssignmentStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitSetVisibleAssignmentStmt(
+					SetVisibleAssignmentStmt stmt, Object arg) throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return super.visitSetVisibleAssignmentStmt(stmt, arg);
+			}
+
+			@Override
+			public Object FileAssignStmt(FileAssignStmt stmt, Object arg)
+					throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return null;
+			}
+
+			@Override
+			public Object visitAssignExprStmt(AssignExprStmt stmt, Object arg)
+					throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return super.visitAssignExprStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitSampleExpr(SampleExpr sampleExpr, Object arg)
+					throws Exception {
+				names.add(sampleExpr.ident.getText());
+				return super.visitSampleExpr(sampleExpr, arg);
+			}
+
+			@Override
+			public Object visitImageAttributeExpr(ImageAttributeExpr expr,
+					Object arg) {
+				names.add(expr.ident.getText());
+				return null;
+			}
+
+			@Override
+			public Object visitIdentExpr(IdentExpr identExpr, Object arg) {
+				names.add(identExpr.ident.getText());
+				return null;
+			}
+		}, null);
+		return names;
+	}
+
+	/**
+	 * @return the int, boolean and pixel variables stmt assigns
+	 */
+	private static Set<String> assignedVars(Stmt stmt) throws Exception {
+		final Set<String> vars = new HashSet<String>();
+		stmt.visit(new TraversalVisitor() {
+			@Override
+			public Object visitAssignPixelStmt(AssignPixelStmt stmt, Object arg)
+					throws Exception {
+				if (stmt.ispixel) {
+					vars.add(stmt.lhsIdent.getText());
+				}
+				return super.visitAssignPixelStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitAssignExprStmt(AssignExprStmt stmt, Object arg)
+					throws Exception {
+				vars.add(stmt.lhsIdent.getText());
+				return super.visitAssignExprStmt(stmt, arg);
+			}
+		}, null);
+		return vars;
+	}
+
+	/**
+	 * @return the images whose attributes producer reads
+	 */
+	private static Set<String> attributeImages(AssignPixelStmt producer)
+			throws Exception {
+		final Set<String> images = new HashSet<String>();
+		producer.pixel.visit(new TraversalVisitor() {
+			@Override
+			public Object visitImageAttributeExpr(ImageAttributeExpr expr,
+					Object arg) {
+				images.add(expr.ident.getText());
+				return null;
+			}
+		}, null);
+		return images;
+	}
+
+	private static List<IdentExpr> identExprs(AssignPixelStmt producer)
+			throws Exception {
+		final List<IdentExpr> identExprs = new ArrayList<IdentExpr>();
+		producer.pixel.visit(new TraversalVisitor() {
+			@Override
+			public Object visitIdentExpr(IdentExpr identExpr, Object arg) {
+				identExprs.add(identExpr);
+				return null;
+			}
+		}, null);
+		return identExprs;
+	}
+}
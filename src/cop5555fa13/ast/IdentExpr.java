@@ -3,7 +3,7 @@ package cop5555fa13.ast;
 import cop5555fa13.TokenStream.Token;
 
 public class IdentExpr extends Expr {	
-	final Token ident;
+	Token ident;
 
 	public IdentExpr(Token ident) {
 		super();
@@ -0,0 +1,554 @@
+package cop5555fa13.ast;
+
+import static cop5555fa13.TokenStream.Kind.*;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cop5555fa13.CompilerErrorException;
+import cop5555fa13.CompilerOptions;
+import cop5555fa13.TokenStream.Kind;
+import cop5555fa13.runtime.ImageConstants;
+import cop5555fa13.runtime.PLPImage;
+
+/**
+ * Executes a type checked, and possibly optimized, program by walking its
+ * AST, so that it starts without generating and loading a class. Statements
+ * have the effects of the code CodeGenVisitor generates for them, with the
+ * same runtime calls: the visit methods of expressions return their value,
+ * an Integer for ints, pixels and booleans (0 or 1) and a PLPImage for
+ * images. The pixels of whole-image assignments are computed with x in the
+ * outer loop, and the groups of a ParallelStmt one after the other.
+ *
+ * Statements that loop are compiled once hot. A whole-image assignment is
+ * compiled before an execution that would bring the number of pixels it has
+ * computed to the tier threshold of the options, and a while statement
+ * before the iteration that reaches it, the compiled loop evaluating its
+ * condition again. The compiled statement is a class generated by
+ * CodeGenVisitor.generateStatement, whose static fields are set from the
+ * variables before each execution and read back after it. A threshold of 0
+ * interprets everything.
+ */
+public class InterpreterVisitor implements ASTVisitor {
+
+	private final CompilerOptions options;
+	private Program program;
+
+	private final Map<String, Object> values = new HashMap<String, Object>();
+	private Object[] temps;
+	private int x;
+	private int y;
+
+	/**
+	 * producers whose pixel at [x,y] is in fusedPixels while a fused
+	 * assignment is computed
+	 */
+	private List<AssignPixelStmt> fusedProducers = Collections.emptyList();
+	private final Map<String, Integer> fusedPixels = new HashMap<String, Integer>();
+
+	// iterations, or pixels, executed by each statement that loops
+	private final Map<Stmt, Long> counts = new IdentityHashMap<Stmt, Long>();
+	private final Map<Stmt, CompiledStmt> compiled = new IdentityHashMap<Stmt, CompiledStmt>();
+	private final StmtClassLoader loader = new StmtClassLoader();
+
+	public InterpreterVisitor(CompilerOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * @return the value of the variable or image name, once the program has
+	 *         been executed
+	 */
+	public Object getValue(String name) {
+		return values.get(name);
+	}
+
+	private int eval(Expr expr) throws Exception {
+		return (Integer) expr.visit(this, null);
+	}
+
+	private PLPImage image(String name) {
+		return (PLPImage) values.get(name);
+	}
+
+	private void execute(List<Stmt> stmts) throws Exception {
+		for (Stmt stmt : stmts) {
+			stmt.visit(this, null);
+		}
+	}
+
+	@Override
+	public Object visitDec(Dec dec, Object arg) throws Exception {
+		String name = dec.ident.getText();
+		if (dec.type == image) {
+			values.put(name, new PLPImage(name));
+		} else {
+			values.put(name, 0);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitProgram(Program program, Object arg) throws Exception {
+		this.program = program;
+		temps = new Object[program.tempCount];
+		if (options.tierThreshold > 0) {
+			// before the program runs rather than when the first statement
+			// is compiled
+			options.checkLoadable();
+		}
+		if (options.prefetch) {
+			for (String source : CodeGenVisitor.collectImageSources(program)) {
+				PLPImage.prefetchImage(source);
+			}
+		}
+		for (Dec dec : program.decList) {
+			dec.visit(this, arg);
+		}
+		execute(program.stmtList);
+		return null;
+	}
+
+	@Override
+	public Object visitAlternativeStmt(AlternativeStmt alternativeStmt,
+			Object arg) throws Exception {
+		if (eval(alternativeStmt.expr) != 0) {
+			execute(alternativeStmt.ifStmtList);
+		} else {
+			execute(alternativeStmt.elseStmtList);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitPauseStmt(PauseStmt pauseStmt, Object arg)
+			throws Exception {
+		PLPImage.pause(eval(pauseStmt.expr));
+		return null;
+	}
+
+	@Override
+	public Object visitIterationStmt(IterationStmt iterationStmt, Object arg)
+			throws Exception {
+		while (!executeCompiled(iterationStmt, 1)
+				&& eval(iterationStmt.expr) != 0) {
+			execute(iterationStmt.stmtList);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitAssignPixelStmt(AssignPixelStmt assignPixelStmt,
+			Object arg) throws Exception {
+		if (assignPixelStmt.ispixel) {
+			values.put(assignPixelStmt.lhsIdent.getText(),
+					assignPixelStmt.pixel.visit(this, arg));
+			return null;
+		}
+		PLPImage lhs = image(assignPixelStmt.lhsIdent.getText());
+		if (executeCompiled(assignPixelStmt,
+				(long) lhs.getWidth() * lhs.getHeight())) {
+			return null;
+		}
+		if (assignPixelStmt.producers.isEmpty()) {
+			assignImage(assignPixelStmt);
+			return null;
+		}
+		// the producers are computed in the loops if their images have the
+		// size of the assigned one, and executed first otherwise
+		for (AssignPixelStmt producer : assignPixelStmt.producers) {
+			PLPImage image = image(producer.lhsIdent.getText());
+			if (image.getWidth() != lhs.getWidth()
+					|| image.getHeight() != lhs.getHeight()) {
+				for (AssignPixelStmt p : assignPixelStmt.producers) {
+					assignImage(p);
+				}
+				assignImage(assignPixelStmt);
+				return null;
+			}
+		}
+		for (AssignPixelStmt producer : assignPixelStmt.producers) {
+			if (producer.materialize) {
+				image(producer.lhsIdent.getText()).ensureImage();
+			}
+		}
+		fusedProducers = assignPixelStmt.producers;
+		try {
+			assignImage(assignPixelStmt);
+		} finally {
+			fusedProducers = Collections.emptyList();
+			fusedPixels.clear();
+		}
+		return null;
+	}
+
+	/**
+	 * Assigns the pixel of a whole-image assignment, and those of the fused
+	 * producers, at every location of the image, and updates its frame.
+	 */
+	private void assignImage(AssignPixelStmt assignPixelStmt) throws Exception {
+		PLPImage lhs = image(assignPixelStmt.lhsIdent.getText());
+		int width = lhs.getWidth();
+		int height = lhs.getHeight();
+		if (CodeGenVisitor.collectRasterSamples(assignPixelStmt.pixel)
+				.contains(assignPixelStmt.lhsIdent.getText())) {
+			// read at [x,y] from its raster, created now as in the compiled
+			// loops
+			lhs.ensureImage();
+		}
+		for (AssignPixelStmt producer : fusedProducers) {
+			evalInvariants(producer.loopInvariants);
+		}
+		evalInvariants(assignPixelStmt.loopInvariants);
+		// x and y are those of the loops only, as in the outlined loops
+		int outerX = x;
+		int outerY = y;
+		for (x = 0; x < width; x++) {
+			for (AssignPixelStmt producer : fusedProducers) {
+				evalInvariants(producer.columnInvariants);
+			}
+			evalInvariants(assignPixelStmt.columnInvariants);
+			for (y = 0; y < height; y++) {
+				for (AssignPixelStmt producer : fusedProducers) {
+					evalInvariants(producer.rowInvariants);
+				}
+				evalInvariants(assignPixelStmt.rowInvariants);
+				for (AssignPixelStmt producer : fusedProducers) {
+					String name = producer.lhsIdent.getText();
+					int pixel = (Integer) producer.pixel.visit(this, null);
+					fusedPixels.put(name, pixel);
+					if (producer.materialize) {
+						image(name).setPixel(x, y, pixel);
+					}
+				}
+				lhs.setPixel(x, y,
+						(Integer) assignPixelStmt.pixel.visit(this, null));
+			}
+		}
+		x = outerX;
+		y = outerY;
+		lhs.updateFrame();
+	}
+
+	private void evalInvariants(List<TempExpr> invariants) throws Exception {
+		for (TempExpr t : invariants) {
+			temps[t.id] = t.expr.visit(this, null);
+		}
+	}
+
+	@Override
+	public Object visitPixel(Pixel pixel, Object arg) throws Exception {
+		int red = eval(pixel.redExpr);
+		int green = eval(pixel.greenExpr);
+		int blue = eval(pixel.blueExpr);
+		return cop5555fa13.runtime.Pixel.makePixel(red, green, blue);
+	}
+
+	@Override
+	public Object visitSinglePixelAssignmentStmt(
+			SinglePixelAssignmentStmt singlePixelAssignmentStmt, Object arg)
+			throws Exception {
+		PLPImage image = image(singlePixelAssignmentStmt.lhsIdent.getText());
+		int px = eval(singlePixelAssignmentStmt.xExpr);
+		int py = eval(singlePixelAssignmentStmt.yExpr);
+		image.setPixel(px, py,
+				(Integer) singlePixelAssignmentStmt.pixel.visit(this, arg));
+		image.updateFrame();
+		return null;
+	}
+
+	@Override
+	public Object visitSingleSampleAssignmentStmt(
+			SingleSampleAssignmentStmt singleSampleAssignmentStmt, Object arg)
+			throws Exception {
+		PLPImage image = image(singleSampleAssignmentStmt.lhsIdent.getText());
+		int px = eval(singleSampleAssignmentStmt.xExpr);
+		int py = eval(singleSampleAssignmentStmt.yExpr);
+		int colorCode = CodeGenVisitor
+				.colorCode(singleSampleAssignmentStmt.color.getText());
+		image.setSample(px, py, colorCode,
+				eval(singleSampleAssignmentStmt.rhsExpr));
+		image.updateFrame();
+		return null;
+	}
+
+	@Override
+	public Object visitScreenLocationAssignmentStmt(
+			ScreenLocationAssignmentStmt screenLocationAssignmentStmt,
+			Object arg) throws Exception {
+		PLPImage image = image(screenLocationAssignmentStmt.lhsIdent.getText());
+		image.x_loc = eval(screenLocationAssignmentStmt.xScreenExpr);
+		image.y_loc = eval(screenLocationAssignmentStmt.yScreenExpr);
+		image.updateFrame();
+		return null;
+	}
+
+	@Override
+	public Object visitShapeAssignmentStmt(
+			ShapeAssignmentStmt shapeAssignmentStmt, Object arg)
+			throws Exception {
+		PLPImage image = image(shapeAssignmentStmt.lhsIdent.getText());
+		image.height = eval(shapeAssignmentStmt.height);
+		image.width = eval(shapeAssignmentStmt.width);
+		image.updateImageSize();
+		image.updateFrame();
+		return null;
+	}
+
+	@Override
+	public Object visitSetVisibleAssignmentStmt(
+			SetVisibleAssignmentStmt setVisibleAssignmentStmt, Object arg)
+			throws Exception {
+		PLPImage image = image(setVisibleAssignmentStmt.lhsIdent.getText());
+		image.isVisible = eval(setVisibleAssignmentStmt.expr) != 0;
+		image.updateFrame();
+		return null;
+	}
+
+	@Override
+	public Object FileAssignStmt(FileAssignStmt fileAssignStmt, Object arg)
+			throws Exception {
+		PLPImage image = image(fileAssignStmt.lhsIdent.getText());
+		image.loadImage(CodeGenVisitor.imageSource(fileAssignStmt));
+		image.updateFrame();
+		return null;
+	}
+
+	@Override
+	public Object visitConditionalExpr(ConditionalExpr conditionalExpr,
+			Object arg) throws Exception {
+		if (eval(conditionalExpr.condition) != 0) {
+			return conditionalExpr.trueValue.visit(this, arg);
+		}
+		return conditionalExpr.falseValue.visit(this, arg);
+	}
+
+	@Override
+	public Object visitBinaryExpr(BinaryExpr binaryExpr, Object arg)
+			throws Exception {
+		Kind op = binaryExpr.op.kind;
+		if (binaryExpr.e0.type == image) {
+			// images are compared by reference
+			Object image0 = binaryExpr.e0.visit(this, arg);
+			Object image1 = binaryExpr.e1.visit(this, arg);
+			return (image0 == image1) == (op == EQ) ? 1 : 0;
+		}
+		int v0 = eval(binaryExpr.e0);
+		int v1 = eval(binaryExpr.e1);
+		switch (op) {
+		case PLUS: return v0 + v1;
+		case MINUS: return v0 - v1;
+		case TIMES: return v0 * v1;
+		case DIV: return v0 / v1;
+		case MOD: return v0 % v1;
+		case LSHIFT: return v0 << v1;
+		case RSHIFT: return v0 >> v1;
+		case AND: return v0 & v1;
+		case OR: return v0 | v1;
+		case EQ: return v0 == v1 ? 1 : 0;
+		case NEQ: return v0 != v1 ? 1 : 0;
+		case LT: return v0 < v1 ? 1 : 0;
+		case GT: return v0 > v1 ? 1 : 0;
+		case LEQ: return v0 <= v1 ? 1 : 0;
+		case GEQ: return v0 >= v1 ? 1 : 0;
+		default:
+			throw new CompilerErrorException("Invalid Operand found");
+		}
+	}
+
+	@Override
+	public Object visitSampleExpr(SampleExpr sampleExpr, Object arg)
+			throws Exception {
+		String name = sampleExpr.ident.getText();
+		int colorCode = CodeGenVisitor.colorCode(sampleExpr.color.getText());
+		Integer fused = fusedPixels.get(name);
+		if (fused != null && isPreDef(sampleExpr.xLoc, Kind.x)
+				&& isPreDef(sampleExpr.yLoc, Kind.y)) {
+			// the pixel computed by the producer at this location
+			return (fused >>> ImageConstants.BITOFFSETS[colorCode]) & 0xff;
+		}
+		int px = eval(sampleExpr.xLoc);
+		int py = eval(sampleExpr.yLoc);
+		return image(name).getSample(px, py, colorCode);
+	}
+
+	private static boolean isPreDef(Expr expr, Kind kind) {
+		return expr instanceof PreDefExpr
+				&& ((PreDefExpr) expr).constantLit.kind == kind;
+	}
+
+	@Override
+	public Object visitImageAttributeExpr(
+			ImageAttributeExpr imageAttributeExpr, Object arg) throws Exception {
+		PLPImage image = image(imageAttributeExpr.ident.getText());
+		switch (imageAttributeExpr.selector.kind) {
+		case x_loc: return image.getX_loc();
+		case y_loc: return image.getY_loc();
+		case height: return image.getHeight();
+		case width: return image.getWidth();
+		default:
+			throw new CompilerErrorException("Invalid image attribute.");
+		}
+	}
+
+	@Override
+	public Object visitIdentExpr(IdentExpr identExpr, Object arg)
+			throws Exception {
+		return values.get(identExpr.ident.getText());
+	}
+
+	@Override
+	public Object visitIntLitExpr(IntLitExpr intLitExpr, Object arg)
+			throws Exception {
+		return intLitExpr.intLit.getIntVal();
+	}
+
+	@Override
+	public Object visitBooleanLitExpr(BooleanLitExpr booleanLitExpr, Object arg)
+			throws Exception {
+		return booleanLitExpr.booleanLit.getText().equals("true") ? 1 : 0;
+	}
+
+	@Override
+	public Object visitPreDefExpr(PreDefExpr PreDefExpr, Object arg)
+			throws Exception {
+		if (PreDefExpr.type == Kind.Z) {
+			return ImageConstants.Z;
+		} else if (PreDefExpr.type == Kind.SCREEN_SIZE) {
+			return PLPImage.SCREENSIZE;
+		} else if (PreDefExpr.type == Kind.x) {
+			return x;
+		} else if (PreDefExpr.type == Kind.y) {
+			return y;
+		} else if (PreDefExpr.constantLit.kind == Kind.Z) {
+			return ImageConstants.Z;
+		}
+		return PreDefExpr.constantLit.getIntVal();
+	}
+
+	@Override
+	public Object visitAssignExprStmt(AssignExprStmt assignExprStmt, Object arg)
+			throws Exception {
+		values.put(assignExprStmt.lhsIdent.getText(),
+				assignExprStmt.expr.visit(this, arg));
+		return null;
+	}
+
+	@Override
+	public Object visitTempExpr(TempExpr tempExpr, Object arg)
+			throws Exception {
+		if (tempExpr.isDefinition()) {
+			temps[tempExpr.id] = tempExpr.expr.visit(this, arg);
+		}
+		return temps[tempExpr.id];
+	}
+
+	@Override
+	public Object visitParallelStmt(ParallelStmt parallelStmt, Object arg)
+			throws Exception {
+		for (List<Stmt> task : parallelStmt.tasks) {
+			execute(task);
+		}
+		return null;
+	}
+
+	/**
+	 * Counts iterations of stmt, a whole-image assignment or a while
+	 * statement, and executes it compiled if it is or has become hot.
+	 *
+	 * @param iterations
+	 *            iterations, or pixels, the execution would count
+	 * @return true if stmt has been executed
+	 */
+	private boolean executeCompiled(Stmt stmt, long iterations)
+			throws Exception {
+		CompiledStmt c = compiled.get(stmt);
+		if (c == null) {
+			if (options.tierThreshold <= 0) {
+				return false;
+			}
+			Long count = counts.get(stmt);
+			long total = (count == null ? 0 : count) + iterations;
+			if (total < options.tierThreshold) {
+				counts.put(stmt, total);
+				return false;
+			}
+			c = compile(stmt);
+			compiled.put(stmt, c);
+			counts.remove(stmt);
+		}
+		c.execute();
+		return true;
+	}
+
+	private CompiledStmt compile(Stmt stmt) throws Exception {
+		String className = program.getProgName() + "$tier" + compiled.size();
+		byte[] classFile = new CodeGenVisitor(options).generateStatement(
+				program, stmt, className);
+		Class<?> c = loader.define(className, classFile);
+		Field[] fields = new Field[program.decList.size()];
+		for (int i = 0; i != fields.length; i++) {
+			fields[i] = c.getDeclaredField(program.decList.get(i).ident
+					.getText());
+			fields[i].setAccessible(true);
+		}
+		return new CompiledStmt(c.getMethod("run"), fields);
+	}
+
+	/**
+	 * A statement compiled by CodeGenVisitor.generateStatement, with the
+	 * fields of the variables and images in the order of the declarations.
+	 */
+	private class CompiledStmt {
+		private final Method run;
+		private final Field[] fields;
+
+		CompiledStmt(Method run, Field[] fields) {
+			this.run = run;
+			this.fields = fields;
+		}
+
+		void execute() throws Exception {
+			List<Dec> decs = program.decList;
+			for (int i = 0; i != fields.length; i++) {
+				Object value = values.get(decs.get(i).ident.getText());
+				if (decs.get(i).type == _boolean) {
+					fields[i].setBoolean(null, (Integer) value != 0);
+				} else {
+					fields[i].set(null, value);
+				}
+			}
+			try {
+				run.invoke(null);
+			} catch (InvocationTargetException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				throw (Error) e.getCause();
+			}
+			for (int i = 0; i != fields.length; i++) {
+				Object value = fields[i].get(null);
+				if (decs.get(i).type == _boolean) {
+					value = (Boolean) value ? 1 : 0;
+				}
+				values.put(decs.get(i).ident.getText(), value);
+			}
+		}
+	}
+
+	private static class StmtClassLoader extends ClassLoader {
+		StmtClassLoader() {
+			super(InterpreterVisitor.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+}
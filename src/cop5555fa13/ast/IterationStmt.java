@@ -3,7 +3,7 @@ package cop5555fa13.ast;
 import java.util.List;
 
 public class IterationStmt extends Stmt {
-	final Expr expr;
+	Expr expr;
 	final List<Stmt> stmtList;
 
 	public IterationStmt(Expr expr, List<Stmt> stmtList) {
@@ -0,0 +1,173 @@
+package cop5555fa13.ast;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cop5555fa13.TokenStream.Kind;
+
+/**
+ * Loop-invariant code motion for whole-image assignments. The pixel of such an
+ * assignment is evaluated in loops over x and y; its subexpressions that
+ * depend on neither are moved to the assignment's loopInvariants, evaluated
+ * once before the loops, and those that depend on y only or on x only to its
+ * rowInvariants and columnInvariants, evaluated by the code generator in the
+ * loop over that variable. When that loop is the inner one, as x is in
+ * row-major order, the column invariants are evaluated once per column into
+ * arrays before the loops instead, and loaded from them for every pixel. The
+ * moved expressions are replaced in the pixel by a TempExpr loading their
+ * value.
+ *
+ * The largest movable subexpressions are moved, after the parts of them that
+ * depend on fewer variables. Variables can't be assigned in a pixel, so only
+ * x and y change in the loops; the images being sampled may be the one
+ * written. Expressions that sample an image or divide by something else than
+ * a non zero literal are never moved, so that every moved expression can be
+ * evaluated early, or even when the pixel would not evaluate it, without
+ * changing the result or the exceptions of the program.
+ */
+public class LoopInvariantVisitor extends TraversalVisitor {
+
+	// dependence of an expression on the loops
+	private static final int X = 1;
+	private static final int Y = 2;
+	private static final int XY = X | Y;
+	private static final int PINNED = 4;
+
+	private Program program;
+
+	private final Map<Expr, Integer> masks = new IdentityHashMap<Expr, Integer>();
+	private final Map<Integer, Integer> tempMasks = new HashMap<Integer, Integer>();
+
+	@Override
+	public Object visitProgram(Program program, Object arg) throws Exception {
+		this.program = program;
+		return super.visitProgram(program, arg);
+	}
+
+	@Override
+	public Object visitAssignPixelStmt(AssignPixelStmt assignPixelStmt,
+			Object arg) throws Exception {
+		if (assignPixelStmt.ispixel) {
+			return null;
+		}
+		for (AssignPixelStmt producer : assignPixelStmt.producers) {
+			producer.visit(this, arg);
+		}
+		Pixel pixel = assignPixelStmt.pixel;
+		pixel.redExpr = move(pixel.redExpr, XY, assignPixelStmt);
+		pixel.greenExpr = move(pixel.greenExpr, XY, assignPixelStmt);
+		pixel.blueExpr = move(pixel.blueExpr, XY, assignPixelStmt);
+		masks.clear();
+		tempMasks.clear();
+		return null;
+	}
+
+	/**
+	 * Moves the subexpressions of expr, and expr itself, that depend on fewer
+	 * loop variables than the enclosing expression.
+	 *
+	 * @param enclosing
+	 *            dependence of the enclosing expression
+	 * @return the expression that replaces expr in the enclosing one
+	 */
+	private Expr move(Expr expr, int enclosing, AssignPixelStmt stmt) {
+		int mask = mask(expr);
+		boolean movable = (mask & PINNED) == 0 && mask != enclosing
+				&& isWorthMoving(expr);
+		int inner = movable ? mask : enclosing;
+		if (expr instanceof BinaryExpr) {
+			BinaryExpr b = (BinaryExpr) expr;
+			b.e0 = move(b.e0, inner, stmt);
+			b.e1 = move(b.e1, inner, stmt);
+		} else if (expr instanceof ConditionalExpr) {
+			ConditionalExpr c = (ConditionalExpr) expr;
+			c.condition = move(c.condition, inner, stmt);
+			c.trueValue = move(c.trueValue, inner, stmt);
+			c.falseValue = move(c.falseValue, inner, stmt);
+		} else if (expr instanceof SampleExpr) {
+			SampleExpr s = (SampleExpr) expr;
+			s.xLoc = move(s.xLoc, inner, stmt);
+			s.yLoc = move(s.yLoc, inner, stmt);
+		} else if (expr instanceof TempExpr) {
+			TempExpr t = (TempExpr) expr;
+			if (t.isDefinition()) {
+				t.expr = move(t.expr, inner, stmt);
+			}
+		}
+		if (!movable) {
+			return expr;
+		}
+		TempExpr def;
+		if (expr instanceof TempExpr) {
+			// a shared expression keeps its temporary
+			def = (TempExpr) expr;
+		} else {
+			def = new TempExpr(program.tempCount++, expr, expr.type);
+		}
+		invariants(stmt, mask).add(def);
+		return new TempExpr(def.id, null, def.type);
+	}
+
+	private static List<TempExpr> invariants(AssignPixelStmt stmt, int mask) {
+		if (mask == 0) {
+			return stmt.loopInvariants;
+		} else if (mask == Y) {
+			return stmt.rowInvariants;
+		}
+		return stmt.columnInvariants;
+	}
+
+	/**
+	 * Literals, variables, x, y and loads of temporaries cost no more than
+	 * the load that would replace them.
+	 */
+	private static boolean isWorthMoving(Expr expr) {
+		return expr instanceof BinaryExpr || expr instanceof ConditionalExpr
+				|| expr instanceof ImageAttributeExpr
+				|| (expr instanceof TempExpr && ((TempExpr) expr).isDefinition());
+	}
+
+	/**
+	 * @return the loop variables expr depends on, and PINNED if it can't be
+	 *         moved
+	 */
+	private int mask(Expr expr) {
+		Integer known = masks.get(expr);
+		if (known != null) {
+			return known;
+		}
+		int mask = 0;
+		if (expr instanceof PreDefExpr) {
+			Kind kind = ((PreDefExpr) expr).constantLit.kind;
+			mask = kind == Kind.x ? X : kind == Kind.y ? Y : 0;
+		} else if (expr instanceof BinaryExpr) {
+			BinaryExpr b = (BinaryExpr) expr;
+			mask = mask(b.e0) | mask(b.e1);
+			if ((b.op.kind == Kind.DIV || b.op.kind == Kind.MOD)) {
+				Integer divisor = ConstantFoldVisitor.intValue(b.e1);
+				if (divisor == null || divisor == 0) {
+					mask |= PINNED;
+				}
+			}
+		} else if (expr instanceof ConditionalExpr) {
+			ConditionalExpr c = (ConditionalExpr) expr;
+			mask = mask(c.condition) | mask(c.trueValue) | mask(c.falseValue);
+		} else if (expr instanceof SampleExpr) {
+			SampleExpr s = (SampleExpr) expr;
+			mask = mask(s.xLoc) | mask(s.yLoc) | PINNED;
+		} else if (expr instanceof TempExpr) {
+			TempExpr t = (TempExpr) expr;
+			if (t.isDefinition()) {
+				mask = mask(t.expr);
+				tempMasks.put(t.id, mask);
+			} else {
+				// the definition comes first in evaluation order
+				mask = tempMasks.get(t.id);
+			}
+		}
+		masks.put(expr, mask);
+		return mask;
+	}
+}
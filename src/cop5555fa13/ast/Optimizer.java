@@ -0,0 +1,29 @@
+package cop5555fa13.ast;
+
+import cop5555fa13.CompilerOptions;
+
+/**
+ * Runs the optimization passes enabled in the options on a type checked
+ * program, before code generation. The passes rewrite the AST in place.
+ */
+public class Optimizer {
+
+	public static void optimize(Program program, CompilerOptions options)
+			throws Exception {
+		if (options.fold) {
+			program.visit(new ConstantFoldVisitor(), null);
+		}
+		if (options.fuse) {
+			program.visit(new FusionVisitor(), null);
+		}
+		if (options.cse) {
+			program.visit(new CSEVisitor(), null);
+		}
+		if (options.licm) {
+			program.visit(new LoopInvariantVisitor(), null);
+		}
+		if (options.tasks) {
+			program.visit(new TaskVisitor(), null);
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package cop5555fa13.ast;
+
+import java.util.List;
+
+/**
+ * Groups of statements, introduced by TaskVisitor, that read and write
+ * disjoint variables and images. The groups are executed concurrently, the
+ * statements of a group in order, and the statement completes when every
+ * group has.
+ */
+public class ParallelStmt extends Stmt {
+	final List<List<Stmt>> tasks;
+
+	public ParallelStmt(List<List<Stmt>> tasks) {
+		super();
+		this.tasks = tasks;
+	}
+
+	@Override
+	public Object visit(ASTVisitor v, Object arg) throws Exception {
+		return v.visitParallelStmt(this, arg);
+	}
+
+}
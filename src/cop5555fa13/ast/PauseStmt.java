@@ -2,7 +2,7 @@ package cop5555fa13.ast;
 
 public class PauseStmt extends Stmt {
 
-	final Expr expr;
+	Expr expr;
 	
 	public PauseStmt(Expr expr) {
 		this.expr = expr;
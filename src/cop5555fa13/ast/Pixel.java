@@ -1,9 +1,9 @@
 package cop5555fa13.ast;
 
 public class Pixel extends ASTNode{
-	final Expr redExpr;
-	final Expr greenExpr;
-	final Expr blueExpr;
+	Expr redExpr;
+	Expr greenExpr;
+	Expr blueExpr;
 	public Pixel(Expr redExpr, Expr greenExpr, Expr blueExpr) {
 		super();
 		this.redExpr = redExpr;
@@ -11,6 +11,9 @@ public class Program extends ASTNode {
     public final List<Stmt> stmtList;
     public final List<Dec> decList;
 
+    /* number of TempExpr ids allocated by the optimizer passes */
+    int tempCount;
+
     public Program(Token ident, 
     		List<Dec> decList, 
     		List<Stmt> stmtList) {
@@ -4,8 +4,8 @@ import cop5555fa13.TokenStream.Token;
 
 public class SampleExpr extends Expr {
 	final Token ident;
-	final Expr xLoc;
-	final Expr yLoc;
+	Expr xLoc;
+	Expr yLoc;
 	final Token color;
 	public SampleExpr(Token ident, Expr xLoc, Expr yLoc, Token color) {
 		super();
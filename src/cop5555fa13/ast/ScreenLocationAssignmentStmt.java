@@ -4,8 +4,8 @@ import cop5555fa13.TokenStream.Token;
 
 public class ScreenLocationAssignmentStmt extends AssignStmt {
 	final Token lhsIdent;
-	final Expr xScreenExpr;
-	final Expr yScreenExpr;
+	Expr xScreenExpr;
+	Expr yScreenExpr;
 	public ScreenLocationAssignmentStmt(Token lhsIdent, Expr xScreenExpr,
 			Expr yScreenExpr) {
 		super();
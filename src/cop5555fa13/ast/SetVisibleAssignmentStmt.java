@@ -4,7 +4,7 @@ import cop5555fa13.TokenStream.Token;
 
 public class SetVisibleAssignmentStmt extends AssignStmt {
 	final Token lhsIdent;
-	final Expr expr;
+	Expr expr;
 	public SetVisibleAssignmentStmt(Token lhsIdent, Expr expr) {
 		super();
 		this.lhsIdent = lhsIdent;
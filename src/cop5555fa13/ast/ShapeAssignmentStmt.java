@@ -4,8 +4,8 @@ import cop5555fa13.TokenStream.Token;
 
 public class ShapeAssignmentStmt extends AssignStmt {
 	final Token lhsIdent;
-	final Expr width;
-	final Expr height;
+	Expr width;
+	Expr height;
 	public ShapeAssignmentStmt(Token lhsIdent, Expr width, Expr height) {
 		super();
 		this.lhsIdent = lhsIdent;
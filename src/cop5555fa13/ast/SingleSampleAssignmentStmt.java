@@ -4,10 +4,10 @@ import cop5555fa13.TokenStream.Token;
 
 public class SingleSampleAssignmentStmt extends AssignStmt {
 	final Token lhsIdent;
-	final Expr xExpr;
-	final Expr yExpr;
+	Expr xExpr;
+	Expr yExpr;
 	final Token color;
-	final Expr rhsExpr;
+	Expr rhsExpr;
 	public SingleSampleAssignmentStmt(Token lhsIdent, Expr xExpr, Expr yExpr,
 			Token color, Expr rhsExpr) {
 		super();
@@ -0,0 +1,301 @@
+package cop5555fa13.ast;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import cop5555fa13.TokenStream.Kind;
+
+/**
+ * Task parallelism between statements. In every statement list, the
+ * statements that may run on another thread are split at the others into
+ * runs. In a run, each statement depends on the earlier ones that write a
+ * variable or image it reads or writes, or that read one it writes. The
+ * statements of a run are put in order into independent groups: a statement
+ * that depends on no group starts a new one, and a statement that depends on
+ * one group is appended to it. A statement that depends on several groups
+ * joins them: the groups so far are executed before it, and it starts the
+ * next ones. The groups containing a whole-image assignment, which are worth
+ * a task, are replaced by a ParallelStmt that executes them concurrently,
+ * after the other groups, and completes before the following statement.
+ *
+ * A statement can't run on another thread if it has effects outside its
+ * variables and images, or if the images it uses may be observed by other
+ * means than their names:
+ * <ul>
+ * <li>pause, visible assignments and file assignments are executed in
+ * order;</li>
+ * <li>images made visible anywhere, whose updates are frames, and images
+ * assigned to or from image variables, which may alias others, are only
+ * used by statements executed in order.</li>
+ * </ul>
+ * When a group of a ParallelStmt throws, the groups that have not started
+ * are not executed, and the program stops once those running have
+ * completed. These may have executed statements that follow the one that
+ * threw in the program. When several groups throw, which exception the
+ * program stops with is not defined.
+ */
+public class TaskVisitor extends TraversalVisitor {
+
+	/** images whose statements must execute in order */
+	private final Set<String> ordered = new HashSet<String>();
+
+	@Override
+	public Object visitProgram(Program program, Object arg) throws Exception {
+		ordered.addAll(aliasedImages(program));
+		program.visit(new TraversalVisitor() {
+			@Override
+			public Object visitSetVisibleAssignmentStmt(
+					SetVisibleAssignmentStmt stmt, Object arg) throws Exception {
+				ordered.add(stmt.lhsIdent.getText());
+				return super.visitSetVisibleAssignmentStmt(stmt, arg);
+			}
+		}, null);
+		schedule(program.stmtList);
+		return null;
+	}
+
+	/**
+	 * @return the images of program assigned to or from image variables, any
+	 *         two of which may be the same image when a statement executes
+	 */
+	static Set<String> aliasedImages(Program program) throws Exception {
+		final Set<String> images = new HashSet<String>();
+		for (Dec dec : program.decList) {
+			if (dec.type == Kind.image) {
+				images.add(dec.ident.getText());
+			}
+		}
+		final Set<String> aliased = new HashSet<String>();
+		program.visit(new TraversalVisitor() {
+			@Override
+			public Object visitAssignExprStmt(AssignExprStmt stmt, Object arg)
+					throws Exception {
+				if (images.contains(stmt.lhsIdent.getText())) {
+					aliased.add(stmt.lhsIdent.getText());
+				}
+				return super.visitAssignExprStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitIdentExpr(IdentExpr identExpr, Object arg) {
+				if (images.contains(identExpr.ident.getText())) {
+					aliased.add(identExpr.ident.getText());
+				}
+				return null;
+			}
+		}, null);
+		return aliased;
+	}
+
+	@Override
+	public Object visitAlternativeStmt(AlternativeStmt alternativeStmt,
+			Object arg) throws Exception {
+		schedule(alternativeStmt.ifStmtList);
+		schedule(alternativeStmt.elseStmtList);
+		return null;
+	}
+
+	@Override
+	public Object visitIterationStmt(IterationStmt iterationStmt, Object arg)
+			throws Exception {
+		schedule(iterationStmt.stmtList);
+		return null;
+	}
+
+	/**
+	 * Replaces the independent groups of the runs of stmtList by
+	 * ParallelStmts, after doing so in the nested statement lists.
+	 */
+	private void schedule(List<Stmt> stmtList) throws Exception {
+		List<Stmt> scheduled = new ArrayList<Stmt>();
+		List<Stmt> run = new ArrayList<Stmt>();
+		for (Stmt stmt : stmtList) {
+			stmt.visit(this, null);
+			if (isMovable(stmt)) {
+				run.add(stmt);
+			} else {
+				scheduleRun(run, scheduled);
+				run.clear();
+				scheduled.add(stmt);
+			}
+		}
+		scheduleRun(run, scheduled);
+		stmtList.clear();
+		stmtList.addAll(scheduled);
+	}
+
+	private void scheduleRun(List<Stmt> run, List<Stmt> scheduled)
+			throws Exception {
+		List<Stmt> pending = new ArrayList<Stmt>();
+		List<List<Stmt>> groups = new ArrayList<List<Stmt>>();
+		List<Set<String>> groupNames = new ArrayList<Set<String>>();
+		List<Set<String>> groupWritten = new ArrayList<Set<String>>();
+		for (Stmt stmt : run) {
+			Set<String> names = FusionVisitor.names(stmt);
+			Set<String> written = writtenNames(stmt);
+			List<Integer> dependences = new ArrayList<Integer>();
+			for (int g = 0; g != groups.size(); g++) {
+				if (intersects(groupWritten.get(g), names)
+						|| intersects(written, groupNames.get(g))) {
+					dependences.add(g);
+				}
+			}
+			if (dependences.size() > 1) {
+				// a join: the groups so far complete before stmt
+				scheduleGroups(pending, groups, scheduled);
+				pending.clear();
+				groups.clear();
+				groupNames.clear();
+				groupWritten.clear();
+				dependences.clear();
+			}
+			pending.add(stmt);
+			if (dependences.isEmpty()) {
+				groups.add(new ArrayList<Stmt>());
+				groupNames.add(new HashSet<String>());
+				groupWritten.add(new HashSet<String>());
+				dependences.add(groups.size() - 1);
+			}
+			int g = dependences.get(0);
+			groups.get(g).add(stmt);
+			groupNames.get(g).addAll(names);
+			groupWritten.get(g).addAll(written);
+		}
+		scheduleGroups(pending, groups, scheduled);
+	}
+
+	/**
+	 * Appends the independent groups formed by the statements pending to
+	 * scheduled, as a ParallelStmt if at least two are worth a task.
+	 */
+	private static void scheduleGroups(List<Stmt> pending,
+			List<List<Stmt>> groups, List<Stmt> scheduled) throws Exception {
+		List<List<Stmt>> tasks = new ArrayList<List<Stmt>>();
+		List<Stmt> inline = new ArrayList<Stmt>();
+		for (List<Stmt> g : groups) {
+			if (assignsImage(g)) {
+				tasks.add(g);
+			} else {
+				inline.addAll(g);
+			}
+		}
+		if (tasks.size() < 2) {
+			scheduled.addAll(pending);
+			return;
+		}
+		scheduled.addAll(inline);
+		scheduled.add(new ParallelStmt(tasks));
+	}
+
+	private static boolean intersects(Set<String> a, Set<String> b) {
+		for (String name : a) {
+			if (b.contains(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if stmt may run on another thread than the statements
+	 *         around it
+	 */
+	private boolean isMovable(Stmt stmt) throws Exception {
+		final boolean[] movable = { true };
+		stmt.visit(new TraversalVisitor() {
+			@Override
+			public Object visitPauseStmt(PauseStmt pauseStmt, Object arg) {
+				movable[0] = false;
+				return null;
+			}
+
+			@Override
+			public Object visitSetVisibleAssignmentStmt(
+					SetVisibleAssignmentStmt stmt, Object arg) {
+				movable[0] = false;
+				return null;
+			}
+
+			@Override
+			public Object FileAssignStmt(FileAssignStmt stmt, Object arg) {
+				movable[0] = false;
+				return null;
+			}
+		}, null);
+		return movable[0] && !intersects(ordered, FusionVisitor.names(stmt));
+	}
+
+	/**
+	 * @return true if stmts contain a whole-image assignment
+	 */
+	private static boolean assignsImage(List<Stmt> stmts) throws Exception {
+		final boolean[] assigns = { false };
+		TraversalVisitor visitor = new TraversalVisitor() {
+			@Override
+			public Object visitAssignPixelStmt(AssignPixelStmt stmt, Object arg) {
+				assigns[0] |= !stmt.ispixel;
+				return null;
+			}
+		};
+		for (Stmt stmt : stmts) {
+			stmt.visit(visitor, null);
+		}
+		return assigns[0];
+	}
+
+	/**
+	 * @return the names of the variables and images stmt assigns
+	 */
+	private static Set<String> writtenNames(Stmt stmt) throws Exception {
+		final Set<String> names = new HashSet<String>();
+		stmt.visit(new TraversalVisitor() {
+			@Override
+			public Object visitAssignPixelStmt(AssignPixelStmt stmt, Object arg)
+					throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return super.visitAssignPixelStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitSinglePixelAssignmentStmt(
+					SinglePixelAssignmentStmt stmt, Object arg)
+					throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return super.visitSinglePixelAssignmentStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitSingleSampleAssignmentStmt(
+					SingleSampleAssignmentStmt stmt, Object arg)
+					throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return super.visitSingleSampleAssignmentStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitScreenLocationAssignmentStmt(
+					ScreenLocationAssignmentStmt stmt, Object arg)
+					throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return super.visitScreenLocationAssignmentStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitShapeAssignmentStmt(ShapeAssignmentStmt stmt,
+					Object arg) throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return super.visitShapeAssignmentStmt(stmt, arg);
+			}
+
+			@Override
+			public Object visitAssignExprStmt(AssignExprStmt stmt, Object arg)
+					throws Exception {
+				names.add(stmt.lhsIdent.getText());
+				return super.visitAssignExprStmt(stmt, arg);
+			}
+		}, null);
+		return names;
+	}
+}
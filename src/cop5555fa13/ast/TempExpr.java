@@ -0,0 +1,32 @@
+package cop5555fa13.ast;
+
+/**
+ * A subexpression whose value is kept in a temporary, introduced by
+ * CSEVisitor and LoopInvariantVisitor. The occurrence evaluated first holds
+ * the expression, evaluates it and saves its value in temporary number id;
+ * the other occurrences have no expression and load the saved value.
+ */
+public class TempExpr extends Expr {
+	final int id;
+	Expr expr;
+
+	public TempExpr(int id, Expr expr, cop5555fa13.TokenStream.Kind type) {
+		super();
+		this.id = id;
+		this.expr = expr;
+		this.type = type;
+	}
+
+	/**
+	 * @return true if this occurrence evaluates the expression
+	 */
+	public boolean isDefinition() {
+		return expr != null;
+	}
+
+	@Override
+	public Object visit(ASTVisitor v, Object arg) throws Exception {
+		return v.visitTempExpr(this, arg);
+	}
+
+}
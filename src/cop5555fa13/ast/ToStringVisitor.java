@@ -1,5 +1,7 @@
 package cop5555fa13.ast;
 
+import java.util.List;
+
 public class ToStringVisitor implements ASTVisitor {
 	
 	StringBuilder sb;
@@ -77,6 +79,18 @@ public class ToStringVisitor implements ASTVisitor {
 		.append("AssignPixelStmt:\n")
 		.append(indent);
 		sb.append(assignPixelStmt.lhsIdent.getText()).append('\n');
+		for (AssignPixelStmt producer : assignPixelStmt.producers) {
+			producer.visit(this, indent);
+		}
+		for (TempExpr t : assignPixelStmt.loopInvariants) {
+			t.visit(this, indent);
+		}
+		for (TempExpr t : assignPixelStmt.rowInvariants) {
+			t.visit(this, indent);
+		}
+		for (TempExpr t : assignPixelStmt.columnInvariants) {
+			t.visit(this, indent);
+		}
 		assignPixelStmt.pixel.visit(this,indent);
 		return null;
 	}
@@ -293,6 +307,34 @@ public class ToStringVisitor implements ASTVisitor {
 		return null;
 	}
 
+	@Override
+	public Object visitTempExpr(TempExpr tempExpr, Object arg) throws Exception {
+		sb.append(arg)
+		.append("TempExpr: t")
+		.append(tempExpr.id);
+		if (tempExpr.isDefinition()) {
+			sb.append(" =\n");
+			tempExpr.expr.visit(this, arg + "  ");
+		} else {
+			sb.append('\n');
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitParallelStmt(ParallelStmt parallelStmt, Object arg)
+			throws Exception {
+		sb.append(arg)
+		.append("ParallelStmt:");
+		String indent0 = arg + "  ";
+		String indent1 = indent0 + "  ";
+		for (List<Stmt> task : parallelStmt.tasks) {
+			sb.append('\n').append(indent0).append("task");
+			for (Stmt stmt: task){sb.append('\n'); stmt.visit(this, indent1);}
+		}
+		return null;
+	}
+
 
 	
 	
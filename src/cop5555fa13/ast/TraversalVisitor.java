@@ -0,0 +1,220 @@
+package cop5555fa13.ast;
+
+import java.util.List;
+
+/**
+ * Visitor that walks the whole Abstract Syntax Tree without doing anything at
+ * the nodes. Analyses that only care about a few kinds of nodes extend this
+ * class and override the corresponding visit methods, calling the super
+ * method when the children should still be visited.
+ */
+public abstract class TraversalVisitor implements ASTVisitor {
+
+	@Override
+	public Object visitDec(Dec dec, Object arg) throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitProgram(Program program, Object arg) throws Exception {
+		for (Dec dec : program.decList) {
+			dec.visit(this, arg);
+		}
+		for (Stmt stmt : program.stmtList) {
+			stmt.visit(this, arg);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitAlternativeStmt(AlternativeStmt alternativeStmt,
+			Object arg) throws Exception {
+		alternativeStmt.expr.visit(this, arg);
+		for (Stmt stmt : alternativeStmt.ifStmtList) {
+			stmt.visit(this, arg);
+		}
+		for (Stmt stmt : alternativeStmt.elseStmtList) {
+			stmt.visit(this, arg);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitPauseStmt(PauseStmt pauseStmt, Object arg)
+			throws Exception {
+		pauseStmt.expr.visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitIterationStmt(IterationStmt iterationStmt, Object arg)
+			throws Exception {
+		iterationStmt.expr.visit(this, arg);
+		for (Stmt stmt : iterationStmt.stmtList) {
+			stmt.visit(this, arg);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitAssignPixelStmt(AssignPixelStmt assignPixelStmt,
+			Object arg) throws Exception {
+		for (AssignPixelStmt producer : assignPixelStmt.producers) {
+			producer.visit(this, arg);
+		}
+		for (TempExpr t : assignPixelStmt.loopInvariants) {
+			t.visit(this, arg);
+		}
+		for (TempExpr t : assignPixelStmt.rowInvariants) {
+			t.visit(this, arg);
+		}
+		for (TempExpr t : assignPixelStmt.columnInvariants) {
+			t.visit(this, arg);
+		}
+		assignPixelStmt.pixel.visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitPixel(Pixel pixel, Object arg) throws Exception {
+		pixel.redExpr.visit(this, arg);
+		pixel.greenExpr.visit(this, arg);
+		pixel.blueExpr.visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitSinglePixelAssignmentStmt(
+			SinglePixelAssignmentStmt singlePixelAssignmentStmt, Object arg)
+			throws Exception {
+		singlePixelAssignmentStmt.xExpr.visit(this, arg);
+		singlePixelAssignmentStmt.yExpr.visit(this, arg);
+		singlePixelAssignmentStmt.pixel.visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitSingleSampleAssignmentStmt(
+			SingleSampleAssignmentStmt singleSampleAssignmentStmt, Object arg)
+			throws Exception {
+		singleSampleAssignmentStmt.xExpr.visit(this, arg);
+		singleSampleAssignmentStmt.yExpr.visit(this, arg);
+		singleSampleAssignmentStmt.rhsExpr.visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitScreenLocationAssignmentStmt(
+			ScreenLocationAssignmentStmt screenLocationAssignmentStmt,
+			Object arg) throws Exception {
+		screenLocationAssignmentStmt.xScreenExpr.visit(this, arg);
+		screenLocationAssignmentStmt.yScreenExpr.visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitShapeAssignmentStmt(
+			ShapeAssignmentStmt shapeAssignmentStmt, Object arg)
+			throws Exception {
+		shapeAssignmentStmt.width.visit(this, arg);
+		shapeAssignmentStmt.height.visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitSetVisibleAssignmentStmt(
+			SetVisibleAssignmentStmt setVisibleAssignmentStmt, Object arg)
+			throws Exception {
+		setVisibleAssignmentStmt.expr.visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object FileAssignStmt(FileAssignStmt fileAssignStmt, Object arg)
+			throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitConditionalExpr(ConditionalExpr conditionalExpr,
+			Object arg) throws Exception {
+		conditionalExpr.condition.visit(this, arg);
+		conditionalExpr.trueValue.visit(this, arg);
+		conditionalExpr.falseValue.visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitBinaryExpr(BinaryExpr binaryExpr, Object arg)
+			throws Exception {
+		binaryExpr.e0.visit(this, arg);
+		binaryExpr.e1.visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitSampleExpr(SampleExpr sampleExpr, Object arg)
+			throws Exception {
+		sampleExpr.xLoc.visit(this, arg);
+		sampleExpr.yLoc.visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitImageAttributeExpr(
+			ImageAttributeExpr imageAttributeExpr, Object arg) throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitIdentExpr(IdentExpr identExpr, Object arg)
+			throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitIntLitExpr(IntLitExpr intLitExpr, Object arg)
+			throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitBooleanLitExpr(BooleanLitExpr booleanLitExpr, Object arg)
+			throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitPreDefExpr(PreDefExpr PreDefExpr, Object arg)
+			throws Exception {
+		return null;
+	}
+
+	@Override
+	public Object visitAssignExprStmt(AssignExprStmt assignExprStmt, Object arg)
+			throws Exception {
+		assignExprStmt.expr.visit(this, arg);
+		return null;
+	}
+
+	@Override
+	public Object visitTempExpr(TempExpr tempExpr, Object arg)
+			throws Exception {
+		if (tempExpr.isDefinition()) {
+			tempExpr.expr.visit(this, arg);
+		}
+		return null;
+	}
+
+	@Override
+	public Object visitParallelStmt(ParallelStmt parallelStmt, Object arg)
+			throws Exception {
+		for (List<Stmt> task : parallelStmt.tasks) {
+			for (Stmt stmt : task) {
+				stmt.visit(this, arg);
+			}
+		}
+		return null;
+	}
+
+}
@@ -502,6 +502,34 @@ public class TypeCheckVisitor implements ASTVisitor {
 		return null;
 	}
 
+	/**
+	 * Temporaries are introduced after type checking, with the type of their
+	 * expression.
+	 */
+	@Override
+	public Object visitTempExpr(TempExpr tempExpr, Object arg)
+			throws Exception {
+		if (tempExpr.isDefinition()) {
+			tempExpr.expr.visit(this, arg);
+		}
+		return null;
+	}
+
+	/**
+	 * Parallel statements are introduced after type checking, from checked
+	 * statements.
+	 */
+	@Override
+	public Object visitParallelStmt(ParallelStmt parallelStmt, Object arg)
+			throws Exception {
+		for (List<Stmt> task : parallelStmt.tasks) {
+			for (Stmt stmt : task) {
+				stmt.visit(this, null);
+			}
+		}
+		return null;
+	}
+
 }
 
 /************************************************* END *****************************************/
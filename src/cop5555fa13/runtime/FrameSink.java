@@ -0,0 +1,22 @@
+package cop5555fa13.runtime;
+
+/**
+ * Receives the frames of a program running in headless mode. Whenever the
+ * frame of a visible image would be updated, the PLPImage is passed to the
+ * sink instead. Implement this interface to get the frames in memory, or use
+ * PNGFrameSink or RawFrameSink to write them out.
+ * 
+ * The sink is called on the thread that executed the statement, and must copy
+ * whatever it needs from the image before it returns.
+ * 
+ */
+public interface FrameSink {
+
+	/**
+	 * Called for each update of the frame of a visible image.
+	 * 
+	 * @param image
+	 *            image whose frame is updated
+	 */
+	void frameUpdated(PLPImage image);
+}
@@ -0,0 +1,458 @@
+package cop5555fa13.runtime;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Cache of decoded images shared by all PLPImage instances, so that loading
+ * the same file or URL again, in a loop or in another program run by the same
+ * JVM, does not read and decode it again.
+ *
+ * Files are keyed by their canonical path and are reloaded when their last
+ * modification time or length changes. URLs are keyed by the URL; HTTP
+ * sources are revalidated with the ETag and Last-Modified headers of the
+ * cached response, other URLs are always reloaded.
+ *
+ * The images handed out are TYPE_INT_RGB and are shared with the cache and
+ * every other PLPImage that loaded the same source, so they must not be
+ * written. PLPImage copies the image before the first write.
+ *
+ * The cache is a least recently used list bounded by the total size of the
+ * rasters it holds, given in bytes by the system property
+ * cop5555fa13.imagecache.bytes. A size of 0 disables caching.
+ *
+ * When the size the image will be scaled to is known, sources at least twice
+ * as large are decoded with source subsampling, reading only every n-th pixel
+ * of every n-th row, so that a large photo is never decoded at full
+ * resolution only to be shown much smaller. Such images are cached per target
+ * size.
+ *
+ * Files in the raw format of RawImageIO are copied from a mapped file
+ * instead of being decoded.
+ *
+ * Sources can be prefetched: prefetch starts loading a source into the cache
+ * on a background thread, and a get of the same source without a target size
+ * while it runs waits for that load instead of starting its own.
+ *
+ */
+public class ImageCache {
+
+	static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+	/**
+	 * property, set to Boolean.TRUE, of the images decoded with source
+	 * subsampling
+	 */
+	static final String SUBSAMPLED = "cop5555fa13.subsampled";
+
+	private static final ImageCache shared = new ImageCache(Long.getLong(
+			"cop5555fa13.imagecache.bytes", DEFAULT_MAX_BYTES));
+
+	/**
+	 * @return the cache used by PLPImage.loadImage
+	 */
+	public static ImageCache getShared() {
+		return shared;
+	}
+
+	static class Entry {
+		final BufferedImage image;
+		final long bytes;
+		/** last modification time and length of a file */
+		final long modified;
+		final long length;
+		/** validators of an HTTP response, or null */
+		final String etag;
+		final String lastModified;
+
+		Entry(BufferedImage image, long modified, long length, String etag,
+				String lastModified) {
+			this.image = image;
+			this.bytes = 4L * image.getRaster().getDataBuffer().getSize();
+			this.modified = modified;
+			this.length = length;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private final long maxBytes;
+	private long bytes;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * loads started by prefetch, not yet completed nor claimed by get; a
+	 * completed load leaves its image to the cache only
+	 */
+	private final ConcurrentHashMap<String, Future<BufferedImage>> prefetched = new ConcurrentHashMap<String, Future<BufferedImage>>();
+
+	private static final ExecutorService prefetcher = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "PLPImage prefetch");
+					// do not keep a program alive for images it never used
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	public ImageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the decoded image at fileOrURL, from the cache if it is still up
+	 * to date. The returned image must not be modified.
+	 *
+	 * @param fileOrURL
+	 *            File or URL of the image
+	 * @return the image, or null if no registered reader can decode it
+	 * @throws IOException
+	 *             if the source cannot be read
+	 */
+	public BufferedImage get(String fileOrURL) throws IOException {
+		return get(fileOrURL, 0, 0);
+	}
+
+	/**
+	 * Returns the decoded image at fileOrURL, subsampled if it is at least
+	 * twice as large as targetWidth x targetHeight. The image returned is
+	 * never smaller than the target, and still has to be scaled to it.
+	 *
+	 * @param fileOrURL
+	 *            File or URL of the image
+	 * @param targetWidth
+	 *            width the image will be scaled to, or 0 if unknown
+	 * @param targetHeight
+	 *            height the image will be scaled to, or 0 if unknown
+	 * @return the image, or null if no registered reader can decode it
+	 * @throws IOException
+	 *             if the source cannot be read
+	 */
+	public BufferedImage get(String fileOrURL, int targetWidth,
+			int targetHeight) throws IOException {
+		if (targetWidth <= 0 || targetHeight <= 0) {
+			targetWidth = 0;
+			targetHeight = 0;
+		}
+		// a prefetch decodes at full resolution, so a get for a smaller
+		// target decodes its own subsampled image instead of claiming it
+		Future<BufferedImage> pending = targetWidth == 0 ? prefetched
+				.remove(fileOrURL) : null;
+		if (pending != null) {
+			try {
+				return pending.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while loading " + fileOrURL);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new IOException(cause);
+			}
+		}
+		return load(fileOrURL, targetWidth, targetHeight);
+	}
+
+	/**
+	 * Starts loading fileOrURL in the background into the cache, unless a
+	 * load of it is already pending. A get of fileOrURL while the load runs
+	 * waits for it, and gets its errors; once it has completed, the image is
+	 * held by the cache only, within its size bound, and a later get finds it
+	 * there if it is still up to date.
+	 *
+	 * @param fileOrURL
+	 *            File or URL of the image
+	 */
+	public void prefetch(final String fileOrURL) {
+		if (prefetched.containsKey(fileOrURL)) {
+			return;
+		}
+		FutureTask<BufferedImage> pending = new FutureTask<BufferedImage>(
+				new Callable<BufferedImage>() {
+					@Override
+					public BufferedImage call() throws IOException {
+						return load(fileOrURL, 0, 0);
+					}
+				}) {
+			@Override
+			protected void done() {
+				// unclaimed, the image must not outlive its cache entry
+				prefetched.remove(fileOrURL, this);
+			}
+		};
+		if (prefetched.putIfAbsent(fileOrURL, pending) == null) {
+			prefetcher.execute(pending);
+		}
+	}
+
+	/**
+	 * @return the number of prefetched loads still running and not claimed
+	 */
+	int getPendingPrefetches() {
+		return prefetched.size();
+	}
+
+	private BufferedImage load(String fileOrURL, int targetWidth,
+			int targetHeight) throws IOException {
+		URL url;
+		try {
+			url = new URL(fileOrURL);
+		} catch (MalformedURLException e) {
+			// not a URL, maybe it is a file
+			return getFile(new File(fileOrURL), targetWidth, targetHeight);
+		}
+		if (url.getProtocol().equals("file")) {
+			try {
+				return getFile(new File(url.toURI()), targetWidth,
+						targetHeight);
+			} catch (URISyntaxException | IllegalArgumentException e) {
+				// not a plain file URL, let the connection deal with it
+			}
+		}
+		return getURL(url, targetWidth, targetHeight);
+	}
+
+	/**
+	 * @return key of the source with the given key decoded for the given
+	 *         target size
+	 */
+	private static String sizedKey(String key, int targetWidth,
+			int targetHeight) {
+		return targetWidth == 0 ? key : key + "#" + targetWidth + "x"
+				+ targetHeight;
+	}
+
+	private BufferedImage getFile(File file, int targetWidth, int targetHeight)
+			throws IOException {
+		String key = sizedKey(file.getCanonicalPath(), targetWidth,
+				targetHeight);
+		long modified = file.lastModified();
+		long length = file.length();
+		Entry entry = lookup(key);
+		if (entry != null && entry.modified == modified
+				&& entry.length == length) {
+			hit();
+			return entry.image;
+		}
+		miss();
+		if (!file.canRead()) {
+			throw new IIOException("Can't read input file!");
+		}
+		BufferedImage image = RawImageIO.isRawFile(file.getName()) ? RawImageIO
+				.read(file) : read(ImageIO.createImageInputStream(file),
+				targetWidth, targetHeight);
+		if (image != null) {
+			put(key, new Entry(image, modified, length, null, null));
+		}
+		return image;
+	}
+
+	private BufferedImage getURL(URL url, int targetWidth, int targetHeight)
+			throws IOException {
+		String key = sizedKey(url.toExternalForm(), targetWidth, targetHeight);
+		Entry entry = lookup(key);
+		URLConnection connection = url.openConnection();
+		if (!(connection instanceof HttpURLConnection)) {
+			// no way to tell whether the resource changed
+			miss();
+			return decode(connection, targetWidth, targetHeight);
+		}
+		HttpURLConnection http = (HttpURLConnection) connection;
+		if (entry != null) {
+			if (entry.etag != null) {
+				http.setRequestProperty("If-None-Match", entry.etag);
+			}
+			if (entry.lastModified != null) {
+				http.setRequestProperty("If-Modified-Since",
+						entry.lastModified);
+			}
+		}
+		try {
+			if (entry != null
+					&& http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				hit();
+				return entry.image;
+			}
+			miss();
+			BufferedImage image = decode(http, targetWidth, targetHeight);
+			String etag = http.getHeaderField("ETag");
+			String lastModified = http.getHeaderField("Last-Modified");
+			if (image != null && (etag != null || lastModified != null)) {
+				put(key, new Entry(image, 0, 0, etag, lastModified));
+			}
+			return image;
+		} finally {
+			http.disconnect();
+		}
+	}
+
+	private static BufferedImage decode(URLConnection connection,
+			int targetWidth, int targetHeight) throws IOException {
+		InputStream in = connection.getInputStream();
+		try {
+			return read(ImageIO.createImageInputStream(in), targetWidth,
+					targetHeight);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return true if image was decoded with source subsampling, so is
+	 *         smaller than its source
+	 */
+	static boolean isSubsampled(BufferedImage image) {
+		return Boolean.TRUE.equals(image.getProperty(SUBSAMPLED));
+	}
+
+	/**
+	 * Decodes the first image of in, subsampled by the largest factor that
+	 * keeps it at least targetWidth x targetHeight, and closes in.
+	 *
+	 * @return the image as TYPE_INT_RGB, or null if no registered reader can
+	 *         decode it
+	 */
+	static BufferedImage read(ImageInputStream in, int targetWidth,
+			int targetHeight) throws IOException {
+		if (in == null) {
+			return null;
+		}
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				return null;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				boolean subsampled = false;
+				if (targetWidth > 0) {
+					int factor = Math.min(reader.getWidth(0) / targetWidth,
+							reader.getHeight(0) / targetHeight);
+					if (factor >= 2) {
+						param.setSourceSubsampling(factor, factor, 0, 0);
+						subsampled = true;
+					}
+				}
+				BufferedImage image = PLPImage.toIntRGB(reader.read(0, param));
+				if (subsampled) {
+					Hashtable<String, Object> properties = new Hashtable<String, Object>();
+					properties.put(SUBSAMPLED, Boolean.TRUE);
+					image = new BufferedImage(image.getColorModel(),
+							image.getRaster(), false, properties);
+				}
+				return image;
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private synchronized Entry lookup(String key) {
+		return entries.get(key);
+	}
+
+	private synchronized void put(String key, Entry entry) {
+		if (entry.bytes > maxBytes) {
+			return;
+		}
+		Entry old = entries.put(key, entry);
+		if (old != null) {
+			bytes -= old.bytes;
+		}
+		bytes += entry.bytes;
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (bytes > maxBytes) {
+			Entry eldest = it.next().getValue();
+			it.remove();
+			bytes -= eldest.bytes;
+			evictions++;
+		}
+	}
+
+	private synchronized void hit() {
+		hits++;
+	}
+
+	private synchronized void miss() {
+		misses++;
+	}
+
+	/**
+	 * Removes all entries. The counters are kept.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return total size in bytes of the cached rasters
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ImageCache[" + entries.size() + " images, " + bytes + "/"
+				+ maxBytes + " bytes, " + hits + " hits, " + misses
+				+ " misses, " + evictions + " evictions]";
+	}
+}
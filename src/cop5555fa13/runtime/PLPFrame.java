@@ -1,8 +1,10 @@
 package cop5555fa13.runtime;
 
 import java.awt.Container;
+import java.awt.Image;
 import java.awt.Insets;
 import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.*;
 
 
@@ -16,6 +18,10 @@ import javax.swing.*;
  * Update a frame (change its size, visibility, BufferedImage to display, etc.) by updating these values in the 
  * associated PLPImage, then call updateFrameState.
  * 
+ * Calls to update are coalesced: at most one update of a frame is queued on the
+ * event-dispatch thread at any time, and it applies the latest state of the
+ * PLPImage when it runs. Only the attributes that changed since the previous
+ * update are applied to the frame.
  *
  */
 @SuppressWarnings("serial")
@@ -24,6 +30,23 @@ public class PLPFrame extends JFrame {
 	//private Insets insets;
 	private ImageIcon icon;
 	private final PLPImage im;
+
+	/**
+	 * true while an update is queued on the event-dispatch thread and has not
+	 * started yet.
+	 */
+	private final AtomicBoolean updatePending = new AtomicBoolean();
+
+	/**
+	 * attributes applied to the frame by the last update. Only accessed on the
+	 * event-dispatch thread.
+	 */
+	private int shownWidth = -1;
+	private int shownHeight = -1;
+	private int shownX = Integer.MIN_VALUE;
+	private int shownY = Integer.MIN_VALUE;
+	private boolean shownVisible;
+	private Image shownImage;
 	
 	
 	/**
@@ -86,12 +109,32 @@ public class PLPFrame extends JFrame {
 		w = w + insets.left + insets.right;
 		int h = im.getHeight();
 		h = h + insets.top + insets.bottom;
-		setSize(w, h);
-		icon.setImage(im.image);
-		revalidate();
-		setLocation(im.x_loc, im.y_loc);		
+		boolean layoutChanged = false;
+		if (w != shownWidth || h != shownHeight) {
+			setSize(w, h);
+			shownWidth = w;
+			shownHeight = h;
+			layoutChanged = true;
+		}
+		if (im.image != shownImage) {
+			icon.setImage(im.image);
+			shownImage = im.image;
+			layoutChanged = true;
+		}
+		if (layoutChanged) {
+			revalidate();
+		}
+		if (im.x_loc != shownX || im.y_loc != shownY) {
+			setLocation(im.x_loc, im.y_loc);
+			shownX = im.x_loc;
+			shownY = im.y_loc;
+		}
+		// the pixels may have changed even if nothing else did
 		repaint();
-		setVisible(im.isVisible);
+		if (im.isVisible != shownVisible) {
+			setVisible(im.isVisible);
+			shownVisible = im.isVisible;
+		}
 	}
 
 	/**
@@ -117,11 +160,18 @@ public class PLPFrame extends JFrame {
 //	}
 	
 	public final void update() {
-	SwingUtilities.invokeLater(new Runnable() {
-		public void run() {
-			updateFrameState();
+		// an update that has not started yet will see the current state
+		if (!updatePending.compareAndSet(false, true)) {
+			return;
 		}
-	});
-}	
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				// cleared before reading the state, so that changes made while
+				// this update runs queue another one
+				updatePending.set(false);
+				updateFrameState();
+			}
+		});
+	}
 
-}
\ No newline at end of file
+}
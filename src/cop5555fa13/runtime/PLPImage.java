@@ -6,10 +6,14 @@ import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.PrintStream;
 
 import javax.imageio.ImageIO;
 
@@ -24,11 +28,25 @@ import javax.imageio.ImageIO;
  * Generally, operations on images result in changing the state of the PLPImage
  * object (or its BufferedImage) then invoking updateFrame.
  * 
+ * Every BufferedImage held by a PLPImage is normalized to TYPE_INT_RGB backed
+ * by a DataBufferInt. The pixel accessors read and write the underlying int[]
+ * raster directly instead of going through getRGB/setRGB and the ColorModel.
+ * 
+ * In headless mode, selected with the system property cop5555fa13.headless or
+ * when AWT itself is headless, no frame is ever created. Updates of the frame
+ * of a visible image are passed to the FrameSink set with setFrameSink, or
+ * given by the system property cop5555fa13.framesink as png:directory,
+ * raw:file or raw:- for standard output. SCREENSIZE is then given by the
+ * system property cop5555fa13.screensize, and pause does not sleep. The
+ * images of a run started with a RunContext use its inputs and frame sink
+ * instead.
+ * 
  */
 public class PLPImage implements ImageConstants {
 	
 	public static final String className = "cop5555fa13/runtime/PLPImage";
 	public static final String classDesc = "Lcop5555fa13/runtime/PLPImage;";
+	public static final String initDesc = "(Ljava/lang/String;)V";
 	public static final String loadImageDesc = "(Ljava/lang/String;)V";
 	public static final String updateFrameDesc = "()V";
 
@@ -41,57 +59,188 @@ public class PLPImage implements ImageConstants {
 	}
 
 	BufferedImage image;
+	/**
+	 * raster of image, one packed 0x00rrggbb pixel per int, and the number of
+	 * ints between the start of two consecutive rows.
+	 */
+	int[] pixels;
+	int stride;
+	/**
+	 * true while image is owned by the ImageCache and must be copied before
+	 * it is written
+	 */
+	boolean shared;
 	public int width;
 	public int height;
 	PLPFrame frame;
+	/**
+	 * name of the image variable, used to identify frames in headless mode
+	 */
+	final String name;
+	/**
+	 * context of the run the image belongs to, or null
+	 */
+	private final RunContext context = RunContext.current();
 	public int x_loc;
 	public int y_loc;
 	public boolean isVisible;
 
 	public final static int SCREENSIZE;
 
+	public final static boolean HEADLESS = Boolean
+			.getBoolean("cop5555fa13.headless")
+			|| GraphicsEnvironment.isHeadless();
+
+	/**
+	 * SCREENSIZE in headless mode when no size is configured
+	 */
+	static final int DEFAULT_SCREENSIZE = 1024;
+
 	static {
-		Rectangle screen = GraphicsEnvironment.getLocalGraphicsEnvironment()
-				.getMaximumWindowBounds();
-		SCREENSIZE = screen.width > screen.height ? screen.height
-				: screen.width;
+		Integer configured = Integer.getInteger("cop5555fa13.screensize");
+		if (configured != null) {
+			SCREENSIZE = configured;
+		} else if (HEADLESS) {
+			SCREENSIZE = DEFAULT_SCREENSIZE;
+		} else {
+			Rectangle screen = GraphicsEnvironment
+					.getLocalGraphicsEnvironment().getMaximumWindowBounds();
+			SCREENSIZE = screen.width > screen.height ? screen.height
+					: screen.width;
+		}
+	}
+
+	/** frame sink spec writing raw frames to standard output */
+	public static final String STDOUT_FRAME_SINK = "raw:-";
+
+	private static volatile FrameSink frameSink = frameSinkFromProperty();
+
+	/**
+	 * @return the stream of the messages of the runtime: standard output,
+	 *         unless the frames are written to it
+	 */
+	static PrintStream messages() {
+		return STDOUT_FRAME_SINK.equals(System
+				.getProperty("cop5555fa13.framesink")) ? System.err
+				: System.out;
 	}
 
 	public PLPImage() {
+		this("image");
+	}
+
+	public PLPImage(String name) {
+		this.name = name;
 	}
 
 	public PLPImage(BufferedImage image) {
-		this.image = image;
+		this("image");
+		setImage(image);
 		this.width = image.getWidth();
 		this.height = image.getHeight();
 	}
 
+	/**
+	 * Sets the sink receiving the frames of visible images in headless mode.
+	 * 
+	 * @param sink
+	 *            the new sink, or null to discard frames
+	 */
+	public static void setFrameSink(FrameSink sink) {
+		frameSink = sink;
+	}
+
+	public static FrameSink getFrameSink() {
+		return frameSink;
+	}
+
+	/**
+	 * @return the sink described by the system property
+	 *         cop5555fa13.framesink, or null if it is not set
+	 */
+	private static FrameSink frameSinkFromProperty() {
+		String spec = System.getProperty("cop5555fa13.framesink");
+		if (spec == null || spec.isEmpty()) {
+			return null;
+		}
+		if (spec.startsWith("png:")) {
+			return new PNGFrameSink(new File(spec.substring("png:".length())));
+		}
+		if (spec.equals(STDOUT_FRAME_SINK)) {
+			return new RawFrameSink(System.out);
+		}
+		if (spec.startsWith("raw:")) {
+			try {
+				return new RawFrameSink(new FileOutputStream(
+						spec.substring("raw:".length())));
+			} catch (FileNotFoundException e) {
+				throw new ImageException("Cannot open frame sink " + spec);
+			}
+		}
+		throw new ImageException("Unknown frame sink " + spec);
+	}
+
     /** load the image from the given file or URL.  
      * If width or height is 0, the value of that dimension is
      * obtained from the source image. If not, the image is scaled
-     * to the indicated size.
+     * to the indicated size as by updateImageSize. If both are set and the source is much
+     * larger, it is decoded subsampled before being scaled. Decoded
+     * images are kept in the ImageCache, and shared until this
+     * PLPImage writes to its pixels.
      * 
      * @param fileOrURL  File or URL of the image
      */
 	public final void loadImage(String fileOrURL) {
-		try {
+		BufferedImage loaded = context == null ? null : context
+				.getInput(fileOrURL);
+		if (loaded == null) {
 			try {
-				image = ImageIO.read(new URL(fileOrURL));
-			} catch (MalformedURLException e) {
-				// not a URL, maybe it is a file
-				image = ImageIO.read(new File(fileOrURL));
+				loaded = ImageCache.getShared().get(fileOrURL, width, height);
+			} catch (IOException e) {
+				messages().println("Cannot load image " + fileOrURL);
+				return;
 			}
-		} catch (IOException e) {
-			System.out.println("Cannot load image " + fileOrURL);
+		}
+		if (loaded == null) {
+			// no registered reader could decode the source
+			messages().println("Cannot load image " + fileOrURL);
 			return;
 		}
+		// the cached or input image is only copied when it is written or
+		// resized
+		setImage(loaded);
+		shared = true;
 		if (width == 0) {
 			width = image.getWidth();
 		}
 		if (height == 0) {
 			height = image.getHeight();
 		}
-		updateImageSize();
+		if (ImageCache.isSubsampled(loaded)
+				&& (width != image.getWidth() || height != image.getHeight())) {
+			// the source differs from the shape in both dimensions, but the
+			// subsampled image may already match it in one
+			setImage(getScaledImage(image, width, height));
+		} else {
+			updateImageSize();
+		}
+	}
+
+	public static final String prefetchImageDesc = "(Ljava/lang/String;)V";
+
+	/**
+	 * Starts loading the image at the given file or URL in the background so
+	 * that a later loadImage of the same source does not have to wait for all
+	 * of it, unless it is an input of the current RunContext.
+	 * 
+	 * @param fileOrURL
+	 *            File or URL of the image
+	 */
+	public static void prefetchImage(String fileOrURL) {
+		RunContext context = RunContext.current();
+		if (context == null || context.getInput(fileOrURL) == null) {
+			ImageCache.getShared().prefetch(fileOrURL);
+		}
 	}
 
 	/**Invoke this method after updating the width or height values for
@@ -101,15 +250,127 @@ public class PLPImage implements ImageConstants {
 		if (image == null)
 			return;
 		if (width != image.getWidth() && height != image.getHeight()) {
-			image = getScaledImage(image, width, height);
+			setImage(getScaledImage(image, width, height));
 		}
 	}
 
+	/**
+	 * Makes the given image the one held by this PLPImage, converting it to
+	 * TYPE_INT_RGB first if needed, and caches its int[] raster and stride.
+	 * 
+	 * @param src
+	 */
+	final void setImage(BufferedImage src) {
+		image = toIntRGB(src);
+		shared = false;
+		if (image == null) {
+			pixels = null;
+			stride = 0;
+			return;
+		}
+		pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		stride = ((SinglePixelPackedSampleModel) image.getSampleModel())
+				.getScanlineStride();
+	}
+
+	/**
+	 * static method that returns src if it is already a TYPE_INT_RGB image
+	 * whose DataBufferInt holds exactly its pixels, row after row from index
+	 * 0, or a TYPE_INT_RGB copy of it otherwise. A subimage, whose raster is
+	 * offset into the array of its parent or has longer rows, is copied.
+	 * 
+	 * @param src
+	 * @return src, or a copy of src with an int[] raster
+	 */
+	static final BufferedImage toIntRGB(BufferedImage src) {
+		if (src == null) {
+			return null;
+		}
+		int w = src.getWidth();
+		int h = src.getHeight();
+		if (src.getType() == BufferedImage.TYPE_INT_RGB
+				&& isPacked(src.getRaster(), w, h)) {
+			return src;
+		}
+		BufferedImage copy = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		// copy through getRGB/setRGB once rather than drawing, so that color
+		// samples of translucent pixels are kept as is instead of blended.
+		copy.setRGB(0, 0, w, h, src.getRGB(0, 0, w, h, null, 0, w), 0, w);
+		return copy;
+	}
+
+	/**
+	 * @return true if pixel (x,y) of raster is at index y * w + x of its only
+	 *         int[] bank, which has no other elements
+	 */
+	private static boolean isPacked(WritableRaster raster, int w, int h) {
+		if (!(raster.getDataBuffer() instanceof DataBufferInt)
+				|| !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)) {
+			return false;
+		}
+		DataBufferInt data = (DataBufferInt) raster.getDataBuffer();
+		return data.getNumBanks() == 1
+				&& data.getOffset() == 0
+				&& raster.getSampleModelTranslateX() == 0
+				&& raster.getSampleModelTranslateY() == 0
+				&& ((SinglePixelPackedSampleModel) raster.getSampleModel())
+						.getScanlineStride() == w
+				&& data.getData().length == (long) w * h;
+	}
+
+	/**
+	 * Returns the int[] backing the image, or null if no image has been
+	 * created yet. Pixel (x,y) is at index y * getStride() + x and holds a
+	 * packed 0x00rrggbb value.
+	 * 
+	 * @return the raster of the image
+	 */
+	public final int[] getPixels() {
+		return pixels;
+	}
+
+	/**
+	 * @return true if the raster is shared with the ImageCache, in which case
+	 *         it must not be written before calling ensureImage
+	 */
+	public final boolean isShared() {
+		return shared;
+	}
+
+	/**
+	 * Replaces a raster shared with the ImageCache by a private copy.
+	 */
+	private void unshare() {
+		setImage(getScaledImage(image, image.getWidth(), image.getHeight()));
+	}
+
+	/**
+	 * @return number of ints between the starts of two consecutive rows of the
+	 *         array returned by getPixels.
+	 */
+	public final int getStride() {
+		return stride;
+	}
+
 	/** Invoke this method after updating the image parameters to
 	 * synchronize what is displayed by the PLPFrame with the 
 	 * values in this PLPImage
 	 */
 	public final void updateFrame() {
+		if (context != null) {
+			FrameSink sink = context.getFrameSink();
+			if (isVisible && sink != null) {
+				sink.frameUpdated(this);
+			}
+			return;
+		}
+		if (HEADLESS) {
+			FrameSink sink = frameSink;
+			if (isVisible && sink != null) {
+				sink.frameUpdated(this);
+			}
+			return;
+		}
 		if (frame == null) {
 			if (!isVisible)
 				return;
@@ -141,8 +402,16 @@ public class PLPImage implements ImageConstants {
 		int h = src.getHeight();
 		if ((w == newWidth && h == newHeight)) {
 			// no scaling needed, just return a copy
-			scaledImage.setRGB(0, 0, w, h, src.getRGB(0, 0, w, h, null, 0, w),
-					0, w);
+			BufferedImage intSrc = toIntRGB(src);
+			int[] from = ((DataBufferInt) intSrc.getRaster().getDataBuffer())
+					.getData();
+			int fromStride = ((SinglePixelPackedSampleModel) intSrc
+					.getSampleModel()).getScanlineStride();
+			int[] to = ((DataBufferInt) scaledImage.getRaster()
+					.getDataBuffer()).getData();
+			for (int y = 0; y != h; y++) {
+				System.arraycopy(from, y * fromStride, to, y * w, w);
+			}
 		} else // scale image
 		{
 			Graphics2D graphics2D = scaledImage.createGraphics();
@@ -163,7 +432,9 @@ public class PLPImage implements ImageConstants {
 	private static String format = "JPEG";
 	/**
 	 * writes an image to a file, provided for convenience, not used in
-	 * language, but may be useful for debugging and grading.
+	 * language, but may be useful for debugging and grading. Files named
+	 * with the RawImageIO extension are written losslessly in the raw format,
+	 * which loadImage reads back without decoding; other files are JPEG.
 	 * 
 	 * @param plpImage
 	 * @param fileName
@@ -171,6 +442,10 @@ public class PLPImage implements ImageConstants {
 	public final static void writeImage(PLPImage plpImage, String fileName) {
 		File file = new File(fileName);
 		try {
+			if (RawImageIO.isRawFile(fileName)) {
+				RawImageIO.write(plpImage, file);
+				return;
+			}
 			ImageIO.write(plpImage.image, format, file);
 		} catch (IOException e) {
 			System.err.println("Write failed");
@@ -188,7 +463,7 @@ public class PLPImage implements ImageConstants {
 	 * @return sample
 	 */
 	public int getSample(int x, int y, int colorCode) {
-		return (image.getRGB(x, y) & BITMASKS[colorCode]) >>> BITOFFSETS[colorCode];
+		return (pixels[index(x, y)] & BITMASKS[colorCode]) >>> BITOFFSETS[colorCode];
 	}
 
 	/**
@@ -200,9 +475,28 @@ public class PLPImage implements ImageConstants {
 	 * @param val
 	 */
 	public void setSample(int x, int y, int colorCode, int val) {
-		int pixel = image.getRGB(x, y) & ZERO[colorCode]
+		if (shared) {
+			unshare();
+		}
+		int i = index(x, y);
+		pixels[i] = pixels[i] & ZERO[colorCode]
 				| (Pixel.truncate(val) << BITOFFSETS[colorCode]);
-		image.setRGB(x, y, pixel);
+	}
+
+	/**
+	 * Index of pixel (x,y) in the raster. Both coordinates are checked
+	 * against the size of the image, as BufferedImage.getRGB does, so that an
+	 * illegal x cannot silently wrap into the neighbouring row.
+	 * 
+	 * @param x
+	 * @param y
+	 * @return index of the pixel in pixels
+	 */
+	private int index(int x, int y) {
+		if (x < 0 || x >= image.getWidth() || y < 0 || y >= image.getHeight()) {
+			throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+		}
+		return y * stride + x;
 	}
 
 	public int getX_loc() {
@@ -237,8 +531,46 @@ public class PLPImage implements ImageConstants {
 		this.height = height;
 	}
 
+	public static final String getRasterForDesc = "(II)[I";
+
+	/**
+	 * Returns the raster, after checking that every pixel in columns [0,
+	 * width) of rows [0, rows) is in the image, so that the generated loops
+	 * can read it without going through getSample. An empty range is never
+	 * checked.
+	 * 
+	 * @param width
+	 * @param rows
+	 * @return the array returned by getPixels
+	 * @throws ArrayIndexOutOfBoundsException
+	 *             if some pixel of the range is out of the image
+	 */
+	public final int[] getRasterFor(int width, int rows) {
+		if (width > 0 && rows > 0
+				&& (width > stride || (long) rows * stride > pixels.length)) {
+			throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+		}
+		return pixels;
+	}
+
 	public int getPixel(int x, int y) {
-		return image.getRGB(x, y);
+		return pixels[index(x, y)] | SELECT_ALPHA;
+	}
+
+	public static final String ensureImageDesc = "()V";
+
+	/**
+	 * creates the BufferedImage, if it does not exist yet and both the width
+	 * and height are non-zero, or copies it if it is shared with the
+	 * ImageCache, so that the raster can be written from several threads
+	 * without racing on its lazy creation in setPixel.
+	 */
+	public final void ensureImage() {
+		if (image == null && width != 0 && height != 0) {
+			setImage(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+		} else if (shared) {
+			unshare();
+		}
 	}
 
 	/**
@@ -254,9 +586,11 @@ public class PLPImage implements ImageConstants {
 			if (width == 0 || height == 0)
 				throw new ImageException(
 						"attempt to create image with undefined size");
-			image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			setImage(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+		} else if (shared) {
+			unshare();
 		}
-		image.setRGB(x, y, newPixel);
+		pixels[index(x, y)] = newPixel & ~SELECT_ALPHA;
 	}
 
 	// returns a new image that is the negation of the given image
@@ -265,11 +599,12 @@ public class PLPImage implements ImageConstants {
 
 	public static PLPImage not(PLPImage src) {
 		PLPImage dest = new PLPImage(new BufferedImage(src.getWidth(),
-				src.getHeight(), BufferedImage.TYPE_INT_ARGB));
+				src.getHeight(), BufferedImage.TYPE_INT_RGB));
 		for (int y = 0; y != src.getHeight(); y++) {
+			int s = y * src.stride;
+			int d = y * dest.stride;
 			for (int x = 0; x != src.getWidth(); x++) {
-				dest.image.setRGB(x, y,
-						(~src.image.getRGB(x, y) | Pixel.SELECT_ALPHA));
+				dest.pixels[d + x] = ~src.pixels[s + x] & ~SELECT_ALPHA;
 			}
 		}
 		return dest;
@@ -279,12 +614,28 @@ public class PLPImage implements ImageConstants {
 		return width;
 	}
 
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the BufferedImage holding the pixels, or null if it has not been
+	 *         created yet
+	 */
+	public BufferedImage getBufferedImage() {
+		return image;
+	}
+
 	public int getHeight() {
 		return height;
 	}
 	
 	public static final String pauseDesc = "(I)V";
 	public static void pause(int msec){
+		if (HEADLESS) {
+			// nothing is displayed, render as fast as possible
+			return;
+		}
 		try {
 			Thread.sleep(msec);
 		} catch (InterruptedException e) {
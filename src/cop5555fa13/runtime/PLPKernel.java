@@ -0,0 +1,108 @@
+package cop5555fa13.runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class runs the kernels generated for whole-image pixel assignments in
+ * parallel. A kernel is a static method of the generated class with signature
+ * (II)V that computes the rows [rowStart, rowEnd) of its image. The rows of
+ * the image are split into bands that are executed on a ForkJoinPool.
+ *
+ * The pool used can be replaced with setPool. Otherwise a pool is created on
+ * first use with the parallelism given by the system property
+ * cop5555fa13.parallelism, or the number of available processors. The system
+ * property cop5555fa13.bandRows fixes the number of rows in a band.
+ *
+ */
+public class PLPKernel {
+
+	public static final String className = "cop5555fa13/runtime/PLPKernel";
+	public static final String kernelDesc = "(II)V";
+	public static final String runDesc = "(Ljava/lang/invoke/MethodHandle;I)V";
+
+	private static ForkJoinPool pool;
+
+	/**
+	 * Replaces the pool on which kernels are executed.
+	 *
+	 * @param newPool
+	 */
+	public static synchronized void setPool(ForkJoinPool newPool) {
+		pool = newPool;
+	}
+
+	public static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			int parallelism = Integer.getInteger("cop5555fa13.parallelism",
+					Runtime.getRuntime().availableProcessors());
+			pool = new ForkJoinPool(Math.max(1, parallelism));
+		}
+		return pool;
+	}
+
+	/**
+	 * Executes kernel on all rows in [0, height) and returns when every band
+	 * has completed.
+	 *
+	 * @param kernel
+	 *            handle of type (II)V
+	 * @param height
+	 *            number of rows of the image
+	 */
+	public static void run(MethodHandle kernel, int height) {
+		if (height <= 0) {
+			return;
+		}
+		ForkJoinPool p = getPool();
+		int bandRows = Integer.getInteger("cop5555fa13.bandRows", 0);
+		if (bandRows <= 0) {
+			// a few bands per worker so that uneven rows can be balanced
+			bandRows = Math.max(1, height / (p.getParallelism() * 4));
+		}
+		Band band = new Band(kernel, 0, height, bandRows);
+		if (ForkJoinTask.inForkJoinPool()) {
+			band.invoke();
+		} else {
+			p.invoke(band);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class Band extends RecursiveAction {
+		private final MethodHandle kernel;
+		private final int rowStart;
+		private final int rowEnd;
+		private final int bandRows;
+
+		Band(MethodHandle kernel, int rowStart, int rowEnd, int bandRows) {
+			this.kernel = kernel;
+			this.rowStart = rowStart;
+			this.rowEnd = rowEnd;
+			this.bandRows = bandRows;
+		}
+
+		@Override
+		protected void compute() {
+			if (rowEnd - rowStart <= bandRows) {
+				invokeKernel(kernel, rowStart, rowEnd);
+				return;
+			}
+			int mid = (rowStart + rowEnd) >>> 1;
+			invokeAll(new Band(kernel, rowStart, mid, bandRows), new Band(
+					kernel, mid, rowEnd, bandRows));
+		}
+	}
+
+	static void invokeKernel(MethodHandle kernel, int rowStart, int rowEnd) {
+		try {
+			kernel.invokeExact(rowStart, rowEnd);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
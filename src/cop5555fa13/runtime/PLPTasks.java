@@ -0,0 +1,117 @@
+package cop5555fa13.runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class runs the tasks generated for independent groups of statements
+ * concurrently. A task is a static method of the generated class with
+ * signature ()V that executes one group. The tasks are executed on the pool
+ * of PLPKernel, so that the kernels of the whole-image assignments they
+ * contain share its workers.
+ *
+ */
+public class PLPTasks {
+
+	public static final String className = "cop5555fa13/runtime/PLPTasks";
+	public static final String taskDesc = "()V";
+	public static final String runDesc = "([Ljava/lang/invoke/MethodHandle;)V";
+
+	/**
+	 * Executes every task and returns when all have completed. Once a task
+	 * throws, the tasks that have not started are not executed; those
+	 * running are completed, and then one of the exceptions is rethrown.
+	 *
+	 * @param tasks
+	 *            handles of type ()V
+	 */
+	public static void run(MethodHandle[] tasks) {
+		AtomicBoolean failed = new AtomicBoolean();
+		final Task[] actions = new Task[tasks.length];
+		for (int i = 0; i != tasks.length; i++) {
+			actions[i] = new Task(tasks[i], failed);
+		}
+		try {
+			if (ForkJoinTask.inForkJoinPool()) {
+				ForkJoinTask.invokeAll(actions);
+				return;
+			}
+			PLPKernel.getPool().invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					invokeAll(actions);
+				}
+			});
+		} catch (RuntimeException | Error e) {
+			// invokeAll cancels the other tasks and returns at once, but
+			// cancelling does not stop those executing statements
+			failed.set(true);
+			for (Task action : actions) {
+				action.awaitReturn();
+			}
+			throw e;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class Task extends RecursiveAction {
+		private final MethodHandle task;
+		/** set when a task of the same run throws */
+		private final AtomicBoolean failed;
+		private final AtomicBoolean started = new AtomicBoolean();
+		private final CountDownLatch returned = new CountDownLatch(1);
+
+		Task(MethodHandle task, AtomicBoolean failed) {
+			this.task = task;
+			this.failed = failed;
+		}
+
+		@Override
+		protected void compute() {
+			// started is set before failed is read, and run sets failed
+			// before reading started, so a task that run sees as not
+			// started executes nothing
+			started.set(true);
+			try {
+				if (failed.get()) {
+					return;
+				}
+				task.invokeExact();
+			} catch (RuntimeException | Error e) {
+				failed.set(true);
+				throw e;
+			} catch (Throwable e) {
+				failed.set(true);
+				throw new RuntimeException(e);
+			} finally {
+				returned.countDown();
+			}
+		}
+
+		/**
+		 * Waits until compute returns, if it has been called.
+		 */
+		void awaitReturn() {
+			if (!started.get()) {
+				return;
+			}
+			boolean interrupted = false;
+			while (true) {
+				try {
+					returned.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package cop5555fa13.runtime;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Frame sink writing every frame as a PNG file in a directory. Frames of an
+ * image are numbered from 0 and written to name-NNNNNN.png, where name is the
+ * name of the image variable.
+ * 
+ */
+public class PNGFrameSink implements FrameSink {
+
+	private final File dir;
+	private final Map<String, Integer> frameNumbers = new HashMap<String, Integer>();
+
+	public PNGFrameSink(File dir) {
+		this.dir = dir;
+		dir.mkdirs();
+	}
+
+	@Override
+	public synchronized void frameUpdated(PLPImage image) {
+		BufferedImage frame = image.getBufferedImage();
+		if (frame == null) {
+			return;
+		}
+		String name = image.getName();
+		Integer n = frameNumbers.get(name);
+		n = n == null ? 0 : n + 1;
+		frameNumbers.put(name, n);
+		File file = new File(dir, String.format("%s-%06d.png", name, n));
+		try {
+			ImageIO.write(frame, "png", file);
+		} catch (IOException e) {
+			throw new PLPImage.ImageException("Cannot write frame " + file
+					+ ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package cop5555fa13.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Frame sink writing every frame to a stream as raw 8-bit RGB, 3 bytes per
+ * pixel, row by row, with no header. This is the rgb24 raw video format, so
+ * the output of a program whose visible images all have the same size can be
+ * piped into a video encoder.
+ * 
+ */
+public class RawFrameSink implements FrameSink {
+
+	private final OutputStream out;
+	private byte[] buffer = new byte[0];
+
+	public RawFrameSink(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public synchronized void frameUpdated(PLPImage image) {
+		int[] pixels = image.getPixels();
+		if (pixels == null) {
+			return;
+		}
+		int w = image.getBufferedImage().getWidth();
+		int h = image.getBufferedImage().getHeight();
+		int stride = image.getStride();
+		if (buffer.length < w * 3) {
+			buffer = new byte[w * 3];
+		}
+		try {
+			for (int y = 0; y != h; y++) {
+				int b = 0;
+				for (int i = y * stride, end = i + w; i != end; i++) {
+					int pixel = pixels[i];
+					buffer[b++] = (byte) (pixel >> ImageConstants.SHIFT_RED);
+					buffer[b++] = (byte) (pixel >> ImageConstants.SHIFT_GRN);
+					buffer[b++] = (byte) pixel;
+				}
+				out.write(buffer, 0, w * 3);
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new PLPImage.ImageException("Cannot write frame: "
+					+ e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package cop5555fa13.runtime;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import javax.imageio.IIOException;
+
+/**
+ * Reads and writes images in the raw PLP format, which holds the raster of a
+ * PLPImage uncompressed so that it can be copied in and out of memory mapped
+ * files without any decoding. Files in this format have the extension .plpr
+ * and consist of
+ *
+ * <pre>
+ * magic    4 bytes "PLPR"
+ * version  int, currently 1
+ * width    int
+ * height   int
+ * pixels   width * height ints 0x00rrggbb, row by row
+ * </pre>
+ *
+ * with all ints big-endian.
+ *
+ */
+public class RawImageIO {
+
+	public static final String EXTENSION = ".plpr";
+
+	static final int MAGIC = 'P' << 24 | 'L' << 16 | 'P' << 8 | 'R';
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 16;
+
+	/**
+	 * @return true if fileName has the extension of the raw format
+	 */
+	public static boolean isRawFile(String fileName) {
+		return fileName.toLowerCase().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Reads a raw image.
+	 *
+	 * @param file
+	 * @return a TYPE_INT_RGB image holding the pixels of file
+	 * @throws IOException
+	 *             if file cannot be read or is not a raw image
+	 */
+	public static BufferedImage read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size < HEADER_BYTES) {
+				throw new IIOException("Not a raw image: " + file);
+			}
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, size);
+			if (buffer.getInt() != MAGIC) {
+				throw new IIOException("Not a raw image: " + file);
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IIOException("Unsupported raw image version "
+						+ version + ": " + file);
+			}
+			int width = buffer.getInt();
+			int height = buffer.getInt();
+			if (width <= 0 || height <= 0
+					|| size - HEADER_BYTES < 4L * width * height) {
+				throw new IIOException("Truncated raw image: " + file);
+			}
+			BufferedImage image = new BufferedImage(width, height,
+					BufferedImage.TYPE_INT_RGB);
+			int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer())
+					.getData();
+			buffer.asIntBuffer().get(pixels, 0, width * height);
+			return image;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the pixels of plpImage to file in the raw format.
+	 *
+	 * @param plpImage
+	 * @param file
+	 * @throws IOException
+	 *             if file cannot be written
+	 */
+	public static void write(PLPImage plpImage, File file) throws IOException {
+		int[] pixels = plpImage.getPixels();
+		if (pixels == null) {
+			throw new IIOException("Image has not been created");
+		}
+		BufferedImage image = plpImage.getBufferedImage();
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int stride = plpImage.getStride();
+		long size = HEADER_BYTES + 4L * width * height;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_WRITE,
+					0, size);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+			IntBuffer out = buffer.asIntBuffer();
+			if (stride == width) {
+				out.put(pixels, 0, width * height);
+			} else {
+				for (int y = 0; y != height; y++) {
+					out.put(pixels, y * stride, width);
+				}
+			}
+			buffer.force();
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package cop5555fa13.runtime;
+
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The inputs and frame sink of one run of a program, so that runs of the
+ * same program in one JVM, possibly concurrent, each get their own. A
+ * PLPImage belongs to the context current on the thread that creates it,
+ * which for the images of a program is the thread starting it:
+ * <ul>
+ * <li>loadImage and prefetchImage take an image whose file or URL is a key
+ * of the inputs from them, instead of the ImageCache;</li>
+ * <li>updateFrame passes visible images to the sink of the context, whether
+ * headless or not, instead of the sink of PLPImage or a PLPFrame.</li>
+ * </ul>
+ *
+ */
+public final class RunContext {
+
+	private static final ThreadLocal<RunContext> current = new ThreadLocal<RunContext>();
+
+	private final Map<String, BufferedImage> inputs;
+	private final FrameSink frameSink;
+
+	/**
+	 * @param inputs
+	 *            images by the file or URL that the program loads them from,
+	 *            or null for none. They are not written by the program.
+	 * @param frameSink
+	 *            sink receiving the frames of visible images, or null to
+	 *            discard them
+	 */
+	public RunContext(Map<String, BufferedImage> inputs, FrameSink frameSink) {
+		this.inputs = inputs == null ? Collections
+				.<String, BufferedImage> emptyMap()
+				: new HashMap<String, BufferedImage>(inputs);
+		this.frameSink = frameSink;
+	}
+
+	/**
+	 * @return the context of the images created on this thread, or null
+	 */
+	public static RunContext current() {
+		return current.get();
+	}
+
+	/**
+	 * Makes this context current on this thread.
+	 *
+	 * @return the context it replaces, to be restored with exit
+	 */
+	public RunContext enter() {
+		RunContext previous = current.get();
+		current.set(this);
+		return previous;
+	}
+
+	/**
+	 * Restores the context replaced by enter.
+	 */
+	public static void exit(RunContext previous) {
+		if (previous == null) {
+			current.remove();
+		} else {
+			current.set(previous);
+		}
+	}
+
+	/**
+	 * @return the input loaded from fileOrURL, or null if there is none
+	 */
+	BufferedImage getInput(String fileOrURL) {
+		return inputs.get(fileOrURL);
+	}
+
+	FrameSink getFrameSink() {
+		return frameSink;
+	}
+}